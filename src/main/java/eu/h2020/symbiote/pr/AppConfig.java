@@ -2,6 +2,10 @@ package eu.h2020.symbiote.pr;
 
 import com.mongodb.Mongo;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import eu.h2020.symbiote.pr.repositories.MongoLatencyListener;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -22,6 +26,9 @@ public class AppConfig extends AbstractMongoConfiguration {
     @Value("${spring.data.mongodb.host:localhost}")
     private String mongoHost;
 
+    @Autowired
+    private MongoLatencyListener mongoLatencyListener;
+
     @Override
     protected String getDatabaseName() {
         return databaseName;
@@ -38,7 +45,9 @@ public class AppConfig extends AbstractMongoConfiguration {
     @Bean
     @Override
     public MongoTemplate mongoTemplate() {
-        return new MongoTemplate(new MongoClient(mongoHost), getDatabaseName());
+        // The latency of the database is one of the inputs of the ListenerConcurrencyController
+        MongoClientOptions options = MongoClientOptions.builder().addCommandListener(mongoLatencyListener).build();
+        return new MongoTemplate(new MongoClient(new ServerAddress(mongoHost), options), getDatabaseName());
     }
 
 }
\ No newline at end of file
@@ -1,19 +1,24 @@
 package eu.h2020.symbiote.pr;
 
+import eu.h2020.symbiote.pr.communication.rabbit.KeyedDispatcher;
+import eu.h2020.symbiote.pr.communication.rabbit.NegotiatingMessageConverter;
+import eu.h2020.symbiote.pr.communication.rabbit.RejectFailedDeliveryAdvice;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 
 
 @EnableDiscoveryClient
@@ -37,27 +42,115 @@ public class PlatformRegistryApplication {
         SpringApplication.run(PlatformRegistryApplication.class, args);
     }
 
+    /**
+     * The containers of the RegistrationHandlerListener. Every queue has a single consumer, which hands the requests
+     * over to the registrationHandlerDispatcher in the order of the deliveries, so the requests about the same
+     * resource are applied in that order. The requests run in parallel on the lanes of the dispatcher instead. The
+     * prefetch is the number of the requests a consumer has in flight, which are acknowledged manually when their
+     * reply has been sent.
+     */
     @Bean
-    public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+    public SimpleRabbitListenerContainerFactory registrationHandlerListenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            RejectFailedDeliveryAdvice rejectFailedDeliveryAdvice,
+            @Value("${symbiote.cloud.platformRegistry.consumers.registrationHandler.prefetch:20}") int prefetch) {
         SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
         factory.setConnectionFactory(connectionFactory);
-        factory.setConcurrentConsumers(3);
-        factory.setMaxConcurrentConsumers(10);
-        factory.setMessageConverter(jackson2JsonMessageConverter());
+        factory.setTaskExecutor(new SimpleAsyncTaskExecutor("registration-handler-consumer-"));
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        factory.setPrefetchCount(prefetch);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setMessageConverter(messageConverter());
         factory.setDefaultRequeueRejected(false);
+        factory.setAdviceChain(rejectFailedDeliveryAdvice);
         return factory;
     }
 
+    /**
+     * The container of the TrustManagerListener. The deliveries are acknowledged manually after their batch has been
+     * applied, so the prefetch has to fit a whole batch, and the ones whose listener failed are rejected by the
+     * RejectFailedDeliveryAdvice. The listener only adds the entry to a batch, so the processing latency is recorded by
+     * the batcher. The ListenerConcurrencyController adds consumers when needed.
+     */
     @Bean
-    Jackson2JsonMessageConverter jackson2JsonMessageConverter() {
-        return new Jackson2JsonMessageConverter();
+    public SimpleRabbitListenerContainerFactory trustListenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            RejectFailedDeliveryAdvice rejectFailedDeliveryAdvice,
+            @Value("${symbiote.cloud.platformRegistry.trust.batchSize:500}") int batchSize,
+            @Value("${symbiote.cloud.platformRegistry.consumers.trustManager.minConsumers:1}") int minConsumers) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setTaskExecutor(new SimpleAsyncTaskExecutor("trust-manager-consumer-"));
+        factory.setConcurrentConsumers(minConsumers);
+        factory.setMaxConcurrentConsumers(minConsumers);
+        factory.setPrefetchCount(batchSize);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setMessageConverter(messageConverter());
+        factory.setDefaultRequeueRejected(false);
+        factory.setAdviceChain(rejectFailedDeliveryAdvice);
+        return factory;
+    }
+
+    /**
+     * The containers of the SubscriptionManagerListener. Like the one of the TrustManagerListener, the deliveries are
+     * acknowledged manually after their batch has been applied and the prefetch fits a whole batch.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory subscriptionManagerListenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            RejectFailedDeliveryAdvice rejectFailedDeliveryAdvice,
+            @Value("${symbiote.cloud.platformRegistry.subscriptionManager.batchSize:100}") int batchSize,
+            @Value("${symbiote.cloud.platformRegistry.consumers.subscriptionManager.minConsumers:1}") int minConsumers) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setTaskExecutor(new SimpleAsyncTaskExecutor("subscription-manager-consumer-"));
+        factory.setConcurrentConsumers(minConsumers);
+        factory.setMaxConcurrentConsumers(minConsumers);
+        factory.setPrefetchCount(batchSize);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setMessageConverter(messageConverter());
+        factory.setDefaultRequeueRejected(false);
+        factory.setAdviceChain(rejectFailedDeliveryAdvice);
+        return factory;
+    }
+
+    /**
+     * The work of the Registration Handler requests runs on lanes of its own, so that it never waits behind a
+     * Subscription Manager sync, which is applied by the single applier of the SubscriptionManagerBatcher. The lanes
+     * are the parallelism of the Registration Handler requests.
+     */
+    @Bean
+    public KeyedDispatcher registrationHandlerDispatcher(
+            @Value("${symbiote.cloud.platformRegistry.dispatcher.registrationHandler.lanes:0}") int lanes) {
+        return new KeyedDispatcher("registration-handler", lanes);
+    }
+
+    /**
+     * The converter of the listeners. It accepts every supported format, but replies in JSON, since the callers of
+     * the Platform Registry expect it.
+     */
+    @Bean
+    NegotiatingMessageConverter messageConverter() {
+        return new NegotiatingMessageConverter(NegotiatingMessageConverter.JSON, NegotiatingMessageConverter.NONE);
+    }
+
+    /**
+     * The converter of the notifications sent to the Subscription Manager, whose format is configurable
+     */
+    @Bean
+    NegotiatingMessageConverter notificationMessageConverter(
+            @Value("${symbiote.cloud.platformRegistry.messages.contentType:application/json}") String contentType,
+            @Value("${symbiote.cloud.platformRegistry.messages.compression:none}") String compression) {
+        return new NegotiatingMessageConverter(contentType, compression);
     }
 
 
     @Bean
     public ConnectionFactory connectionFactory() throws Exception {
         CachingConnectionFactory connectionFactory = new CachingConnectionFactory(rabbitMQHostIP);
-        // connectionFactory.setPublisherConfirms(true);
+        // The ConfirmingPublisher relies on the publisher confirms
+        connectionFactory.setPublisherConfirms(true);
         // connectionFactory.setPublisherReturns(true);
         connectionFactory.setUsername(rabbitMQUsername);
         connectionFactory.setPassword(rabbitMQPassword);
@@ -65,9 +158,11 @@ public class PlatformRegistryApplication {
     }
 
     @Bean
-    public RabbitTemplate rabbitTemplate(ConnectionFactory connectionFactory, Jackson2JsonMessageConverter jackson2JsonMessageConverter) {
+    public RabbitTemplate rabbitTemplate(ConnectionFactory connectionFactory,
+                                         @Qualifier("notificationMessageConverter")
+                                                 NegotiatingMessageConverter notificationMessageConverter) {
         RabbitTemplate rabbitTemplate = new RabbitTemplate(connectionFactory);
-        rabbitTemplate.setMessageConverter(jackson2JsonMessageConverter);
+        rabbitTemplate.setMessageConverter(notificationMessageConverter);
         return rabbitTemplate;
     }
 }
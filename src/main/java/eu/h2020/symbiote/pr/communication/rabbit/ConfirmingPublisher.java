@@ -0,0 +1,235 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Publishes messages asynchronously with publisher confirms. The callers only put their messages in a bounded queue,
+ * which is drained by a single publisher thread. At most maxInFlight messages are waiting for their confirm at any
+ * time. The messages which are nacked or cannot be sent are published again, up to maxRetries times, unless they are
+ * published with {@link #publishOnce}.
+ *
+ * The following metrics are maintained:
+ * <ul>
+ *     <li>platformRegistry.outbound.published, .confirmed, .nacked, .retried and .failed counters</li>
+ *     <li>platformRegistry.outbound.lag gauge, i.e. the milliseconds from queueing a message to its confirm</li>
+ *     <li>platformRegistry.outbound.queued and .inFlight gauges</li>
+ * </ul>
+ */
+@Component
+public class ConfirmingPublisher {
+    private static Log log = LogFactory.getLog(ConfirmingPublisher.class);
+
+    private static final String METRIC_PREFIX = "platformRegistry.outbound.";
+
+    private RabbitTemplate rabbitTemplate;
+    private CounterService counterService;
+    private GaugeService gaugeService;
+    private int maxRetries;
+    private long retryBackoff;
+    private BlockingDeque<PendingMessage> queue = new LinkedBlockingDeque<>();
+    private Semaphore queueSlots;
+    private Semaphore inFlightWindow;
+    private Map<String, PendingMessage> unconfirmed = new ConcurrentHashMap<>();
+    private ExecutorService publisherExecutor;
+    private volatile boolean running = true;
+
+    @Autowired
+    public ConfirmingPublisher(ConnectionFactory connectionFactory,
+                               CounterService counterService,
+                               GaugeService gaugeService,
+                               @Value("${symbiote.cloud.platformRegistry.outbound.queueCapacity:10000}") int queueCapacity,
+                               @Value("${symbiote.cloud.platformRegistry.outbound.maxInFlight:256}") int maxInFlight,
+                               @Value("${symbiote.cloud.platformRegistry.outbound.maxRetries:3}") int maxRetries,
+                               @Value("${symbiote.cloud.platformRegistry.outbound.retryBackoff:1000}") long retryBackoff) {
+        // A template of its own, since a RabbitTemplate accepts only one confirm callback
+        this(new RabbitTemplate(connectionFactory), counterService, gaugeService, queueCapacity, maxInFlight,
+                maxRetries, retryBackoff);
+    }
+
+    ConfirmingPublisher(RabbitTemplate rabbitTemplate, CounterService counterService, GaugeService gaugeService,
+                        int queueCapacity, int maxInFlight, int maxRetries, long retryBackoff) {
+        Assert.isTrue(queueCapacity > 0, "The queueCapacity should be positive");
+        Assert.isTrue(maxInFlight > 0, "The maxInFlight should be positive");
+        Assert.isTrue(maxRetries >= 0, "The maxRetries should not be negative");
+        Assert.isTrue(retryBackoff >= 0, "The retryBackoff should not be negative");
+
+        this.rabbitTemplate = rabbitTemplate;
+        this.rabbitTemplate.setConfirmCallback(this::confirm);
+
+        this.counterService = counterService;
+        this.gaugeService = gaugeService;
+        this.maxRetries = maxRetries;
+        this.retryBackoff = retryBackoff;
+        this.queueSlots = new Semaphore(queueCapacity);
+        this.inFlightWindow = new Semaphore(maxInFlight);
+
+        this.publisherExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "confirming-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.publisherExecutor.execute(this::publishLoop);
+    }
+
+    /**
+     * Queues a message to be published. It blocks only if the queue is full.
+     *
+     * @param exchange   the exchange
+     * @param routingKey the routing key
+     * @param message    the message
+     * @return a future which completes when the broker confirms the message, or completes exceptionally if the
+     * message cannot be published
+     */
+    public CompletableFuture<Void> publish(String exchange, String routingKey, Message message) {
+        return publish(new PendingMessage(exchange, routingKey, message, maxRetries));
+    }
+
+    /**
+     * Queues a message to be published without retrying it. A retry is published after the messages which were
+     * queued later, so the callers which need their messages in order should publish them again themselves, starting
+     * from the first one which was not confirmed.
+     *
+     * @param exchange   the exchange
+     * @param routingKey the routing key
+     * @param message    the message
+     * @return a future which completes when the broker confirms the message, or completes exceptionally if the
+     * message is nacked or cannot be sent
+     */
+    public CompletableFuture<Void> publishOnce(String exchange, String routingKey, Message message) {
+        return publish(new PendingMessage(exchange, routingKey, message, 0));
+    }
+
+    private CompletableFuture<Void> publish(PendingMessage pending) {
+
+        try {
+            queueSlots.acquire();
+            queue.offerLast(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.future.completeExceptionally(e);
+        }
+        return pending.future;
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        publisherExecutor.shutdownNow();
+
+        if (!queue.isEmpty() || !unconfirmed.isEmpty())
+            log.warn("Stopping with " + queue.size() + " queued and " + unconfirmed.size() + " unconfirmed messages");
+    }
+
+    private void publishLoop() {
+        while (running) {
+            try {
+                PendingMessage pending = queue.pollFirst(100, TimeUnit.MILLISECONDS);
+                if (pending == null) {
+                    submitGauges();
+                    continue;
+                }
+                if (pending.attempts == 0)
+                    queueSlots.release();
+
+                inFlightWindow.acquire();
+                boolean sent = send(pending);
+                submitGauges();
+                if (!sent)
+                    TimeUnit.MILLISECONDS.sleep(retryBackoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean send(PendingMessage pending) {
+        String id = UUID.randomUUID().toString();
+        unconfirmed.put(id, pending);
+
+        try {
+            rabbitTemplate.send(pending.exchange, pending.routingKey, pending.message, new CorrelationData(id));
+            counterService.increment(METRIC_PREFIX + "published");
+            return true;
+        } catch (AmqpException e) {
+            if (unconfirmed.remove(id) != null) {
+                inFlightWindow.release();
+                retry(pending, e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    private void confirm(CorrelationData correlationData, boolean ack, String cause) {
+        PendingMessage pending = correlationData == null ? null : unconfirmed.remove(correlationData.getId());
+        if (pending == null)
+            return;
+        inFlightWindow.release();
+
+        if (ack) {
+            counterService.increment(METRIC_PREFIX + "confirmed");
+            gaugeService.submit(METRIC_PREFIX + "lag", System.currentTimeMillis() - pending.queuedAt);
+            pending.future.complete(null);
+        } else {
+            counterService.increment(METRIC_PREFIX + "nacked");
+            retry(pending, cause);
+        }
+    }
+
+    /**
+     * Submits the queued and inFlight gauges. They are submitted by the publisher thread, so that they are up to date
+     * also when the broker does not confirm anything
+     */
+    private void submitGauges() {
+        gaugeService.submit(METRIC_PREFIX + "queued", queue.size());
+        gaugeService.submit(METRIC_PREFIX + "inFlight", unconfirmed.size());
+    }
+
+    private void retry(PendingMessage pending, String cause) {
+        if (pending.attempts++ < pending.maxRetries && running) {
+            log.debug("Publishing again a message to " + pending.routingKey + ": " + cause);
+            counterService.increment(METRIC_PREFIX + "retried");
+
+            // The retries go first and do not take a slot of the queue, so they never wait for the callers
+            queue.offerFirst(pending);
+        } else {
+            log.warn("Failed to publish a message to " + pending.routingKey + ": " + cause);
+            counterService.increment(METRIC_PREFIX + "failed");
+            pending.future.completeExceptionally(new AmqpException("The message was not confirmed: " + cause));
+        }
+    }
+
+    private static class PendingMessage {
+        private final String exchange;
+        private final String routingKey;
+        private final Message message;
+        private final long queuedAt = System.currentTimeMillis();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final int maxRetries;
+        private int attempts;
+
+        private PendingMessage(String exchange, String routingKey, Message message, int maxRetries) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.message = message;
+            this.maxRetries = maxRetries;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+/**
+ * A batcher which acknowledges the deliveries of its listener only after their batch has been applied
+ */
+public interface DeliveryBatcher {
+
+    /**
+     * Applies the pending deliveries and waits until all the batches handed over so far are acknowledged, e.g. before
+     * stopping a consumer, whose channel is closed together with its unacknowledged deliveries
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if all the batches were acknowledged in time
+     */
+    boolean drain(long timeout) throws InterruptedException;
+}
@@ -0,0 +1,99 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Runs the work of the listeners on a fixed set of single threaded lanes. The work is assigned to the lanes by the
+ * hash of the ids of the resources it touches, so the work on the same resource never runs concurrently and runs in
+ * the order it was submitted, while the work on different resources runs in parallel.
+ *
+ * A piece of work runs in a single lane. The callers split a request touching the resources of several lanes into a
+ * part for every lane, see {@link #split(Collection, Function)}, so no work ever waits for another lane.
+ *
+ * The work runs in the order of the submissions, so a caller which needs the order of the deliveries submits from
+ * the single consumer of its queue, see the RegistrationHandlerListener. The callers do not wait for the work, so the
+ * lanes are the parallelism of the dispatcher.
+ */
+public class KeyedDispatcher {
+    private static Log log = LogFactory.getLog(KeyedDispatcher.class);
+
+    private final ExecutorService[] lanes;
+
+    /**
+     * @param name the name of the dispatcher, used in the names of the lane threads
+     * @param lanes the number of the lanes. If it is not positive, the number of the available processors is used
+     */
+    public KeyedDispatcher(String name, int lanes) {
+        int laneCount = lanes > 0 ? lanes : Runtime.getRuntime().availableProcessors();
+
+        this.lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String threadName = name + "-lane-" + i;
+            this.lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        log.debug("The " + name + " dispatcher has " + laneCount + " lanes");
+    }
+
+    /**
+     * Groups the items by the lanes of their keys
+     *
+     * @param items the items of a request, e.g. the resources to be updated
+     * @param keyOf returns the id of the resource of an item
+     * @param <I> the type of the items
+     * @return the items of every lane, in their original order
+     */
+    public <I> SortedMap<Integer, List<I>> split(Collection<I> items, Function<I, String> keyOf) {
+        SortedMap<Integer, List<I>> parts = new TreeMap<>();
+        for (I item : items)
+            parts.computeIfAbsent(laneIndex(keyOf.apply(item)), lane -> new ArrayList<>()).add(item);
+        return parts;
+    }
+
+    /**
+     * Queues the work in a lane without waiting for it
+     *
+     * @param lane the index of the lane, see {@link #laneIndex(String)}
+     * @param work the work
+     * @param <T> the type of the result
+     * @return the result of the work, completed exceptionally with the exception thrown by the work
+     */
+    public <T> CompletableFuture<T> submit(int lane, Callable<T> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            lanes[lane].execute(() -> {
+                try {
+                    future.complete(work.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopping
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return the index of the lane of the resource
+     */
+    public int laneIndex(String key) {
+        return key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length);
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (ExecutorService lane : lanes)
+            lane.shutdown();
+    }
+}
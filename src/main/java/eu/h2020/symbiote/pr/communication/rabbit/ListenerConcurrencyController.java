@@ -0,0 +1,288 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import eu.h2020.symbiote.pr.repositories.MongoLatencyListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the consumers and the prefetch of the listener containers every interval milliseconds. The containers are
+ * grouped by the @RabbitListener group of their listeners and every group has its own limits.
+ *
+ * For every container:
+ * <ul>
+ *     <li>if the Mongo latency exceeds the mongoLatencyThreshold, a consumer is removed from the sync containers, so
+ *     that the database is not flooded further</li>
+ *     <li>otherwise, if more messages are waiting in the queues than the consumers have prefetched, a consumer is
+ *     added</li>
+ *     <li>otherwise, if no messages are waiting, a consumer is removed</li>
+ *     <li>the prefetch is the number of messages a consumer processes in targetLatency milliseconds, based on the
+ *     processing latency of the queues. It is applied to the consumers started from then on</li>
+ * </ul>
+ *
+ * The containers which back off are pinned by setting both their concurrent and max concurrent consumers, which turns
+ * off their own scaling, so that they do not add back the consumers taken away from them. The Registration Handler
+ * containers keep their single consumer and their prefetch, since the consumer hands the requests over to the lanes
+ * of a dispatcher in the order of the deliveries. Their decisions are only exposed as metrics.
+ *
+ * The batched containers acknowledge their deliveries when their batch is applied and a stopped consumer closes its
+ * channel, so the broker would redeliver the whole pending batch. Before removing a consumer from such a container,
+ * the controller drains its {@link DeliveryBatcher}. If the batcher does not drain within the interval, the consumer
+ * is removed in a later round instead.
+ *
+ * The latencies decay with the time passed since their last sample, so that a container which backed off after a
+ * spike of the Mongo latency scales up again when the database goes idle.
+ *
+ * The decisions are exposed as the gauges platformRegistry.consumers.&lt;group&gt;.{consumers,prefetch,depth,latency}
+ * and the counters platformRegistry.consumers.&lt;group&gt;.{scaledUp,scaledDown}. The Mongo latency is exposed as
+ * the platformRegistry.consumers.mongoLatency gauge.
+ */
+@Component
+public class ListenerConcurrencyController {
+    private static Log log = LogFactory.getLog(ListenerConcurrencyController.class);
+
+    public static final String REGISTRATION_HANDLER_GROUP = "registrationHandlerContainers";
+    public static final String SUBSCRIPTION_MANAGER_GROUP = "subscriptionManagerContainers";
+    public static final String TRUST_MANAGER_GROUP = "trustManagerContainers";
+
+    private static final String METRIC_PREFIX = "platformRegistry.consumers.";
+
+    private ApplicationContext applicationContext;
+    private AmqpAdmin amqpAdmin;
+    private ListenerLatencyRecorder listenerLatencyRecorder;
+    private MongoLatencyListener mongoLatencyListener;
+    private CounterService counterService;
+    private GaugeService gaugeService;
+    private long interval;
+    private long targetLatency;
+    private long mongoLatencyThreshold;
+    private List<ContainerGroup> groups = new ArrayList<>();
+    private Map<SimpleMessageListenerContainer, ContainerState> states = new IdentityHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    @Autowired
+    public ListenerConcurrencyController(
+            ApplicationContext applicationContext,
+            AmqpAdmin amqpAdmin,
+            ListenerLatencyRecorder listenerLatencyRecorder,
+            MongoLatencyListener mongoLatencyListener,
+            CounterService counterService,
+            GaugeService gaugeService,
+            SubscriptionManagerBatcher subscriptionManagerBatcher,
+            TrustEntryBatcher trustEntryBatcher,
+            @Value("${symbiote.cloud.platformRegistry.consumers.interval:5000}") long interval,
+            @Value("${symbiote.cloud.platformRegistry.consumers.targetLatency:1000}") long targetLatency,
+            @Value("${symbiote.cloud.platformRegistry.consumers.mongoLatencyThreshold:500}") long mongoLatencyThreshold,
+            @Value("${symbiote.cloud.platformRegistry.consumers.maxPrefetch:250}") int maxPrefetch,
+            @Value("${symbiote.cloud.platformRegistry.consumers.registrationHandler.prefetch:20}")
+                    int registrationHandlerPrefetch,
+            @Value("${symbiote.cloud.platformRegistry.consumers.subscriptionManager.minConsumers:1}")
+                    int subscriptionManagerMinConsumers,
+            @Value("${symbiote.cloud.platformRegistry.consumers.subscriptionManager.maxConsumers:4}")
+                    int subscriptionManagerMaxConsumers,
+            @Value("${symbiote.cloud.platformRegistry.consumers.trustManager.minConsumers:1}")
+                    int trustManagerMinConsumers,
+            @Value("${symbiote.cloud.platformRegistry.consumers.trustManager.maxConsumers:4}")
+                    int trustManagerMaxConsumers,
+            @Value("${symbiote.cloud.platformRegistry.subscriptionManager.batchSize:100}")
+                    int subscriptionManagerBatchSize,
+            @Value("${symbiote.cloud.platformRegistry.trust.batchSize:500}") int trustBatchSize) {
+        Assert.isTrue(interval > 0, "The interval should be positive");
+        Assert.isTrue(targetLatency > 0, "The targetLatency should be positive");
+        Assert.isTrue(mongoLatencyThreshold > 0, "The mongoLatencyThreshold should be positive");
+        Assert.isTrue(maxPrefetch > 0, "The maxPrefetch should be positive");
+
+        this.applicationContext = applicationContext;
+        this.amqpAdmin = amqpAdmin;
+        this.listenerLatencyRecorder = listenerLatencyRecorder;
+        this.mongoLatencyListener = mongoLatencyListener;
+        this.counterService = counterService;
+        this.gaugeService = gaugeService;
+        this.interval = interval;
+        this.targetLatency = targetLatency;
+        this.mongoLatencyThreshold = mongoLatencyThreshold;
+
+        // The requests of the Registration Handler are applied in the order of their deliveries, so their containers
+        // keep the single consumer and the prefetch set by the registrationHandlerListenerContainerFactory. When the
+        // database is slow, the sync traffic backs off instead. The batched containers acknowledge their deliveries
+        // when a batch is complete, so a consumer has to be able to prefetch a whole batch
+        groups.add(new ContainerGroup(REGISTRATION_HANDLER_GROUP, 1, 1, registrationHandlerPrefetch,
+                registrationHandlerPrefetch, false, null));
+        groups.add(new ContainerGroup(SUBSCRIPTION_MANAGER_GROUP, subscriptionManagerMinConsumers,
+                subscriptionManagerMaxConsumers, subscriptionManagerBatchSize,
+                Math.max(maxPrefetch, subscriptionManagerBatchSize), true, subscriptionManagerBatcher));
+        groups.add(new ContainerGroup(TRUST_MANAGER_GROUP, trustManagerMinConsumers, trustManagerMaxConsumers,
+                trustBatchSize, Math.max(maxPrefetch, trustBatchSize), true, trustEntryBatcher));
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "listener-concurrency-controller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::adjust, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void adjust() {
+        try {
+            double mongoLatency = mongoLatencyListener.averageLatency();
+            gaugeService.submit(METRIC_PREFIX + "mongoLatency", mongoLatency);
+
+            for (ContainerGroup group : groups) {
+                // The group beans are registered together with the listener containers
+                if (!applicationContext.containsBean(group.name))
+                    continue;
+
+                int consumers = 0;
+                int depth = 0;
+                double latency = 0;
+                int prefetch = group.minPrefetch;
+                for (Object container : applicationContext.getBean(group.name, List.class)) {
+                    if (!(container instanceof SimpleMessageListenerContainer))
+                        continue;
+
+                    ContainerState state = adjust(group, (SimpleMessageListenerContainer) container, mongoLatency);
+                    consumers += state.consumers;
+                    depth += state.depth;
+                    latency = Math.max(latency, state.latency);
+                    prefetch = Math.max(prefetch, state.prefetch);
+                }
+
+                gaugeService.submit(METRIC_PREFIX + group.name + ".consumers", consumers);
+                gaugeService.submit(METRIC_PREFIX + group.name + ".prefetch", prefetch);
+                gaugeService.submit(METRIC_PREFIX + group.name + ".depth", depth);
+                gaugeService.submit(METRIC_PREFIX + group.name + ".latency", latency);
+            }
+        } catch (InterruptedException e) {
+            // Stopping
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // The next round tries again, e.g. when the broker is reachable again
+            log.warn("Could not adjust the consumers of the listener containers", e);
+        }
+    }
+
+    private ContainerState adjust(ContainerGroup group, SimpleMessageListenerContainer container,
+                                  double mongoLatency) throws InterruptedException {
+        ContainerState state = states.computeIfAbsent(container, c -> new ContainerState());
+
+        state.depth = 0;
+        state.latency = 0;
+        for (String queue : container.getQueueNames()) {
+            Properties properties = amqpAdmin.getQueueProperties(queue);
+            if (properties != null && properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT) != null)
+                state.depth += ((Number) properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT)).intValue();
+            state.latency = Math.max(state.latency, listenerLatencyRecorder.averageLatency(queue));
+        }
+
+        // Until the first adjustment, the container runs with the settings of its factory
+        int currentConsumers = state.consumers > 0 ? state.consumers : group.minConsumers;
+        int currentPrefetch = state.prefetch > 0 ? state.prefetch : group.minPrefetch;
+
+        int consumers = currentConsumers;
+        if (group.backsOff && mongoLatency > mongoLatencyThreshold)
+            consumers--;
+        else if (state.depth > currentConsumers * currentPrefetch)
+            consumers++;
+        else if (state.depth == 0)
+            consumers--;
+        consumers = Math.max(group.minConsumers, Math.min(group.maxConsumers, consumers));
+
+        if (consumers < currentConsumers && group.batcher != null && !group.batcher.drain(interval)) {
+            log.debug("The consumers of " + Arrays.toString(container.getQueueNames()) + " are not reduced, since " +
+                    "their batches are still being applied");
+            consumers = currentConsumers;
+        }
+
+        int prefetch = state.latency > 0 ? (int) (targetLatency / state.latency) : currentPrefetch;
+        prefetch = Math.max(group.minPrefetch, Math.min(group.maxPrefetch, prefetch));
+
+        if (prefetch != state.prefetch) {
+            // The running consumers keep their prefetch, the new ones use this one
+            container.setPrefetchCount(prefetch);
+            state.prefetch = prefetch;
+        }
+
+        if (consumers != state.consumers) {
+            if (state.consumers > 0)
+                counterService.increment(METRIC_PREFIX + group.name +
+                        (consumers > state.consumers ? ".scaledUp" : ".scaledDown"));
+
+            // The max has to stay at least as big as the current consumers, whatever the factory has set
+            container.setMaxConcurrentConsumers(group.maxConsumers);
+            container.setConcurrentConsumers(consumers);
+            if (group.backsOff)
+                container.setMaxConcurrentConsumers(consumers);
+
+            log.debug("The consumers of " + Arrays.toString(container.getQueueNames()) + " changed from " +
+                    state.consumers + " to " + consumers + " (depth = " + state.depth + ", latency = " +
+                    state.latency + " ms, Mongo latency = " + mongoLatency + " ms, prefetch = " + prefetch + ")");
+            state.consumers = consumers;
+        }
+        return state;
+    }
+
+    /**
+     * The limits of the containers of a @RabbitListener group
+     */
+    private static class ContainerGroup {
+        private final String name;
+        private final int minConsumers;
+        private final int maxConsumers;
+        private final int minPrefetch;
+        private final int maxPrefetch;
+        private final boolean backsOff;
+        private final DeliveryBatcher batcher;
+
+        /**
+         * @param backsOff whether the group loses consumers when the database is slow. Such containers are pinned to
+         *                 the consumers set by the controller
+         * @param batcher the batcher acknowledging the deliveries of the group, or null if the listeners acknowledge
+         *                them on their own
+         */
+        private ContainerGroup(String name, int minConsumers, int maxConsumers, int minPrefetch, int maxPrefetch,
+                               boolean backsOff, DeliveryBatcher batcher) {
+            Assert.isTrue(minConsumers > 0, "The minConsumers of " + name + " should be positive");
+            Assert.isTrue(maxConsumers >= minConsumers,
+                    "The maxConsumers of " + name + " should be at least its minConsumers");
+
+            this.name = name;
+            this.minConsumers = minConsumers;
+            this.maxConsumers = maxConsumers;
+            this.minPrefetch = minPrefetch;
+            this.maxPrefetch = maxPrefetch;
+            this.backsOff = backsOff;
+            this.batcher = batcher;
+        }
+    }
+
+    /**
+     * The settings of a container as set by the controller and its last observations. The settings are 0 until the
+     * first adjustment
+     */
+    private static class ContainerState {
+        private int consumers;
+        private int prefetch;
+        private int depth;
+        private double latency;
+    }
+}
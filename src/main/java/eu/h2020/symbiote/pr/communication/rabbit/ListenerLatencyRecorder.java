@@ -0,0 +1,43 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import eu.h2020.symbiote.pr.helpers.LatencyTracker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps how long the listeners take to process a message, by the queue the message was consumed from. The listeners
+ * hand their messages over to a batcher or a dispatcher and return, so the time is recorded when the work completes:
+ * the batchers record the share of every message in the time spent on applying its batch and the
+ * RegistrationHandlerListener records the time from the delivery of a request until its reply.
+ */
+@Component
+public class ListenerLatencyRecorder {
+
+    private LatencyTracker latencyTracker;
+
+    /**
+     * @param interval the interval of the ListenerConcurrencyController. The latency of an idle queue halves in every
+     *                 interval, so that its prefetch grows back
+     */
+    @Autowired
+    public ListenerLatencyRecorder(@Value("${symbiote.cloud.platformRegistry.consumers.interval:5000}") long interval) {
+        this.latencyTracker = new LatencyTracker(interval);
+    }
+
+    /**
+     * @param queue the queue the message was consumed from
+     * @param millis the time spent on processing the message in milliseconds
+     */
+    public void record(String queue, double millis) {
+        if (queue != null)
+            latencyTracker.record(queue, millis);
+    }
+
+    /**
+     * @return the average processing latency of the messages of the queue in milliseconds
+     */
+    public double averageLatency(String queue) {
+        return latencyTracker.average(queue);
+    }
+}
@@ -0,0 +1,193 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.DefaultJackson2JavaTypeMapper;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A drop-in replacement of the Jackson2JsonMessageConverter, which picks the encoding of a message by its
+ * content-type and content-encoding headers. The body can be JSON, Smile or CBOR, optionally compressed with gzip or
+ * LZ4. All of them are accepted in the inbound messages, while the outbound messages use the configured format.
+ *
+ * The content-encoding of a message is also its charset for Spring AMQP, so the compressed messages carry the
+ * compression followed by the charset of the JSON body, e.g. "gzip:UTF-8". Plain JSON is sent with "UTF-8", exactly
+ * like the Jackson2JsonMessageConverter does, so the default format is understood by all the components.
+ */
+public class NegotiatingMessageConverter implements MessageConverter {
+    private static Log log = LogFactory.getLog(NegotiatingMessageConverter.class);
+
+    public static final String JSON = MessageProperties.CONTENT_TYPE_JSON;
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final String CBOR = "application/cbor";
+    public static final List<String> CONTENT_TYPES = Arrays.asList(JSON, SMILE, CBOR);
+
+    public static final String NONE = "none";
+    public static final String GZIP = "gzip";
+    public static final String LZ4 = "lz4";
+    public static final List<String> COMPRESSIONS = Arrays.asList(NONE, GZIP, LZ4);
+
+    private static final String CHARSET = "UTF-8";
+
+    private ObjectMapper jsonMapper = new ObjectMapper();
+    private ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+    private ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+    private DefaultJackson2JavaTypeMapper typeMapper = new DefaultJackson2JavaTypeMapper();
+
+    private String contentType;
+    private String compression;
+
+    /**
+     * @param contentType the content-type of the outbound messages, one of the {@link #CONTENT_TYPES}
+     * @param compression the compression of the outbound messages, one of the {@link #COMPRESSIONS}
+     */
+    public NegotiatingMessageConverter(String contentType, String compression) {
+        Assert.isTrue(CONTENT_TYPES.contains(contentType), "The contentType should be one of " + CONTENT_TYPES);
+        this.contentType = contentType;
+
+        Assert.isTrue(COMPRESSIONS.contains(compression), "The compression should be one of " + COMPRESSIONS);
+        this.compression = compression;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        ObjectMapper mapper = mapperOf(contentType);
+
+        byte[] body;
+        try {
+            body = compress(mapper.writeValueAsBytes(object));
+        } catch (IOException e) {
+            throw new MessageConversionException("Failed to convert the message content to " + contentType, e);
+        }
+
+        messageProperties.setContentType(contentType);
+        messageProperties.setContentEncoding(contentEncoding());
+        messageProperties.setContentLength(body.length);
+        typeMapper.fromJavaType(mapper.constructType(object.getClass()), messageProperties);
+
+        return new Message(body, messageProperties);
+    }
+
+    /**
+     * Like the Jackson2JsonMessageConverter, returns the raw body when the content-type is not one of the supported
+     */
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        MessageProperties properties = message.getMessageProperties();
+        ObjectMapper mapper = properties != null ? mapperOf(properties.getContentType()) : null;
+
+        if (mapper == null) {
+            log.warn("Could not convert incoming message with content-type [" +
+                    (properties != null ? properties.getContentType() : null) + "]");
+            return message.getBody();
+        }
+
+        try {
+            JavaType targetType = typeMapper.toJavaType(properties);
+            byte[] body = decompress(message.getBody(), properties.getContentEncoding());
+            String charset = charsetOf(properties.getContentEncoding());
+
+            // Jackson detects the Unicode encodings of JSON by itself, the rest are decoded like before
+            if (mapper == jsonMapper && charset != null && !charset.toUpperCase().startsWith("UTF"))
+                return mapper.readValue(new String(body, charset), targetType);
+            return mapper.readValue(body, targetType);
+        } catch (IOException e) {
+            throw new MessageConversionException("Failed to convert the message content of type " +
+                    properties.getContentType() + " with encoding " + properties.getContentEncoding(), e);
+        }
+    }
+
+    /**
+     * @return the mapper of the content-type or null if it is not supported
+     */
+    private ObjectMapper mapperOf(String contentType) {
+        if (contentType == null)
+            return null;
+
+        String type = contentType.toLowerCase();
+        if (type.contains("smile"))
+            return smileMapper;
+        if (type.contains("cbor"))
+            return cborMapper;
+        if (type.contains("json"))
+            return jsonMapper;
+        return null;
+    }
+
+    private String contentEncoding() {
+        if (contentType.equals(JSON))
+            return compression.equals(NONE) ? CHARSET : compression + ":" + CHARSET;
+
+        // Smile and CBOR are binary, so they have no charset
+        return compression.equals(NONE) ? null : compression;
+    }
+
+    /**
+     * @return the charset part of the content-encoding or null if it has none
+     */
+    private static String charsetOf(String contentEncoding) {
+        if (contentEncoding == null)
+            return null;
+
+        String encoding = contentEncoding.trim();
+        int separator = encoding.indexOf(':');
+        if (separator >= 0)
+            encoding = encoding.substring(separator + 1).trim();
+        else if (encoding.toLowerCase().startsWith(GZIP) || encoding.toLowerCase().startsWith(LZ4))
+            return null;
+
+        return encoding.isEmpty() ? null : encoding;
+    }
+
+    private byte[] compress(byte[] bytes) throws IOException {
+        if (compression.equals(NONE))
+            return bytes;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (OutputStream out = compression.equals(GZIP) ?
+                new GZIPOutputStream(buffer) : new LZ4FrameOutputStream(buffer)) {
+            out.write(bytes);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @param contentEncoding the compression, the charset, or the compression followed by ':' and the charset
+     */
+    private static byte[] decompress(byte[] bytes, String contentEncoding) throws IOException {
+        String encoding = contentEncoding == null ? "" : contentEncoding.trim().toLowerCase();
+
+        InputStream in;
+        if (encoding.startsWith(GZIP))
+            in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        else if (encoding.startsWith(LZ4))
+            in = new LZ4FrameInputStream(new ByteArrayInputStream(bytes));
+        else
+            return bytes;
+
+        try (InputStream stream = in) {
+            return StreamUtils.copyToByteArray(stream);
+        }
+    }
+}
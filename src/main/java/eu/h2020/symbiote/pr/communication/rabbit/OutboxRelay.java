@@ -0,0 +1,171 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import eu.h2020.symbiote.pr.model.OutboxEntry;
+import eu.h2020.symbiote.pr.repositories.OutboxRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Publishes the entries of the outbox in batches of at most batchSize entries. The entries of a batch are handed over
+ * to the {@link ConfirmingPublisher} together and they are removed from the outbox after the broker has confirmed
+ * them. Only the entries before the first one which is not confirmed are removed. That one and all the later ones stay
+ * in the outbox and are published again in the next round, so that the last delivery of every entry is in the order
+ * of the outbox, e.g. a removal is never followed by an older update of the same resource.
+ *
+ * The relay runs every interval milliseconds and as soon as new entries are added. Only the relay holding the lease
+ * in the database publishes, so the instances of the Platform Registry sharing the database do not publish the same
+ * entries. The lease is renewed before every batch and it is released when the relay stops. If an instance dies, its
+ * lease expires after leaseDuration milliseconds and another relay takes over, so the leaseDuration should exceed the
+ * confirmTimeout and the clock differences of the instances.
+ */
+@Component
+public class OutboxRelay {
+    private static Log log = LogFactory.getLog(OutboxRelay.class);
+
+    private static final String METRIC_PREFIX = "platformRegistry.outbox.";
+
+    private OutboxRepository outboxRepository;
+    private ConfirmingPublisher confirmingPublisher;
+    private CounterService counterService;
+    private int batchSize;
+    private long interval;
+    private long confirmTimeout;
+    private long leaseDuration;
+    private String owner = UUID.randomUUID().toString();
+    private boolean leaseHeld;
+    private Semaphore wakeUps = new Semaphore(0);
+    private ExecutorService relayExecutor;
+    private volatile boolean running = true;
+
+    @Autowired
+    public OutboxRelay(OutboxRepository outboxRepository,
+                       ConfirmingPublisher confirmingPublisher,
+                       CounterService counterService,
+                       @Value("${symbiote.cloud.platformRegistry.outbox.batchSize:100}") int batchSize,
+                       @Value("${symbiote.cloud.platformRegistry.outbox.interval:1000}") long interval,
+                       @Value("${symbiote.cloud.platformRegistry.outbox.confirmTimeout:30000}") long confirmTimeout,
+                       @Value("${symbiote.cloud.platformRegistry.outbox.leaseDuration:60000}") long leaseDuration) {
+        Assert.isTrue(batchSize > 0, "The batchSize should be positive");
+        Assert.isTrue(interval > 0, "The interval should be positive");
+        Assert.isTrue(confirmTimeout > 0, "The confirmTimeout should be positive");
+        Assert.isTrue(leaseDuration > confirmTimeout, "The leaseDuration should exceed the confirmTimeout");
+
+        this.outboxRepository = outboxRepository;
+        this.confirmingPublisher = confirmingPublisher;
+        this.counterService = counterService;
+        this.batchSize = batchSize;
+        this.interval = interval;
+        this.confirmTimeout = confirmTimeout;
+        this.leaseDuration = leaseDuration;
+
+        this.relayExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.relayExecutor.execute(this::relayLoop);
+    }
+
+    /**
+     * Makes the relay run without waiting for the next interval, e.g. after adding entries to the outbox
+     */
+    public void wakeUp() {
+        wakeUps.release();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        relayExecutor.shutdownNow();
+
+        try {
+            outboxRepository.releaseLease(owner);
+        } catch (RuntimeException e) {
+            log.warn("Could not release the lease of the outbox relay", e);
+        }
+    }
+
+    private void relayLoop() {
+        while (running) {
+            try {
+                wakeUps.tryAcquire(interval, TimeUnit.MILLISECONDS);
+                wakeUps.drainPermits();
+
+                // Keep going while there are full batches
+                while (running && relayBatch() == batchSize);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.warn("Failed to relay the outbox entries", e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of the entries which were published and confirmed
+     */
+    private int relayBatch() throws InterruptedException {
+        boolean acquired = outboxRepository.acquireLease(owner, leaseDuration);
+        if (acquired != leaseHeld) {
+            log.info(acquired ? "The outbox relay " + owner + " took over the publishing" :
+                    "The outbox relay " + owner + " lost the lease to another instance");
+            leaseHeld = acquired;
+        }
+        if (!acquired)
+            return 0;
+
+        List<OutboxEntry> entries = outboxRepository.findAllByOrderBySequenceAsc(new PageRequest(0, batchSize));
+        if (entries.isEmpty())
+            return 0;
+
+        List<CompletableFuture<Void>> confirms = new ArrayList<>(entries.size());
+        for (OutboxEntry entry : entries)
+            confirms.add(confirmingPublisher.publishOnce(entry.getExchange(), entry.getRoutingKey(),
+                    toMessage(entry)));
+
+        List<String> confirmedIds = new ArrayList<>(entries.size());
+        long deadline = System.currentTimeMillis() + confirmTimeout;
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                confirms.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                confirmedIds.add(entries.get(i).getId());
+            } catch (ExecutionException | TimeoutException e) {
+                log.debug("The outbox entry " + entries.get(i).getId() + " was not confirmed: " + e.getMessage());
+                break;
+            }
+        }
+
+        if (!confirmedIds.isEmpty()) {
+            outboxRepository.deleteByIdIn(confirmedIds);
+            counterService.increment(METRIC_PREFIX + "relayedBatches");
+        }
+        if (confirmedIds.size() < entries.size())
+            log.info((entries.size() - confirmedIds.size()) + " outbox entries will be published again");
+
+        return confirmedIds.size();
+    }
+
+    private Message toMessage(OutboxEntry entry) {
+        MessageProperties properties = new MessageProperties();
+        properties.setContentType(entry.getContentType());
+        properties.setContentEncoding(entry.getContentEncoding());
+        if (entry.getHeaders() != null)
+            entry.getHeaders().forEach(properties::setHeader);
+        return new Message(entry.getBody(), properties);
+    }
+}
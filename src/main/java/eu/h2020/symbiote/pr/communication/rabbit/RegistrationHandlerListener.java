@@ -1,17 +1,33 @@
 package eu.h2020.symbiote.pr.communication.rabbit;
 
+import com.rabbitmq.client.Channel;
 import eu.h2020.symbiote.cloud.model.internal.CloudResource;
+import eu.h2020.symbiote.pr.helpers.Deadline;
+import eu.h2020.symbiote.pr.helpers.DeadlineExceededException;
+import eu.h2020.symbiote.pr.model.ResourcesUpdateResult;
 import eu.h2020.symbiote.pr.services.RegistrationHandlerService;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.annotation.*;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
 import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 /**
  * This class is used as a simple listener.
@@ -23,20 +39,67 @@ import java.util.Map;
 public class RegistrationHandlerListener {
     private static Log log = LogFactory.getLog(RegistrationHandlerListener.class);
 
+    /**
+     * The header of the add or update reply with the number of the resources which had not changed
+     */
+    public static final String SKIPPED_RESOURCES_HEADER = "skippedResources";
+
     private RegistrationHandlerService registrationHandlerService;
+    private KeyedDispatcher keyedDispatcher;
+    private RabbitTemplate rabbitTemplate;
+    private NegotiatingMessageConverter replyConverter;
+    private ListenerLatencyRecorder listenerLatencyRecorder;
+    private CounterService counterService;
+    private long replyTimeout;
+    private long clockSkewTolerance;
 
+    /**
+     * Every queue has a single consumer, which splits a request by the lanes of the internalIds of its resources and
+     * hands the parts over to the dispatcher in the order of the deliveries. So the requests about the same resource
+     * are applied one at a time and in the order they were delivered, while the requests about other resources run
+     * in parallel on the other lanes. The consumer does not wait for the work: the reply is sent and the delivery is
+     * acknowledged when all the parts of the request have completed. The requests sent to different queues, e.g. an
+     * update and an unshare, have no common delivery order.
+     *
+     * The requests whose {@link Deadline} has passed are not processed any further and get no reply, since their
+     * caller no longer waits for it. They are counted by the platformRegistry.deadline.skipped counter. The deadlines
+     * derived from the timestamps of the requests are extended by the clockSkewTolerance in milliseconds, since the
+     * clocks of the callers may be behind.
+     */
     @Autowired
-    public RegistrationHandlerListener(RegistrationHandlerService registrationHandlerService) {
+    public RegistrationHandlerListener(RegistrationHandlerService registrationHandlerService,
+                                       @Qualifier("registrationHandlerDispatcher") KeyedDispatcher keyedDispatcher,
+                                       RabbitTemplate rabbitTemplate,
+                                       @Qualifier("messageConverter") NegotiatingMessageConverter replyConverter,
+                                       ListenerLatencyRecorder listenerLatencyRecorder,
+                                       CounterService counterService,
+                                       @Value("${spring.rabbitmq.template.reply-timeout}") long replyTimeout,
+                                       @Value("${symbiote.cloud.platformRegistry.deadline.clockSkewTolerance:60000}")
+                                               long clockSkewTolerance) {
         this.registrationHandlerService = registrationHandlerService;
+        this.keyedDispatcher = keyedDispatcher;
+        this.rabbitTemplate = rabbitTemplate;
+        this.replyConverter = replyConverter;
+        this.listenerLatencyRecorder = listenerLatencyRecorder;
+        this.counterService = counterService;
+        this.replyTimeout = replyTimeout;
+
+        Assert.isTrue(clockSkewTolerance >= 0, "The clockSkewTolerance should not be negative");
+        this.clockSkewTolerance = clockSkewTolerance;
     }
 
     /**
-     * Spring AMQP Listener for Resource Registration requests from Registration Handler.
+     * Spring AMQP Listener for Resource Registration requests from Registration Handler. The reply is a list of the
+     * newly registered/updated CloudResources. The number of the resources which had not changed and were skipped is
+     * included in the {@link #SKIPPED_RESOURCES_HEADER} header
      *
      * @param cloudResources a list of add or update requests coming from Registration Handler
-     * @return a list of the newly registered/updated CloudResources
+     * @param request the request, whose deadline and reply address are read from its properties
+     * @param channel the channel the request was received from
      */
     @RabbitListener(
+            containerFactory = "registrationHandlerListenerContainerFactory",
+            group = ListenerConcurrencyController.REGISTRATION_HANDLER_GROUP,
             bindings = @QueueBinding(
                     value = @Queue(
                             value = "${rabbit.queueName.platformRegistry.update}",
@@ -57,28 +120,48 @@ public class RegistrationHandlerListener {
                             type = "${rabbit.exchange.platformRegistry.type}"),
                     key = "${rabbit.routingKey.platformRegistry.update}")
     )
-    public List<CloudResource> addOrUpdate(List<CloudResource> cloudResources) {
+    public void addOrUpdate(List<CloudResource> cloudResources, Message request, Channel channel) {
         log.trace("Received resource add or update request from registration Handler: " +
                 ReflectionToStringBuilder.toString(cloudResources));
 
-        // ToDo: rework this to return proper error messages and/or do not requeue the request
-        try {
-            return registrationHandlerService.addOrUpdatePlatformResources(cloudResources);
-        } catch (Exception e) {
-            log.info("Exception thrown during saving platform resources", e);
-        }
+        submit("addOrUpdate", request, channel, () -> {
+            Deadline deadline = deadlineOf(request, "addOrUpdate");
+            Map<Integer, Callable<ResourcesUpdateResult>> parts = new TreeMap<>();
+            keyedDispatcher.split(cloudResources, CloudResource::getInternalId).forEach((lane, part) ->
+                    parts.put(lane, () -> registrationHandlerService.addOrUpdatePlatformResources(part, deadline)));
+            return parts;
+        }, results -> {
+            // The resources are updated in place, so the reply keeps the order of the request
+            Set<CloudResource> updated = Collections.newSetFromMap(new IdentityHashMap<>());
+            int skipped = 0;
+            for (ResourcesUpdateResult result : results) {
+                updated.addAll(result.getCloudResources());
+                skipped += result.getSkipped();
+            }
+
+            List<CloudResource> reply = new ArrayList<>();
+            for (CloudResource cloudResource : cloudResources)
+                if (updated.contains(cloudResource))
+                    reply.add(cloudResource);
 
-        return new ArrayList<>();
+            MessageProperties properties = new MessageProperties();
+            properties.setHeader(SKIPPED_RESOURCES_HEADER, skipped);
+            return replyConverter.toMessage(reply, properties);
+        });
     }
 
 
     /**
-     * Spring AMQP Listener for Resource Removal requests from Registration Handler.
+     * Spring AMQP Listener for Resource Removal requests from Registration Handler. The reply is a list of the
+     * removed internalIds
      *
      * @param internalIds contains a list of resource internal ids to be deleted
-     * @return a list of the removed internalIds
+     * @param request the request, whose deadline and reply address are read from its properties
+     * @param channel the channel the request was received from
      */
     @RabbitListener(
+            containerFactory = "registrationHandlerListenerContainerFactory",
+            group = ListenerConcurrencyController.REGISTRATION_HANDLER_GROUP,
             bindings = @QueueBinding(
                     value = @Queue(value = "${rabbit.queueName.platformRegistry.delete}",
                             durable = "${rabbit.exchange.platformRegistry.durable}",
@@ -98,29 +181,33 @@ public class RegistrationHandlerListener {
                             type = "${rabbit.exchange.platformRegistry.type}"),
                     key = "${rabbit.routingKey.platformRegistry.delete}")
     )
-    public List<String> removeFederatedResources(List<String> internalIds) {
+    public void removeFederatedResources(List<String> internalIds, Message request, Channel channel) {
         log.trace("Received resource removal request from registration Handler: " +
                 ReflectionToStringBuilder.toString(internalIds));
 
-        // ToDo: rework this to return proper error messages and/or do not requeue the request
-        try {
-            return registrationHandlerService.removePlatformResources(internalIds);
-        } catch (Exception e) {
-            log.info("Exception thrown during removing platform resources", e);
-        }
-
-        return new ArrayList<>();
+        submit("removeFederatedResources", request, channel, () -> {
+            Deadline deadline = deadlineOf(request, "removeFederatedResources");
+            Map<Integer, Callable<List<String>>> parts = new TreeMap<>();
+            keyedDispatcher.split(internalIds == null ? Collections.<String>emptyList() : internalIds,
+                    Function.identity()).forEach((lane, part) ->
+                    parts.put(lane, () -> registrationHandlerService.removePlatformResources(part, deadline)));
+            return parts;
+        }, this::concatenate);
     }
 
 
     /**
-     * Spring AMQP Listener for sharing resource requests from Registration Handler.
+     * Spring AMQP Listener for sharing resource requests from Registration Handler. The reply is a list of the
+     * updated CloudResources
      *
      * @param resourcesToBeShared a map with key the federationId and value another map, which has as key
      *                            the internalId of the resource to be shared and as value its bartering status
-     * @return a list of the updated CloudResources
+     * @param request the request, whose deadline and reply address are read from its properties
+     * @param channel the channel the request was received from
      */
     @RabbitListener(
+            containerFactory = "registrationHandlerListenerContainerFactory",
+            group = ListenerConcurrencyController.REGISTRATION_HANDLER_GROUP,
             bindings = @QueueBinding(
                     value = @Queue(value = "${rabbit.queueName.platformRegistry.share}",
                             durable = "${rabbit.exchange.platformRegistry.durable}",
@@ -140,29 +227,42 @@ public class RegistrationHandlerListener {
                             type = "${rabbit.exchange.platformRegistry.type}"),
                     key = "${rabbit.routingKey.platformRegistry.share}")
     )
-    public List<CloudResource> shareResources(Map<String, Map<String, Boolean>> resourcesToBeShared) {
+    public void shareResources(Map<String, Map<String, Boolean>> resourcesToBeShared, Message request,
+                               Channel channel) {
         log.trace("Received shareResources request from registration Handler: " +
                 ReflectionToStringBuilder.toString(resourcesToBeShared));
 
-        // ToDo: rework this to return proper error messages and/or do not requeue the request
-        try {
-            return registrationHandlerService.shareResources(resourcesToBeShared);
-        } catch (Exception e) {
-            log.info("Exception thrown during sharing platform resources", e);
-        }
+        submit("shareResources", request, channel, () -> {
+            Deadline deadline = deadlineOf(request, "shareResources");
 
-        return new ArrayList<>();
+            // The same federations with the resources of every lane
+            Map<Integer, Map<String, Map<String, Boolean>>> requestParts = new TreeMap<>();
+            for (Map.Entry<String, Map<String, Boolean>> federation : resourcesToBeShared.entrySet())
+                for (Map.Entry<String, Boolean> resource : federation.getValue().entrySet())
+                    requestParts.computeIfAbsent(keyedDispatcher.laneIndex(resource.getKey()), lane -> new HashMap<>())
+                            .computeIfAbsent(federation.getKey(), federationId -> new HashMap<>())
+                            .put(resource.getKey(), resource.getValue());
+
+            Map<Integer, Callable<List<CloudResource>>> parts = new TreeMap<>();
+            requestParts.forEach((lane, part) ->
+                    parts.put(lane, () -> registrationHandlerService.shareResources(part, deadline)));
+            return parts;
+        }, this::concatenate);
     }
 
 
     /**
-     * Spring AMQP Listener for unsharing resource requests from Registration Handler.
+     * Spring AMQP Listener for unsharing resource requests from Registration Handler. The reply is a list of the
+     * updated CloudResources
      *
      * @param resourcesToBeUnshared a map with key the federationId and value the list of internalIds to be unshared
      *                              from the federation
-     * @return a list of the updated CloudResources
+     * @param request the request, whose deadline and reply address are read from its properties
+     * @param channel the channel the request was received from
      */
     @RabbitListener(
+            containerFactory = "registrationHandlerListenerContainerFactory",
+            group = ListenerConcurrencyController.REGISTRATION_HANDLER_GROUP,
             bindings = @QueueBinding(
                     value = @Queue(value = "${rabbit.queueName.platformRegistry.unshare}",
                             durable = "${rabbit.exchange.platformRegistry.durable}",
@@ -182,17 +282,131 @@ public class RegistrationHandlerListener {
                             type = "${rabbit.exchange.platformRegistry.type}"),
                     key = "${rabbit.routingKey.platformRegistry.unshare}")
     )
-    public List<CloudResource> unshareResources(Map<String, List<String>> resourcesToBeUnshared) {
+    public void unshareResources(Map<String, List<String>> resourcesToBeUnshared, Message request,
+                                 Channel channel) {
         log.trace("Received shareResources request from registration Handler: " +
                 ReflectionToStringBuilder.toString(resourcesToBeUnshared));
 
-        // ToDo: rework this to return proper error messages and/or do not requeue the request
+        submit("unshareResources", request, channel, () -> {
+            Deadline deadline = deadlineOf(request, "unshareResources");
+
+            // The same federations with the resources of every lane
+            Map<Integer, Map<String, List<String>>> requestParts = new TreeMap<>();
+            for (Map.Entry<String, List<String>> federation : resourcesToBeUnshared.entrySet())
+                for (String internalId : federation.getValue())
+                    requestParts.computeIfAbsent(keyedDispatcher.laneIndex(internalId), lane -> new HashMap<>())
+                            .computeIfAbsent(federation.getKey(), federationId -> new ArrayList<>())
+                            .add(internalId);
+
+            Map<Integer, Callable<List<CloudResource>>> parts = new TreeMap<>();
+            requestParts.forEach((lane, part) ->
+                    parts.put(lane, () -> registrationHandlerService.unshareResources(part, deadline)));
+            return parts;
+        }, this::concatenate);
+    }
+
+    /**
+     * Hands the parts of a request over to their lanes. When all of them have completed, the reply is sent with the
+     * results of the parts which succeeded and the delivery is acknowledged. If the deadline of the request passes
+     * before any of the parts is written, the caller no longer waits, so no reply is sent.
+     *
+     * @param operation the name of the operation, used in the logs
+     * @param split returns the work on the resources of every lane
+     * @param reply converts the results of the parts into the reply
+     */
+    private <T> void submit(String operation, Message request, Channel channel,
+                            Callable<Map<Integer, Callable<T>>> split, Function<List<T>, Message> reply) {
+        long start = System.nanoTime();
+        List<CompletableFuture<T>> futures = new ArrayList<>();
         try {
-            return registrationHandlerService.unshareResources(resourcesToBeUnshared);
+            for (Map.Entry<Integer, Callable<T>> part : split.call().entrySet())
+                futures.add(keyedDispatcher.submit(part.getKey(), part.getValue()));
+        } catch (DeadlineExceededException e) {
+            expired(e);
+            acknowledge(request, channel);
+            return;
         } catch (Exception e) {
-            log.info("Exception thrown during unsharing platform resources", e);
+            // Replied with an empty list, like the requests whose processing failed
+            log.info("Exception thrown during " + operation, e);
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).whenComplete((done, e) -> {
+            List<T> results = new ArrayList<>();
+            DeadlineExceededException deadlineExceeded = null;
+            for (CompletableFuture<T> future : futures) {
+                try {
+                    results.add(future.join());
+                } catch (CompletionException failure) {
+                    if (failure.getCause() instanceof DeadlineExceededException)
+                        deadlineExceeded = (DeadlineExceededException) failure.getCause();
+                    else
+                        log.info("Exception thrown during " + operation, failure.getCause());
+                }
+            }
+
+            try {
+                if (deadlineExceeded != null)
+                    expired(deadlineExceeded);
+                else
+                    sendReply(request, reply.apply(results));
+            } catch (RuntimeException failure) {
+                log.warn("Could not reply to the " + operation + " request", failure);
+            } finally {
+                acknowledge(request, channel);
+                listenerLatencyRecorder.record(request.getMessageProperties().getConsumerQueue(),
+                        (System.nanoTime() - start) / 1e6);
+            }
+        });
+    }
+
+    /**
+     * @return the deadline of the request, which is checked here too, so that an expired request does not wait for
+     * its lane
+     */
+    private Deadline deadlineOf(Message request, String operation) {
+        MessageProperties properties = request.getMessageProperties();
+        Deadline deadline = Deadline.of(properties.getHeaders().get(Deadline.HEADER), properties.getTimestamp(),
+                replyTimeout, clockSkewTolerance);
+        deadline.check(operation);
+        return deadline;
+    }
+
+    /**
+     * Sends the reply like the listener container does for the listeners which return it
+     */
+    private void sendReply(Message request, Message reply) {
+        MessageProperties properties = request.getMessageProperties();
+        if (properties.getReplyTo() == null)
+            return;
+
+        byte[] correlationId = properties.getCorrelationId();
+        if (correlationId == null && properties.getMessageId() != null)
+            correlationId = properties.getMessageId().getBytes(StandardCharsets.UTF_8);
+        reply.getMessageProperties().setCorrelationId(correlationId);
+
+        Address replyTo = new Address(properties.getReplyTo());
+        rabbitTemplate.send(replyTo.getExchangeName(), replyTo.getRoutingKey(), reply);
+    }
+
+    private void acknowledge(Message request, Channel channel) {
+        long deliveryTag = request.getMessageProperties().getDeliveryTag();
+        try {
+            channel.basicAck(deliveryTag, false);
+        } catch (IOException | RuntimeException e) {
+            // E.g. the channel is closed, so the broker redelivers the request
+            log.warn("Could not acknowledge the Registration Handler request " + deliveryTag, e);
         }
+    }
+
+    private <T> Message concatenate(List<List<T>> results) {
+        List<T> reply = new ArrayList<>();
+        for (List<T> result : results)
+            reply.addAll(result);
+        return replyConverter.toMessage(reply, new MessageProperties());
+    }
 
-        return new ArrayList<>();
+    private void expired(DeadlineExceededException e) {
+        counterService.increment("platformRegistry.deadline.skipped");
+        log.info(e.getMessage());
     }
 }
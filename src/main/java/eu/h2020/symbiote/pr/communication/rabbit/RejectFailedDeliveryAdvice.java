@@ -0,0 +1,56 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Rejects the deliveries whose listener failed, in the containers which acknowledge manually. Their listeners hand
+ * the deliveries over to a batcher or a dispatcher, after which they are acknowledged. If the listener fails before that, e.g. because the
+ * message cannot be converted, nobody acknowledges the delivery, since the container does not reject anything in the
+ * MANUAL mode, and it holds its prefetch slot until the channel is closed.
+ *
+ * The deliveries are rejected without requeueing, like the failed deliveries of the other containers.
+ */
+@Component
+public class RejectFailedDeliveryAdvice implements MethodInterceptor {
+    private static Log log = LogFactory.getLog(RejectFailedDeliveryAdvice.class);
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        try {
+            return invocation.proceed();
+        } catch (Throwable e) {
+            reject(invocation.getArguments());
+            throw e;
+        }
+    }
+
+    private static void reject(Object[] arguments) {
+        Channel channel = null;
+        Message message = null;
+        for (Object argument : arguments) {
+            if (argument instanceof Channel)
+                channel = (Channel) argument;
+            else if (argument instanceof Message)
+                message = (Message) argument;
+        }
+
+        if (channel == null || message == null)
+            return;
+
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        try {
+            channel.basicNack(deliveryTag, false, false);
+        } catch (IOException | RuntimeException e) {
+            // E.g. the channel is closed, so the broker redelivers the message anyway
+            log.warn("Could not reject the failed delivery " + deliveryTag, e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import com.rabbitmq.client.Channel;
+import eu.h2020.symbiote.pr.services.SubscriptionManagerService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects the messages received by the {@link SubscriptionManagerListener} and applies them in batches. A batch is
+ * applied when it reaches the batch size or when its first message has waited for the batch timeout. The messages
+ * of a batch are applied in the order they were received, with a single read and a single bulk write. The deliveries
+ * are acknowledged only after the batch has been applied.
+ *
+ * The batches are only collected under the lock of the batcher. They are applied and acknowledged by a single applier
+ * thread in the order they were completed, so the consumers can keep adding messages to the next batch meanwhile.
+ * The deliveries are acknowledged only by the applier, so a consumer gets at most its prefetch ahead of it.
+ *
+ * The add/update and the remove messages arrive in different channels and the containers may run several consumers,
+ * so the last delivery tag is kept for every channel of the batch.
+ *
+ * The time spent on applying a batch is split evenly among its messages and recorded for the queues they were
+ * consumed from, so that the ListenerConcurrencyController sizes the prefetch by the actual processing latency.
+ */
+@Component
+public class SubscriptionManagerBatcher implements DeliveryBatcher {
+    private static Log log = LogFactory.getLog(SubscriptionManagerBatcher.class);
+
+    private SubscriptionManagerService subscriptionManagerService;
+    private ListenerLatencyRecorder listenerLatencyRecorder;
+    private int batchSize;
+    private long batchTimeout;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService applier;
+
+    private List<Object> pending = new ArrayList<>();
+    private Map<Channel, Long> lastDeliveryTags = new IdentityHashMap<>();
+    private Set<String> queues = new HashSet<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * The batches are applied one at a time by the applier, so the work on the same resources never runs
+     * concurrently. The Registration Handler requests touch only the resources of the platform, never the ones of the
+     * other platforms, which are synced from the Subscription Manager.
+     */
+    @Autowired
+    public SubscriptionManagerBatcher(SubscriptionManagerService subscriptionManagerService,
+                                      ListenerLatencyRecorder listenerLatencyRecorder,
+                                      @Value("${symbiote.cloud.platformRegistry.subscriptionManager.batchSize:100}")
+                                              int batchSize,
+                                      @Value("${symbiote.cloud.platformRegistry.subscriptionManager.batchTimeout:50}")
+                                              long batchTimeout) {
+        this.subscriptionManagerService = subscriptionManagerService;
+        this.listenerLatencyRecorder = listenerLatencyRecorder;
+
+        Assert.isTrue(batchSize > 0, "The batchSize should be positive");
+        this.batchSize = batchSize;
+
+        Assert.isTrue(batchTimeout > 0, "The batchTimeout should be positive");
+        this.batchTimeout = batchTimeout;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-manager-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.applier = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "subscription-manager-applier");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a received message to the current batch. The delivery should be acknowledged manually, which is done
+     * when the batch is applied.
+     *
+     * @param message a ResourcesAddedOrUpdatedMessage or a ResourcesDeletedMessage
+     * @param channel the channel the message was received from
+     * @param deliveryTag the delivery tag of the message
+     * @param queue the queue the message was consumed from
+     */
+    public synchronized void add(Object message, Channel channel, long deliveryTag, String queue) {
+        pending.add(message);
+        lastDeliveryTags.put(channel, deliveryTag);
+        queues.add(queue);
+
+        if (pending.size() >= batchSize)
+            flush();
+        else if (scheduledFlush == null)
+            scheduledFlush = scheduler.schedule(this::flush, batchTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands the pending messages over to the applier, which applies them and acknowledges all their deliveries at
+     * once. The batch is queued while holding the lock, so that the batches are applied in the order they were
+     * completed.
+     */
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+
+        if (pending.isEmpty())
+            return;
+
+        List<Object> batch = pending;
+        Map<Channel, Long> batchDeliveryTags = lastDeliveryTags;
+        Set<String> batchQueues = queues;
+        pending = new ArrayList<>();
+        lastDeliveryTags = new IdentityHashMap<>();
+        queues = new HashSet<>();
+
+        try {
+            applier.execute(() -> applyAndAcknowledge(batch, batchDeliveryTags, batchQueues));
+        } catch (RejectedExecutionException e) {
+            // Stopping, so the broker redelivers the messages after the channels are closed
+            log.warn("Could not apply the " + batch.size() + " Subscription Manager messages while stopping");
+        }
+    }
+
+    @Override
+    public boolean drain(long timeout) throws InterruptedException {
+        flush();
+        try {
+            // The applier runs the batches in order, so this completes after all the batches handed over so far
+            applier.submit(() -> { }).get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        flush();
+        scheduler.shutdownNow();
+        applier.shutdown();
+        if (!applier.awaitTermination(batchTimeout + 10000, TimeUnit.MILLISECONDS))
+            log.warn("Stopped before all the Subscription Manager batches were applied");
+    }
+
+    private void applyAndAcknowledge(List<Object> batch, Map<Channel, Long> batchDeliveryTags,
+                                     Set<String> batchQueues) {
+        long start = System.nanoTime();
+        if (!apply(batch)) {
+            // A single bad message should not prevent the rest of the batch from being applied
+            log.info("Applying the " + batch.size() + " messages of the batch one by one");
+            for (Object message : batch)
+                apply(Collections.singletonList(message));
+        }
+
+        double millisPerMessage = (System.nanoTime() - start) / 1e6 / batch.size();
+        for (String queue : batchQueues)
+            listenerLatencyRecorder.record(queue, millisPerMessage);
+
+        // The deliveries of a channel are acknowledged in order, so the last tag covers the whole batch. The failed
+        // messages are acknowledged too, like the listener did before the batching
+        for (Map.Entry<Channel, Long> entry : batchDeliveryTags.entrySet()) {
+            try {
+                entry.getKey().basicAck(entry.getValue(), true);
+            } catch (IOException | RuntimeException e) {
+                // E.g. the channel of a stopped consumer is closed and the broker redelivers its messages
+                log.warn("Could not acknowledge the Subscription Manager messages up to " + entry.getValue(), e);
+            }
+        }
+    }
+
+    private boolean apply(List<Object> messages) {
+        try {
+            subscriptionManagerService.applyFederationChanges(messages);
+            return true;
+        } catch (Exception e) {
+            // ToDo: rework this to return proper error messages
+            log.info("Exception thrown during applying " + messages.size() + " Subscription Manager messages", e);
+            return false;
+        }
+    }
+}
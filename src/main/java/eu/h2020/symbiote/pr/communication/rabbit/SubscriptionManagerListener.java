@@ -1,13 +1,15 @@
 package eu.h2020.symbiote.pr.communication.rabbit;
 
+import com.rabbitmq.client.Channel;
 import eu.h2020.symbiote.cloud.model.internal.ResourcesAddedOrUpdatedMessage;
 import eu.h2020.symbiote.cloud.model.internal.ResourcesDeletedMessage;
-import eu.h2020.symbiote.pr.services.SubscriptionManagerService;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.amqp.rabbit.annotation.*;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
 
 /**
@@ -20,18 +22,24 @@ import org.springframework.stereotype.Component;
 public class SubscriptionManagerListener {
     private static Log log = LogFactory.getLog(SubscriptionManagerListener.class);
 
-    private SubscriptionManagerService subscriptionManagerService;
+    private SubscriptionManagerBatcher subscriptionManagerBatcher;
 
     @Autowired
-    public SubscriptionManagerListener(SubscriptionManagerService subscriptionManagerService) {
-        this.subscriptionManagerService = subscriptionManagerService;
+    public SubscriptionManagerListener(SubscriptionManagerBatcher subscriptionManagerBatcher) {
+        this.subscriptionManagerBatcher = subscriptionManagerBatcher;
     }
 
     /**
-     * Spring AMQP Listener for listening to new FederationResources updates from Subscription Manager.
+     * Spring AMQP Listener for listening to new FederationResources updates from Subscription Manager. The updates
+     * are applied in batches by the {@link SubscriptionManagerBatcher}, which also acknowledges them.
      * @param resourcesAddedOrUpdated message received from Subscription Manager
+     * @param channel the channel the message was received from
+     * @param deliveryTag the delivery tag of the message
+     * @param queue the queue the message was consumed from
      */
     @RabbitListener(
+            containerFactory = "subscriptionManagerListenerContainerFactory",
+            group = ListenerConcurrencyController.SUBSCRIPTION_MANAGER_GROUP,
             bindings = @QueueBinding(
                     value = @Queue(
                             value = "${rabbit.queueName.platformRegistry.addOrUpdateFederatedResources}",
@@ -52,24 +60,27 @@ public class SubscriptionManagerListener {
                             type = "${rabbit.exchange.platformRegistry.type}"),
                     key = "${rabbit.routingKey.platformRegistry.addOrUpdateFederatedResources}")
     )
-    public void addOrUpdateFederatedResources(ResourcesAddedOrUpdatedMessage resourcesAddedOrUpdated) {
+    public void addOrUpdateFederatedResources(ResourcesAddedOrUpdatedMessage resourcesAddedOrUpdated, Channel channel,
+                                              @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                              @Header(AmqpHeaders.CONSUMER_QUEUE) String queue) {
         log.trace("Received new federated resources from Subscription Manager: " +
                 ReflectionToStringBuilder.toString(resourcesAddedOrUpdated));
 
-        // ToDo: rework this to return proper error messages and/or do not requeue the request
-        try {
-            subscriptionManagerService.addOrUpdateFederationResources(resourcesAddedOrUpdated);
-        } catch (Exception e) {
-            log.info("Exception thrown during saving federated resources", e);
-        }
+        subscriptionManagerBatcher.add(resourcesAddedOrUpdated, channel, deliveryTag, queue);
     }
 
 
     /**
-     * Spring AMQP Listener for listening to new FederationResources delete events from Subscription Manager.
+     * Spring AMQP Listener for listening to new FederationResources delete events from Subscription Manager. The
+     * events are applied in batches by the {@link SubscriptionManagerBatcher}, which also acknowledges them.
      * @param resourcesDeleted message received from Subscription Manager
+     * @param channel the channel the message was received from
+     * @param deliveryTag the delivery tag of the message
+     * @param queue the queue the message was consumed from
      */
     @RabbitListener(
+            containerFactory = "subscriptionManagerListenerContainerFactory",
+            group = ListenerConcurrencyController.SUBSCRIPTION_MANAGER_GROUP,
             bindings = @QueueBinding(
                     value = @Queue(
                             value = "${rabbit.queueName.platformRegistry.removeFederatedResources}",
@@ -90,15 +101,12 @@ public class SubscriptionManagerListener {
                             type = "${rabbit.exchange.platformRegistry.type}"),
                     key = "${rabbit.routingKey.platformRegistry.removeFederatedResources}")
     )
-    public void deleteResources(ResourcesDeletedMessage resourcesDeleted) {
+    public void deleteResources(ResourcesDeletedMessage resourcesDeleted, Channel channel,
+                                @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                @Header(AmqpHeaders.CONSUMER_QUEUE) String queue) {
         log.trace("Received message from Subscription Manager to remove resources: " +
                 ReflectionToStringBuilder.toString(resourcesDeleted));
 
-        // ToDo: rework this to return proper error messages and/or do not requeue the request
-        try {
-            subscriptionManagerService.removeFederationResources(resourcesDeleted);
-        } catch (Exception e) {
-            log.info("Exception thrown during removing federated resources", e);
-        }
+        subscriptionManagerBatcher.add(resourcesDeleted, channel, deliveryTag, queue);
     }
 }
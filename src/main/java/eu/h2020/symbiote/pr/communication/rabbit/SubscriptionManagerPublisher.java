@@ -0,0 +1,187 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.cloud.model.internal.ResourcesAddedOrUpdatedMessage;
+import eu.h2020.symbiote.cloud.model.internal.ResourcesDeletedMessage;
+import eu.h2020.symbiote.pr.model.OutboxEntry;
+import eu.h2020.symbiote.pr.repositories.OutboxRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Sends the notifications about the platform resources to the Subscription Manager. Big notifications are split into
+ * chunks with at most maxChunkResources resources and, if possible, at most maxChunkBytes bytes. Every chunk carries
+ * the id of the notification it belongs to, its index and the total number of chunks, so that the receiver can tell
+ * when a notification is complete. The chunks are stored in the outbox and published by the {@link OutboxRelay}, so
+ * the callers do not wait for the broker. They should notify only about changes which have already been stored.
+ *
+ * The delivery is at least once. The database of this version does not write several documents atomically, so the
+ * outbox entries are stored right after the changes, and a crash between the two writes loses the notification. Once
+ * stored, a chunk is published until the broker confirms it, so a chunk is delivered again if its confirmation is lost
+ * or the lease of the relay expires while publishing. The receivers should skip the chunks whose batch id and chunk
+ * index they have already applied.
+ */
+@Component
+public class SubscriptionManagerPublisher {
+    private static Log log = LogFactory.getLog(SubscriptionManagerPublisher.class);
+
+    /**
+     * The id of the notification the chunk belongs to. Together with the index of the chunk it identifies a delivery,
+     * so the receivers use it for dropping the duplicates
+     */
+    public static final String BATCH_ID_HEADER = "x-batch-id";
+
+    /**
+     * The index of the chunk in the notification, starting from 0
+     */
+    public static final String CHUNK_INDEX_HEADER = "x-chunk-index";
+
+    /**
+     * The number of the chunks of the notification
+     */
+    public static final String CHUNK_COUNT_HEADER = "x-chunk-count";
+
+    private RabbitTemplate rabbitTemplate;
+    private OutboxRepository outboxRepository;
+    private OutboxRelay outboxRelay;
+    private String subscriptionManagerExchange;
+    private String smAddOrUpdateFederatedResourcesKey;
+    private String smRemoveFederatedResourcesKey;
+    private int maxChunkResources;
+    private int maxChunkBytes;
+
+    @Autowired
+    public SubscriptionManagerPublisher(RabbitTemplate rabbitTemplate,
+                                        OutboxRepository outboxRepository,
+                                        OutboxRelay outboxRelay,
+                                        @Value("${rabbit.exchange.subscriptionManager.name}")
+                                                String subscriptionManagerExchange,
+                                        @Value("${rabbit.routingKey.subscriptionManager.addOrUpdateFederatedResources}")
+                                                String smAddOrUpdateFederatedResourcesKey,
+                                        @Value("${rabbit.routingKey.subscriptionManager.removeFederatedResources}")
+                                                String smRemoveFederatedResourcesKey,
+                                        @Value("${symbiote.cloud.platformRegistry.notifications.maxChunkResources:1000}")
+                                                int maxChunkResources,
+                                        @Value("${symbiote.cloud.platformRegistry.notifications.maxChunkBytes:1048576}")
+                                                int maxChunkBytes) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.outboxRepository = outboxRepository;
+        this.outboxRelay = outboxRelay;
+
+        Assert.notNull(subscriptionManagerExchange, "The subscriptionManagerExchange should not be null");
+        this.subscriptionManagerExchange = subscriptionManagerExchange;
+
+        Assert.notNull(smAddOrUpdateFederatedResourcesKey, "The smAddOrUpdateFederatedResourcesKey should not be null");
+        this.smAddOrUpdateFederatedResourcesKey = smAddOrUpdateFederatedResourcesKey;
+
+        Assert.notNull(smRemoveFederatedResourcesKey, "The smRemoveFederatedResourcesKey should not be null");
+        this.smRemoveFederatedResourcesKey = smRemoveFederatedResourcesKey;
+
+        Assert.isTrue(maxChunkResources > 0, "The maxChunkResources should be positive");
+        this.maxChunkResources = maxChunkResources;
+
+        Assert.isTrue(maxChunkBytes > 0, "The maxChunkBytes should be positive");
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    /**
+     * Informs the Subscription Manager about new or updated resources
+     *
+     * @param federatedResources the new or updated resources. Nothing is sent if it is empty
+     */
+    public void publishAddedOrUpdated(List<FederatedResource> federatedResources) {
+        if (federatedResources.isEmpty())
+            return;
+
+        publish(smAddOrUpdateFederatedResourcesKey,
+                chunk(federatedResources, ResourcesAddedOrUpdatedMessage::new));
+    }
+
+    /**
+     * Informs the Subscription Manager about removed resources
+     *
+     * @param symbioteIds the symbioteIds of the resources in the federations they are removed from
+     */
+    public void publishDeleted(Set<String> symbioteIds) {
+        publish(smRemoveFederatedResourcesKey,
+                chunk(new ArrayList<>(symbioteIds), ids -> new ResourcesDeletedMessage(new HashSet<>(ids))));
+    }
+
+    /**
+     * Splits the items in chunks and converts them to messages. A notification without items is sent as a single
+     * empty chunk.
+     */
+    <T> List<Message> chunk(List<T> items, Function<List<T>, Object> payloadFactory) {
+        List<Message> chunks = new ArrayList<>();
+
+        if (items.isEmpty())
+            chunks.add(toMessage(payloadFactory.apply(items)));
+
+        for (int from = 0; from < items.size(); from += maxChunkResources)
+            addChunks(items.subList(from, Math.min(from + maxChunkResources, items.size())), payloadFactory, chunks);
+
+        String batchId = UUID.randomUUID().toString();
+        for (int i = 0; i < chunks.size(); i++) {
+            MessageProperties properties = chunks.get(i).getMessageProperties();
+            properties.setHeader(BATCH_ID_HEADER, batchId);
+            properties.setHeader(CHUNK_INDEX_HEADER, i);
+            properties.setHeader(CHUNK_COUNT_HEADER, chunks.size());
+        }
+        return chunks;
+    }
+
+    /**
+     * Converts the items to a message and splits them in halves while the message is too big. A single item which
+     * is too big is sent on its own.
+     */
+    private <T> void addChunks(List<T> items, Function<List<T>, Object> payloadFactory, List<Message> chunks) {
+        Message message = toMessage(payloadFactory.apply(new ArrayList<>(items)));
+
+        if (message.getBody().length <= maxChunkBytes || items.size() == 1) {
+            if (message.getBody().length > maxChunkBytes)
+                log.debug("A notification item of " + message.getBody().length + " bytes exceeds the maxChunkBytes");
+            chunks.add(message);
+            return;
+        }
+
+        int half = items.size() / 2;
+        addChunks(items.subList(0, half), payloadFactory, chunks);
+        addChunks(items.subList(half, items.size()), payloadFactory, chunks);
+    }
+
+    private Message toMessage(Object payload) {
+        return rabbitTemplate.getMessageConverter().toMessage(payload, new MessageProperties());
+    }
+
+    /**
+     * Numbers the chunks in their order, stores all of them in the outbox with a single insert and wakes up the relay
+     */
+    private void publish(String routingKey, List<Message> chunks) {
+        List<OutboxEntry> entries = chunks.stream()
+                .map(chunk -> new OutboxEntry(subscriptionManagerExchange, routingKey,
+                        chunk.getMessageProperties().getContentType(),
+                        chunk.getMessageProperties().getContentEncoding(),
+                        chunk.getMessageProperties().getHeaders(),
+                        chunk.getBody()))
+                .collect(Collectors.toList());
+
+        long sequence = outboxRepository.reserveSequences(entries.size());
+        for (OutboxEntry entry : entries)
+            entry.setSequence(sequence++);
+
+        outboxRepository.insert(entries);
+        outboxRelay.wakeUp();
+        log.debug("Stored " + chunks.size() + " chunks to " + routingKey + " in the outbox");
+    }
+}
@@ -0,0 +1,180 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import com.rabbitmq.client.Channel;
+import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
+import eu.h2020.symbiote.pr.services.TrustManagerService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects the TrustEntries received by the {@link TrustManagerListener} and applies them in batches. A batch is
+ * applied when it reaches the batch size or when its first entry has waited for the batch timeout. The deliveries are
+ * acknowledged only after the batch has been written to the database. The batches are applied by a separate thread,
+ * so the consumers are not blocked by the database while a batch is written.
+ *
+ * The invalid entries are skipped by the {@link TrustManagerService}. If the bulk update fails, the entries of the
+ * batch are applied one by one, so a single bad entry does not drop the rest of the batch.
+ *
+ * The container may run several consumers, so the last delivery tag is kept for every channel of the batch.
+ *
+ * The time spent on applying a batch is split evenly among its entries and recorded for the queues they were consumed
+ * from, so that the ListenerConcurrencyController sizes the prefetch by the actual processing latency.
+ */
+@Component
+public class TrustEntryBatcher implements DeliveryBatcher {
+    private static Log log = LogFactory.getLog(TrustEntryBatcher.class);
+
+    private TrustManagerService trustManagerService;
+    private ListenerLatencyRecorder listenerLatencyRecorder;
+    private int batchSize;
+    private long batchTimeout;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService applier;
+
+    private List<TrustEntry> pending = new ArrayList<>();
+    private Map<Channel, Long> lastDeliveryTags = new IdentityHashMap<>();
+    private Set<String> queues = new HashSet<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    @Autowired
+    public TrustEntryBatcher(TrustManagerService trustManagerService,
+                             ListenerLatencyRecorder listenerLatencyRecorder,
+                             @Value("${symbiote.cloud.platformRegistry.trust.batchSize:500}") int batchSize,
+                             @Value("${symbiote.cloud.platformRegistry.trust.batchTimeout:100}") long batchTimeout) {
+        this.trustManagerService = trustManagerService;
+        this.listenerLatencyRecorder = listenerLatencyRecorder;
+
+        Assert.isTrue(batchSize > 0, "The batchSize should be positive");
+        this.batchSize = batchSize;
+
+        Assert.isTrue(batchTimeout > 0, "The batchTimeout should be positive");
+        this.batchTimeout = batchTimeout;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trust-entry-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.applier = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trust-entry-applier");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a received TrustEntry to the current batch. The delivery should be acknowledged manually, which is done
+     * when the batch is applied.
+     *
+     * @param trustEntry the received entry
+     * @param channel the channel the entry was received from
+     * @param deliveryTag the delivery tag of the entry
+     * @param queue the queue the entry was consumed from
+     */
+    public synchronized void add(TrustEntry trustEntry, Channel channel, long deliveryTag, String queue) {
+        // The delivery tags are only valid in their channel, e.g. after a consumer restart they start over
+        pending.add(trustEntry);
+        lastDeliveryTags.put(channel, deliveryTag);
+        queues.add(queue);
+
+        if (pending.size() >= batchSize)
+            flush();
+        else if (scheduledFlush == null)
+            scheduledFlush = scheduler.schedule(this::flush, batchTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hands the pending entries over to the applier, which applies them and acknowledges all their deliveries at
+     * once. The batch is queued while holding the lock, so that the batches are applied in the order they were
+     * completed.
+     */
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+
+        if (pending.isEmpty())
+            return;
+
+        List<TrustEntry> batch = pending;
+        Map<Channel, Long> batchDeliveryTags = lastDeliveryTags;
+        Set<String> batchQueues = queues;
+        pending = new ArrayList<>();
+        lastDeliveryTags = new IdentityHashMap<>();
+        queues = new HashSet<>();
+
+        try {
+            applier.execute(() -> applyAndAcknowledge(batch, batchDeliveryTags, batchQueues));
+        } catch (RejectedExecutionException e) {
+            // Stopping, so the broker redelivers the entries after the channels are closed
+            log.warn("Could not apply the " + batch.size() + " TrustEntries while stopping");
+        }
+    }
+
+    @Override
+    public boolean drain(long timeout) throws InterruptedException {
+        flush();
+        try {
+            // The applier runs the batches in order, so this completes after all the batches handed over so far
+            applier.submit(() -> { }).get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        flush();
+        scheduler.shutdownNow();
+        applier.shutdown();
+        if (!applier.awaitTermination(batchTimeout + 10000, TimeUnit.MILLISECONDS))
+            log.warn("Stopped before all the TrustEntry batches were applied");
+    }
+
+    private void applyAndAcknowledge(List<TrustEntry> batch, Map<Channel, Long> batchDeliveryTags,
+                                     Set<String> batchQueues) {
+        long start = System.nanoTime();
+        if (!apply(batch)) {
+            // A failed bulk update should not drop the valid entries of the batch
+            log.info("Applying the " + batch.size() + " TrustEntries of the batch one by one");
+            for (TrustEntry trustEntry : batch)
+                apply(Collections.singletonList(trustEntry));
+        }
+
+        double millisPerEntry = (System.nanoTime() - start) / 1e6 / batch.size();
+        for (String queue : batchQueues)
+            listenerLatencyRecorder.record(queue, millisPerEntry);
+
+        // The deliveries of a channel are acknowledged in order, so the last tag covers the whole batch. The failed
+        // entries are acknowledged too, like the listener did before the batching
+        for (Map.Entry<Channel, Long> entry : batchDeliveryTags.entrySet()) {
+            try {
+                entry.getKey().basicAck(entry.getValue(), true);
+            } catch (IOException | RuntimeException e) {
+                // E.g. the channel of a stopped consumer is closed and the broker redelivers its entries
+                log.warn("Could not acknowledge the TrustEntries up to " + entry.getValue(), e);
+            }
+        }
+    }
+
+    private boolean apply(List<TrustEntry> trustEntries) {
+        try {
+            trustManagerService.updateFedResAdaptiveResourceTrust(trustEntries);
+            return true;
+        } catch (Exception e) {
+            log.info("Exception thrown during updating trust of " + trustEntries.size() + " federated resources", e);
+            return false;
+        }
+    }
+}
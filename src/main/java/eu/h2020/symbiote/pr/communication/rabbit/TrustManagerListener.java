@@ -1,12 +1,14 @@
 package eu.h2020.symbiote.pr.communication.rabbit;
 
+import com.rabbitmq.client.Channel;
 import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
-import eu.h2020.symbiote.pr.services.TrustManagerService;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.amqp.rabbit.annotation.*;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
 
 /**
@@ -19,18 +21,26 @@ import org.springframework.stereotype.Component;
 public class TrustManagerListener {
     private static Log log = LogFactory.getLog(TrustManagerListener.class);
 
-    private TrustManagerService trustManagerService;
+    private TrustEntryBatcher trustEntryBatcher;
 
     @Autowired
-    public TrustManagerListener(TrustManagerService trustManagerService) {
-        this.trustManagerService = trustManagerService;
+    public TrustManagerListener(TrustEntryBatcher trustEntryBatcher) {
+        this.trustEntryBatcher = trustEntryBatcher;
     }
 
     /**
-     * Spring AMQP Listener for listening to new FederationResources updates from Trust Manager.
+     * Spring AMQP Listener for listening to new FederationResources updates from Trust Manager. The updates are
+     * applied in batches by the {@link TrustEntryBatcher}, which also acknowledges them. If the listener fails
+     * before the entry is added, e.g. because the message cannot be converted, the {@link RejectFailedDeliveryAdvice}
+     * rejects the delivery.
      * @param resourceTrustUpdated message received from Trust Manager
+     * @param channel the channel the message was received from
+     * @param deliveryTag the delivery tag of the message
+     * @param queue the queue the message was consumed from
      */
     @RabbitListener(
+            containerFactory = "trustListenerContainerFactory",
+            group = ListenerConcurrencyController.TRUST_MANAGER_GROUP,
             bindings = @QueueBinding(
                     value = @Queue(
                             value = "${rabbit.queueName.trust.updateAdaptiveResourceTrust}",
@@ -52,16 +62,13 @@ public class TrustManagerListener {
                             type = "${rabbit.exchange.trust.type}"),
                     key = "${rabbit.routingKey.trust.updateAdaptiveResourceTrust}")
     )
-    public void updateAdaptiveResourceTrust(TrustEntry resourceTrustUpdated) {
-        log.info("Received updated adaptive trust of federated resource from Trust Manager: " +
+    public void updateAdaptiveResourceTrust(TrustEntry resourceTrustUpdated, Channel channel,
+                                            @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                                            @Header(AmqpHeaders.CONSUMER_QUEUE) String queue) {
+        log.debug("Received updated adaptive trust of federated resource from Trust Manager: " +
                 ReflectionToStringBuilder.toString(resourceTrustUpdated));
 
-        // ToDo: rework this to return proper error messages and/or do not requeue the request
-        try {
-            trustManagerService.updateFedResAdaptiveResourceTrust(resourceTrustUpdated);
-        } catch (Exception e) {
-            log.info("Exception thrown during updating trust of federated resources", e);
-        }
+        trustEntryBatcher.add(resourceTrustUpdated, channel, deliveryTag, queue);
     }
 
 }
@@ -5,6 +5,8 @@ import com.querydsl.core.types.Predicate;
 import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
 import eu.h2020.symbiote.cloud.model.internal.QFederatedResource;
 import eu.h2020.symbiote.model.cim.*;
+import eu.h2020.symbiote.pr.repositories.ResourcePredicates;
+import eu.h2020.symbiote.pr.services.AuthorizationService;
 import eu.h2020.symbiote.pr.services.SearchService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -13,13 +15,16 @@ import org.springframework.data.domain.Sort;
 import org.springframework.data.geo.Circle;
 import org.springframework.data.querydsl.binding.QuerydslPredicate;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -41,23 +46,64 @@ public class SearchController {
         this.searchService = searchService;
     }
 
+    /**
+     * Endpoint for listing all the federated resources
+     *
+     * @param httpHeaders       request headers
+     * @param limit             the maximum number of resources in the response. If neither the limit nor the
+     *                          continuation_token is specified, all the resources are returned
+     * @param continuationToken the token included in the x-continuation-token header of the previous page
+     * @param stream            if true or if application/x-ndjson is accepted, the resources are streamed one per
+     *                          line. The limit and the continuation_token are ignored in this case
+     * @param response          the response where the resources are streamed to
+     * @return ResponseEntity   query result as body or null along with appropriate error HTTP status code
+     */
     @GetMapping("/list_resources")
-    public ResponseEntity listAllResources(@RequestHeader HttpHeaders httpHeaders) {
+    public ResponseEntity listAllResources(@RequestHeader HttpHeaders httpHeaders,
+                                           @RequestParam(value="limit", required = false) Integer limit,
+                                           @RequestParam(value="continuation_token", required = false) String continuationToken,
+                                           @RequestParam(value="stream", required = false) Boolean stream,
+                                           HttpServletResponse response) {
         log.trace("Request to /list_resources");
 
-        return searchService.listByPredicate(httpHeaders, null, null, null);
+        if (isStreamRequested(stream, httpHeaders))
+            return searchService.streamByPredicate(httpHeaders, AuthorizationService.LIST_RESOURCES,
+                    null, null, null, response);
+
+        return searchService.listByPredicate(httpHeaders, AuthorizationService.LIST_RESOURCES,
+                null, null, null, limit, continuationToken);
     }
 
+    /**
+     * Endpoint for listing the federated resources shared in a federation
+     *
+     * @param httpHeaders       request headers
+     * @param federationId      the id of the federation
+     * @param limit             the maximum number of resources in the response
+     * @param continuationToken the token included in the x-continuation-token header of the previous page
+     * @param stream            if true or if application/x-ndjson is accepted, the resources are streamed one per
+     *                          line. The limit and the continuation_token are ignored in this case
+     * @param response          the response where the resources are streamed to
+     * @return ResponseEntity   query result as body or null along with appropriate error HTTP status code
+     */
     @GetMapping("/list_federation_resources/{federationId}")
     public ResponseEntity listFederationResources(@RequestHeader HttpHeaders httpHeaders,
-                                                  @PathVariable String federationId) {
+                                                  @PathVariable String federationId,
+                                                  @RequestParam(value="limit", required = false) Integer limit,
+                                                  @RequestParam(value="continuation_token", required = false) String continuationToken,
+                                                  @RequestParam(value="stream", required = false) Boolean stream,
+                                                  HttpServletResponse response) {
         log.trace("Request to /list_federation_resources");
 
         BooleanBuilder builder=new BooleanBuilder();
-        QFederatedResource federatedResource = QFederatedResource.federatedResource;
-        builder.and(federatedResource.federatedResourceInfoMap.containsKey(federationId));
+        builder.and(ResourcePredicates.sharedInAnyOf(Collections.singletonList(federationId)));
+
+        if (isStreamRequested(stream, httpHeaders))
+            return searchService.streamByPredicate(httpHeaders, AuthorizationService.LIST_FEDERATION_RESOURCES,
+                    builder, null, null, response);
 
-        return searchService.listByPredicate(httpHeaders, builder, null, null);
+        return searchService.listByPredicate(httpHeaders, AuthorizationService.LIST_FEDERATION_RESOURCES,
+                builder, null, null, limit, continuationToken);
     }
 
     /**
@@ -75,9 +121,19 @@ public class SearchController {
      * @param location_name     name of resource location; can be a set of different locations
      * @param location_lat      latitude of resource location; it concerns WGS84 locations for devices
      * @param location_long     longitude of resource location; it concerns WGS84 locations for devices
-     * @param max_distance      maximal distance from specified resource latitude and longitude (in meters);
-     *                          the radius used for geospatial queries
+     * @param max_distance      maximal distance from specified resource latitude and longitude; the radius used
+     *                          for geospatial queries. It is the great-circle distance in degrees of arc (one
+     *                          degree is about 111.2 km). Earlier versions measured it as a planar distance on the
+     *                          longitude/latitude plane, which matches for small radii away from the poles, but
+     *                          includes fewer resources for large radii and at high latitudes
      * @param sort              the field to be used for sorting the resources
+     * @param limit             the maximum number of resources in the response. If neither the limit nor the
+     *                          continuation_token is specified, all the matching resources are returned
+     * @param continuationToken the token included in the x-continuation-token header of the previous page. It
+     *                          should be used with the same search parameters
+     * @param stream            if true or if application/x-ndjson is accepted, the resources are streamed one per
+     *                          line. The limit and the continuation_token are ignored in this case
+     * @param response          the response where the resources are streamed to
      * @param httpHeaders request headers
      * @return ResponseEntity   query result as body or null along with appropriate error HTTP status code
      */
@@ -96,7 +152,11 @@ public class SearchController {
                                                    @RequestParam(value = "max_distance", required = false) Double maxDistance,
                                                    @RequestParam(value="resource_trust", required = false) Double resourceTrust,
                                                    @RequestParam(value="adaptive_trust", required = false) Double adaptiveTrust,
-                                                   @RequestParam(value="sort", required = false) String sort
+                                                   @RequestParam(value="sort", required = false) String sort,
+                                                   @RequestParam(value="limit", required = false) Integer limit,
+                                                   @RequestParam(value="continuation_token", required = false) String continuationToken,
+                                                   @RequestParam(value="stream", required = false) Boolean stream,
+                                                   HttpServletResponse response
     ) throws UnsupportedEncodingException {
         log.trace("Request to /search");
 
@@ -128,10 +188,10 @@ public class SearchController {
         }
 
         if(resourceFederations!=null) {//if federatedResource belongs to any of the federations specified
-            BooleanBuilder predicateOnFedIds = new BooleanBuilder();
+            List<String> resourceFederationsDecoded=new ArrayList<>();
             for (String fedId : resourceFederations)
-                predicateOnFedIds.or(federatedResource.federatedResourceInfoMap.containsKey(URLDecoder.decode(fedId,"UTF-8")));
-            builder.and(predicateOnFedIds);
+                resourceFederationsDecoded.add(URLDecoder.decode(fedId,"UTF-8"));
+            builder.and(ResourcePredicates.sharedInAnyOf(resourceFederationsDecoded));
         }
 
         //TODO: fix querydsl problem with instanceOf use to remove the added resourceType field
@@ -169,8 +229,43 @@ public class SearchController {
         if(sort!=null)
             sortOrder= new Sort(new Sort.Order((sort.split(" ", 2)[1].contains("asc")) ? Sort.Direction.ASC : Sort.Direction.DESC, sort.split(" ", 2)[0]));
 
-        return searchService.listByPredicate(httpHeaders, builder, sortOrder, locationNear);
+        if (isStreamRequested(stream, httpHeaders))
+            return searchService.streamByPredicate(httpHeaders, AuthorizationService.SEARCH,
+                    builder, sortOrder, locationNear, response);
+
+        return searchService.listByPredicate(httpHeaders, AuthorizationService.SEARCH,
+                builder, sortOrder, locationNear, limit, continuationToken);
+
+    }
+
+    /**
+     * Endpoint for checking the usage of the indexes of the stored federated resources. It reports the indexes
+     * required by the Platform Registry which are missing and the ones which are not used
+     *
+     * @param httpHeaders       request headers
+     * @return ResponseEntity   the list of the index usage statistics
+     */
+    @GetMapping("/index_stats")
+    public ResponseEntity listIndexUsage(@RequestHeader HttpHeaders httpHeaders) {
+        log.trace("Request to /index_stats");
+
+        return searchService.listIndexUsage(httpHeaders);
+    }
+
+    /**
+     * Checks if the client asked for the streaming mode. Only an explicit application/x-ndjson in the Accept header
+     * counts, wildcards keep the normal response
+     */
+    private static boolean isStreamRequested(Boolean stream, HttpHeaders httpHeaders) {
+        if (Boolean.TRUE.equals(stream))
+            return true;
+
+        for (MediaType mediaType : httpHeaders.getAccept())
+            if (SearchService.NDJSON.getType().equals(mediaType.getType())
+                    && SearchService.NDJSON.getSubtype().equals(mediaType.getSubtype()))
+                return true;
 
+        return false;
     }
 
-}
+}
\ No newline at end of file
@@ -18,27 +18,26 @@ import java.util.Collections;
 public class AuthorizationServiceHelper {
 
     /**
-     * Checks security request and creates service response
+     * Checks security request against the access policies of an endpoint and creates service response
      * @param authorizationService the authorization service
      * @param httpHeaders the httpHeaders of the client's request
+     * @param endpoint the endpoint which is accessed, e.g. {@link AuthorizationService#SEARCH}
      * @return if the status of the returned ResponseEntity is OK, then the access policies were satisfied, the
      * service response was successfully created and the body of the ResponseEntity contains the service response.
      * Otherwise, the body includes some indication of the failure
      */
     public static ResponseEntity checkSecurityRequestAndCreateServiceResponse(AuthorizationService authorizationService,
-                                                                              HttpHeaders httpHeaders) {
-        // Create the service response. If it fails, return appropriate error since there is no need to continue
-        ResponseEntity serviceResponseResult = authorizationService.generateServiceResponse();
-        if (serviceResponseResult.getStatusCode() != HttpStatus.valueOf(200))
-            return serviceResponseResult;
-
-        // Check the proper security headers. If the check fails, return appropriate error since there is no need to continue
+                                                                              HttpHeaders httpHeaders,
+                                                                              String endpoint) {
+        // Check the proper security headers first, so that no service response is signed for the requests which are
+        // rejected anyway
         ResponseEntity checkListResourcesRequestValidity = authorizationService
-                .checkListResourcesRequest(httpHeaders, (String) serviceResponseResult.getBody());
+                .checkListResourcesRequest(httpHeaders, null, endpoint);
+        if (checkListResourcesRequestValidity.getStatusCode() != HttpStatus.OK)
+            return checkListResourcesRequestValidity;
 
-        return checkListResourcesRequestValidity.getStatusCode() != HttpStatus.OK ?
-                checkListResourcesRequestValidity :
-                serviceResponseResult;
+        // Create the service response. If it fails, return appropriate error since there is no need to continue
+        return authorizationService.generateServiceResponse();
     }
 
     /**
@@ -46,12 +45,14 @@ public class AuthorizationServiceHelper {
      * @param response the response sent to the client
      * @param httpHeaders the httpHeaders sent to the client
      * @param httpStatus the httpStatus sent to the client
-     * @param serviceResponse the service response created by the authorizationService
+     * @param serviceResponse the service response created by the authorizationService. It is null if the request was
+     *                        rejected before the service response was created
      * @return the response with the service response integrated to the headers
      */
     public static ResponseEntity addSecurityService(Object response, HttpHeaders httpHeaders,
                                                     HttpStatus httpStatus, String serviceResponse) {
-        httpHeaders.put(SecurityConstants.SECURITY_RESPONSE_HEADER, Collections.singletonList(serviceResponse));
+        if (serviceResponse != null)
+            httpHeaders.put(SecurityConstants.SECURITY_RESPONSE_HEADER, Collections.singletonList(serviceResponse));
         return new ResponseEntity<>(response, httpHeaders, httpStatus);
     }
 }
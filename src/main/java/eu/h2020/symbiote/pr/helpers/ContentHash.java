@@ -0,0 +1,51 @@
+package eu.h2020.symbiote.pr.helpers;
+
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a stable hash of the content of a FederatedResource. The resource is serialized to JSON with sorted
+ * properties and map entries, so equal resources always have the same hash. The adaptiveTrust is excluded, since it
+ * is maintained separately by the Trust Manager.
+ */
+public class ContentHash {
+
+    private static final String ADAPTIVE_TRUST = "adaptiveTrust";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    private ContentHash() {
+    }
+
+    /**
+     * @param federatedResource the resource
+     * @return the hex encoded SHA-256 hash of the content of the resource
+     */
+    public static String of(FederatedResource federatedResource) {
+        ObjectNode content = mapper.valueToTree(federatedResource);
+        content.remove(ADAPTIVE_TRUST);
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(mapper.writeValueAsBytes(content));
+
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException("Could not hash the content of the resource", e);
+        }
+    }
+}
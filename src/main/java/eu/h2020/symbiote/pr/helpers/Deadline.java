@@ -0,0 +1,79 @@
+package eu.h2020.symbiote.pr.helpers;
+
+import java.util.Date;
+
+/**
+ * The time after which the caller of a request no longer waits for its reply. The callers can set it in the
+ * {@link #HEADER} header as epoch milliseconds. Otherwise, it is derived from the timestamp of the message, the reply
+ * timeout and a tolerance for the clock skew, if the message has a timestamp. The timestamp is set by the clock of the
+ * caller, so without the tolerance a caller whose clock is behind by more than the reply timeout would have all its
+ * requests dropped.
+ */
+public class Deadline {
+
+    /**
+     * The header with the deadline of a request in epoch milliseconds
+     */
+    public static final String HEADER = "x-deadline";
+
+    /**
+     * The deadline of the requests which do not have one
+     */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public static Deadline at(long epochMillis) {
+        return new Deadline(epochMillis);
+    }
+
+    /**
+     * @param header the value of the {@link #HEADER} header or null
+     * @param timestamp the timestamp of the message or null
+     * @param replyTimeout how long the callers wait for a reply in milliseconds
+     * @param clockSkewTolerance how far the clock of the caller may be behind in milliseconds. It is only added to
+     *                           the deadlines derived from the timestamp
+     * @return the deadline of the request or {@link #NONE} if it cannot be determined
+     */
+    public static Deadline of(Object header, Date timestamp, long replyTimeout, long clockSkewTolerance) {
+        if (header instanceof Number)
+            return at(((Number) header).longValue());
+
+        if (header != null) {
+            try {
+                return at(Long.parseLong(header.toString().trim()));
+            } catch (NumberFormatException e) {
+                // Fall back to the timestamp
+            }
+        }
+
+        if (timestamp != null)
+            return at(timestamp.getTime() + replyTimeout + clockSkewTolerance);
+
+        return NONE;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+
+    /**
+     * @param operation the operation about to start or continue, used in the message of the exception
+     * @throws DeadlineExceededException if the deadline has passed
+     */
+    public void check(String operation) {
+        long now = System.currentTimeMillis();
+        if (now >= expiresAt)
+            throw new DeadlineExceededException(operation + " was cut short, because its deadline passed " +
+                    (now - expiresAt) + " ms ago");
+    }
+
+    @Override
+    public String toString() {
+        return this == NONE ? "none" : new Date(expiresAt).toString();
+    }
+}
@@ -0,0 +1,11 @@
+package eu.h2020.symbiote.pr.helpers;
+
+/**
+ * Thrown when a request is not processed any further, because its caller no longer waits for the reply
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
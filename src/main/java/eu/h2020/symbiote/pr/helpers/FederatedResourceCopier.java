@@ -0,0 +1,39 @@
+package eu.h2020.symbiote.pr.helpers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+
+import java.io.IOException;
+
+/**
+ * Creates deep copies of FederatedResources. The resource is serialized to a buffer of JSON tokens and a new object
+ * is deserialized from it, so the copy is the same as the one of a JSON round-trip, but without encoding and parsing
+ * any text. This avoids implementing clone() in every Resource and Resource field (e.g. StationarySensor, MobileSensor,
+ * Location, ...). The serializers and deserializers of FederatedResource are resolved only once.
+ */
+public class FederatedResourceCopier {
+
+    private final ObjectMapper mapper;
+    private final ObjectWriter writer;
+    private final ObjectReader reader;
+
+    public FederatedResourceCopier(ObjectMapper mapper) {
+        this.mapper = mapper;
+        this.writer = mapper.writerFor(FederatedResource.class);
+        this.reader = mapper.readerFor(FederatedResource.class);
+    }
+
+    /**
+     * @param federatedResource the resource to be copied
+     * @return a new FederatedResource which does not share any mutable object with the original one
+     * @throws IOException if the resource cannot be serialized or deserialized
+     */
+    public FederatedResource copy(FederatedResource federatedResource) throws IOException {
+        TokenBuffer buffer = new TokenBuffer(mapper, false);
+        writer.writeValue(buffer, federatedResource);
+        return reader.readValue(buffer.asParser());
+    }
+}
@@ -0,0 +1,76 @@
+package eu.h2020.symbiote.pr.helpers;
+
+import org.springframework.util.Assert;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps an exponentially weighted moving average of latencies by key, so that the recent samples weigh more than the
+ * old ones. The average also decays with the time passed since the last sample and halves every halfLife
+ * milliseconds, so that a spike is forgotten when no new samples arrive, e.g. when the traffic stops after it.
+ */
+public class LatencyTracker {
+
+    private static final double WEIGHT = 0.2;
+
+    private long halfLife;
+    private LongSupplier clock;
+    private Map<String, Sample> averages = new ConcurrentHashMap<>();
+
+    /**
+     * @param halfLife the milliseconds in which the average halves without new samples
+     */
+    public LatencyTracker(long halfLife) {
+        this(halfLife, System::currentTimeMillis);
+    }
+
+    /**
+     * @param halfLife the milliseconds in which the average halves without new samples
+     * @param clock returns the current time in milliseconds
+     */
+    public LatencyTracker(long halfLife, LongSupplier clock) {
+        Assert.isTrue(halfLife > 0, "The halfLife should be positive");
+        this.halfLife = halfLife;
+        this.clock = clock;
+    }
+
+    /**
+     * @param key the key of the sample, e.g. a queue name
+     * @param millis the latency in milliseconds, with the fraction, so that the sub-millisecond latencies count too
+     */
+    public void record(String key, double millis) {
+        long now = clock.getAsLong();
+        averages.merge(key, new Sample(millis, now), (average, sample) -> {
+            double decayed = average.decayedTo(now);
+            return new Sample(decayed + WEIGHT * (sample.average - decayed), now);
+        });
+    }
+
+    /**
+     * @return the average latency of the key in milliseconds, decayed by the time since its last sample, or 0 if there
+     * are no samples
+     */
+    public double average(String key) {
+        Sample sample = averages.get(key);
+        return sample == null ? 0.0 : sample.decayedTo(clock.getAsLong());
+    }
+
+    /**
+     * The average as of the time of its last sample
+     */
+    private class Sample {
+        private final double average;
+        private final long time;
+
+        private Sample(double average, long time) {
+            this.average = average;
+            this.time = time;
+        }
+
+        private double decayedTo(long now) {
+            return now <= time ? average : average * Math.pow(0.5, (double) (now - time) / halfLife);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package eu.h2020.symbiote.pr.helpers;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Repeats the compare-and-set writes of a request for the resources which were modified concurrently, up to
+ * maxAttempts times. Every attempt reads the resources again, so it works on their latest state.
+ *
+ * The platformRegistry.versioning.conflicts counter is increased by the number of the conflicting resources of every
+ * attempt and the platformRegistry.versioning.exhausted counter by the requests which still had conflicts after the
+ * last attempt.
+ */
+@Component
+public class OptimisticRetry {
+    private static Log log = LogFactory.getLog(OptimisticRetry.class);
+
+    private static final String METRIC_PREFIX = "platformRegistry.versioning.";
+
+    private CounterService counterService;
+    private int maxAttempts;
+
+    @Autowired
+    public OptimisticRetry(CounterService counterService,
+                           @Value("${symbiote.cloud.platformRegistry.versioning.maxAttempts:5}") int maxAttempts) {
+        Assert.isTrue(maxAttempts > 0, "The maxAttempts should be positive");
+
+        this.counterService = counterService;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param operation the name of the operation, used for logging
+     * @param request the request
+     * @param attempt processes a request and returns the ids of the resources which had conflicts
+     * @param restrict creates the request which repeats the given one only for the resources with the given ids
+     * @param <T> the type of the request
+     * @return the ids of the resources which still had conflicts after the last attempt
+     */
+    public <T> Set<String> run(String operation, T request, Function<T, Set<String>> attempt,
+                               BiFunction<T, Set<String>, T> restrict) {
+        Set<String> conflicts = attempt.apply(request);
+
+        for (int attempts = 1; !conflicts.isEmpty(); attempts++) {
+            for (int i = 0; i < conflicts.size(); i++)
+                counterService.increment(METRIC_PREFIX + "conflicts");
+
+            if (attempts == maxAttempts) {
+                counterService.increment(METRIC_PREFIX + "exhausted");
+                log.warn(operation + " gave up after " + attempts + " attempts, because these resources kept being " +
+                        "modified concurrently: " + conflicts);
+                break;
+            }
+
+            log.debug(operation + " is repeated for the concurrently modified resources " + conflicts);
+            request = restrict.apply(request, conflicts);
+            conflicts = attempt.apply(request);
+        }
+        return conflicts;
+    }
+}
@@ -0,0 +1,83 @@
+package eu.h2020.symbiote.pr.helpers;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates the aggregationIds of the platform resources without checking the database for collisions. The id is a
+ * positive 63 bit number made of the milliseconds since 2018 (41 bits), the node id of this instance (10 bits) and a
+ * sequence number within the millisecond (12 bits). It is formatted as 16 hex digits followed by @platformId.
+ *
+ * The ids of different instances are unique only if their node ids are different. A random node id may be the same as
+ * the one of another instance, so the new resources are inserted and a collision is detected by the database.
+ */
+@Component
+public class ResourceIdGenerator {
+    private static Log log = LogFactory.getLog(ResourceIdGenerator.class);
+
+    private static final long EPOCH = 1514764800000L; // 2018-01-01T00:00:00Z
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int ID_HEX_DIGITS = Long.BYTES * 2;
+
+    private final long nodeId;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    /**
+     * @param nodeId the id of this instance, which should be different in every instance sharing the same database.
+     *               If it is negative, a random one is used, which should be avoided when several instances
+     *               share the database
+     */
+    public ResourceIdGenerator(@Value("${symbiote.cloud.platformRegistry.idGenerator.nodeId:-1}") long nodeId) {
+        Assert.isTrue(nodeId <= MAX_NODE_ID, "The nodeId should not be greater than " + MAX_NODE_ID);
+
+        this.nodeId = nodeId < 0 ? new SecureRandom().nextInt((int) MAX_NODE_ID + 1) : nodeId;
+        if (nodeId < 0)
+            log.info("No idGenerator.nodeId is configured, so the random node id " + this.nodeId + " is used. " +
+                    "Configure a different one in every instance sharing the database");
+        log.debug("The node id of the resource id generator is " + this.nodeId);
+    }
+
+    /**
+     * @param platformId the id of the platform
+     * @return a new aggregationId in the form %016x@platformId
+     */
+    public String nextResourceId(String platformId) {
+        String hex = Long.toHexString(nextId());
+
+        StringBuilder builder = new StringBuilder(ID_HEX_DIGITS + 1 + platformId.length());
+        for (int i = hex.length(); i < ID_HEX_DIGITS; i++)
+            builder.append('0');
+        return builder.append(hex).append('@').append(platformId).toString();
+    }
+
+    /**
+     * @return a new unique positive id
+     */
+    synchronized long nextId() {
+        // Never go back in time, even if the clock does
+        long timestamp = Math.max(System.currentTimeMillis() - EPOCH, lastTimestamp);
+
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+
+            // The sequence of this millisecond is exhausted, so borrow the next one instead of waiting
+            if (sequence == 0)
+                timestamp++;
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+    }
+}
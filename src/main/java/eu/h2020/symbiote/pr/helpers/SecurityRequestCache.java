@@ -0,0 +1,150 @@
+package eu.h2020.symbiote.pr.helpers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.h2020.symbiote.security.communication.payloads.SecurityCredentials;
+import eu.h2020.symbiote.security.communication.payloads.SecurityRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A bounded cache of the tokens which have already satisfied the access policies of an endpoint. Validating the tokens
+ * is the expensive part of a check and a client sends the same tokens with many requests, so the cache is keyed by a
+ * hash of the tokens only. The authentication challenges and the timestamp are different in every request, so they
+ * are not cached and they have to be verified on every request.
+ *
+ * An entry expires after the configured ttl or when the earliest token of the request expires, whichever comes first.
+ */
+public class SecurityRequestCache {
+    private static Log log = LogFactory.getLog(SecurityRequestCache.class);
+
+    private final long ttl;
+    // The expiration times of the verification results by the key of the tokens and then by the endpoint
+    private final Map<String, Map<String, Long>> expirationTimes;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * @param maxSize the maximum number of the cached tokens. The least recently used ones are evicted first
+     * @param ttl the maximum time in ms for which a verification result is reused
+     */
+    public SecurityRequestCache(int maxSize, long ttl) {
+        this.ttl = ttl;
+        this.expirationTimes = new LinkedHashMap<String, Map<String, Long>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Long>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param securityRequest the security request of the client
+     * @return the cache key of the tokens in the request or null if it does not contain any tokens
+     */
+    public String key(SecurityRequest securityRequest) {
+        if (securityRequest.getSecurityCredentials() == null || securityRequest.getSecurityCredentials().isEmpty())
+            return null;
+
+        // Sort the tokens, so that the key does not depend on their order
+        SortedSet<String> tokens = new TreeSet<>();
+        for (SecurityCredentials credentials : securityRequest.getSecurityCredentials()) {
+            if (credentials.getToken() == null)
+                return null;
+            tokens.add(credentials.getToken());
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String token : tokens) {
+                digest.update(token.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            log.warn("Could not hash the tokens", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param key the cache key of the tokens
+     * @param endpoint the endpoint whose access policies were checked
+     * @return true if the tokens have satisfied the access policies of the endpoint and the result has not expired yet
+     */
+    public synchronized boolean isVerified(String key, String endpoint) {
+        Map<String, Long> endpoints = expirationTimes.get(key);
+        Long expirationTime = endpoints != null ? endpoints.get(endpoint) : null;
+        if (expirationTime == null)
+            return false;
+
+        if (expirationTime <= System.currentTimeMillis()) {
+            endpoints.remove(endpoint);
+            if (endpoints.isEmpty())
+                expirationTimes.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores the tokens of a request which satisfied the access policies of an endpoint
+     *
+     * @param key the cache key of the tokens
+     * @param endpoint the endpoint whose access policies were checked
+     * @param securityRequest the verified security request
+     */
+    public void putVerified(String key, String endpoint, SecurityRequest securityRequest) {
+        long expirationTime = Math.min(System.currentTimeMillis() + ttl, tokensExpirationTime(securityRequest));
+        if (expirationTime <= System.currentTimeMillis())
+            return;
+
+        synchronized (this) {
+            expirationTimes.computeIfAbsent(key, k -> new HashMap<>()).put(endpoint, expirationTime);
+        }
+    }
+
+    /**
+     * Removes all the cached verification results
+     */
+    public synchronized void invalidate() {
+        expirationTimes.clear();
+    }
+
+    /**
+     * Removes the cached verification results of some tokens for all the endpoints
+     *
+     * @param key the cache key of the tokens
+     */
+    public synchronized void invalidate(String key) {
+        expirationTimes.remove(key);
+    }
+
+    /**
+     * @return the time in ms when the first token of the request expires or 0 if it cannot be found
+     */
+    private long tokensExpirationTime(SecurityRequest securityRequest) {
+        if (securityRequest.getSecurityCredentials() == null || securityRequest.getSecurityCredentials().isEmpty())
+            return 0;
+
+        long expirationTime = Long.MAX_VALUE;
+        for (SecurityCredentials credentials : securityRequest.getSecurityCredentials()) {
+            try {
+                // The token is a JWT and its exp claim is in seconds
+                String[] parts = credentials.getToken().split("\\.");
+                JsonNode claims = mapper.readTree(Base64.getUrlDecoder().decode(parts[1]));
+                if (!claims.hasNonNull("exp"))
+                    return 0;
+                expirationTime = Math.min(expirationTime, claims.get("exp").asLong() * 1000);
+            } catch (Exception e) {
+                log.debug("Could not read the expiration time of the token", e);
+                return 0;
+            }
+        }
+        return expirationTime;
+    }
+}
@@ -0,0 +1,77 @@
+package eu.h2020.symbiote.pr.model;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of a bulk write of FederatedResources. The writes are unordered, so a failed document does not prevent
+ * the rest from being written.
+ */
+public class BulkWriteReport {
+
+    public static final BulkWriteReport EMPTY = new BulkWriteReport(true, 0, 0, 0, 0, Collections.emptyMap());
+
+    private boolean acknowledged;
+    private int matched;
+    private int modified;
+    private int upserted;
+    private int removed;
+    private Map<String, String> failures;
+    private Set<String> conflicts;
+
+    public BulkWriteReport(boolean acknowledged, int matched, int modified, int upserted, int removed,
+                           Map<String, String> failures) {
+        this(acknowledged, matched, modified, upserted, removed, failures, Collections.emptySet());
+    }
+
+    public BulkWriteReport(boolean acknowledged, int matched, int modified, int upserted, int removed,
+                           Map<String, String> failures, Set<String> conflicts) {
+        this.acknowledged = acknowledged;
+        this.matched = matched;
+        this.modified = modified;
+        this.upserted = upserted;
+        this.removed = removed;
+        this.failures = Collections.unmodifiableMap(failures);
+        this.conflicts = Collections.unmodifiableSet(conflicts);
+    }
+
+    /**
+     * @return false if the write concern is unacknowledged, in which case the counts are not known and are 0
+     */
+    public boolean isAcknowledged() { return acknowledged; }
+    public int getMatched() { return matched; }
+    public int getModified() { return modified; }
+    public int getUpserted() { return upserted; }
+    public int getRemoved() { return removed; }
+
+    /**
+     * @return the error messages of the failed writes by the aggregationId of the resource. A write concern error is
+     * reported with the writeConcernError key
+     */
+    public Map<String, String> getFailures() { return failures; }
+
+    public boolean hasFailures() { return !failures.isEmpty(); }
+
+    /**
+     * @return the aggregationIds of the resources which were not written, because they had been modified since they
+     * were read or, for the new resources, because their id is already used. Only compare-and-set writes and inserts
+     * report conflicts, which are not included in the failures
+     */
+    public Set<String> getConflicts() { return conflicts; }
+
+    public boolean hasConflicts() { return !conflicts.isEmpty(); }
+
+    @Override
+    public String toString() {
+        return "BulkWriteReport{" +
+                "acknowledged=" + acknowledged +
+                ", matched=" + matched +
+                ", modified=" + modified +
+                ", upserted=" + upserted +
+                ", removed=" + removed +
+                ", failures=" + failures +
+                ", conflicts=" + conflicts +
+                '}';
+    }
+}
@@ -0,0 +1,90 @@
+package eu.h2020.symbiote.pr.model;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.springframework.data.domain.Sort;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque continuation token used for keyset pagination of the search results. It remembers the sort order of the
+ * request together with the sort value and the aggregationId of the last returned resource, so that the next page
+ * can start right after it without skipping documents in the database.
+ */
+public class ContinuationToken {
+
+    private static final String SORT_FIELD = "f";
+    private static final String DIRECTION = "d";
+    private static final String LAST_VALUE = "v";
+    private static final String LAST_AGGREGATION_ID = "id";
+
+    private String sortField;
+    private Sort.Direction direction;
+    private Object lastValue;
+    private String lastAggregationId;
+
+    public ContinuationToken(String sortField, Sort.Direction direction, Object lastValue, String lastAggregationId) {
+        this.sortField = sortField;
+        this.direction = direction;
+        this.lastValue = lastValue;
+        this.lastAggregationId = lastAggregationId;
+    }
+
+    public String getSortField() { return sortField; }
+    public Sort.Direction getDirection() { return direction; }
+    public Object getLastValue() { return lastValue; }
+    public String getLastAggregationId() { return lastAggregationId; }
+
+    /**
+     * Checks if the token was created for the same sort order as the current request
+     *
+     * @param sortField the field used for sorting the resources
+     * @param direction the direction of the sorting
+     * @return true if the token can be used for continuing the request
+     */
+    public boolean matches(String sortField, Sort.Direction direction) {
+        return this.sortField.equals(sortField) && this.direction == direction;
+    }
+
+    /**
+     * Encodes the token. The last sort value is stored as MongoDB extended JSON, so that its BSON type (e.g. Date)
+     * survives the round trip.
+     *
+     * @return the url safe representation of the token
+     */
+    public String encode() {
+        DBObject dbObject = new BasicDBObject(SORT_FIELD, sortField)
+                .append(DIRECTION, direction.name())
+                .append(LAST_VALUE, lastValue)
+                .append(LAST_AGGREGATION_ID, lastAggregationId);
+
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(JSON.serialize(dbObject).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a token created by {@link #encode()}
+     *
+     * @param token the token sent by the client
+     * @return the decoded token
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    public static ContinuationToken decode(String token) {
+        try {
+            DBObject dbObject = (DBObject) JSON.parse(
+                    new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+
+            String sortField = (String) dbObject.get(SORT_FIELD);
+            String lastAggregationId = (String) dbObject.get(LAST_AGGREGATION_ID);
+            if (sortField == null || lastAggregationId == null)
+                throw new IllegalArgumentException("Incomplete continuation token");
+
+            return new ContinuationToken(sortField, Sort.Direction.fromString((String) dbObject.get(DIRECTION)),
+                    dbObject.get(LAST_VALUE), lastAggregationId);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid continuation token", e);
+        }
+    }
+}
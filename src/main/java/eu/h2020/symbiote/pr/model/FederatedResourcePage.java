@@ -0,0 +1,26 @@
+package eu.h2020.symbiote.pr.model;
+
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+
+import java.util.List;
+
+/**
+ * A single page of federated resources together with the token for fetching the next one.
+ */
+public class FederatedResourcePage {
+
+    private List<FederatedResource> resources;
+    private ContinuationToken next;
+
+    public FederatedResourcePage(List<FederatedResource> resources, ContinuationToken next) {
+        this.resources = resources;
+        this.next = next;
+    }
+
+    public List<FederatedResource> getResources() { return resources; }
+
+    /**
+     * @return the token pointing after the last resource of this page or null, if this is the last page
+     */
+    public ContinuationToken getNext() { return next; }
+}
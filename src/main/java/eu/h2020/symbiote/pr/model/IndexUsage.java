@@ -0,0 +1,45 @@
+package eu.h2020.symbiote.pr.model;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * The usage statistics of an index of the FederatedResource collection, as reported by $indexStats
+ */
+public class IndexUsage {
+
+    private String name;
+    private Map<String, Object> key;
+    private boolean declared;
+    private boolean present;
+    private Long ops;
+    private Date since;
+
+    public IndexUsage(String name, Map<String, Object> key, boolean declared, boolean present, Long ops, Date since) {
+        this.name = name;
+        this.key = key;
+        this.declared = declared;
+        this.present = present;
+        this.ops = ops;
+        this.since = since;
+    }
+
+    public String getName() { return name; }
+    public Map<String, Object> getKey() { return key; }
+
+    /**
+     * @return true if the index is required by the Platform Registry
+     */
+    public boolean isDeclared() { return declared; }
+
+    /**
+     * @return true if the index exists in the database
+     */
+    public boolean isPresent() { return present; }
+
+    /**
+     * @return the number of operations which used the index since {@link #getSince()} or null if it does not exist
+     */
+    public Long getOps() { return ops; }
+    public Date getSince() { return since; }
+}
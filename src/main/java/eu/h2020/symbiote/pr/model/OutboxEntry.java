@@ -0,0 +1,72 @@
+package eu.h2020.symbiote.pr.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A message which has to be published to the broker. The message is stored after the changes it notifies about and
+ * it is removed once the broker has confirmed it. The entries are published in the order of their sequence numbers,
+ * which are reserved from a counter in the database, see {@link
+ * eu.h2020.symbiote.pr.repositories.OutboxRepositoryCustom#reserveSequences(int)}. Contrary to the ObjectIds, they
+ * increase across the threads and the instances of the Platform Registry.
+ */
+@Document(collection = "outbox")
+public class OutboxEntry {
+
+    @Id
+    private String id;
+    @Indexed
+    private long sequence;
+    private String exchange;
+    private String routingKey;
+    private String contentType;
+    private String contentEncoding;
+    private Map<String, Object> headers;
+    private byte[] body;
+    private Date createdAt;
+
+    public OutboxEntry() {
+    }
+
+    public OutboxEntry(String exchange, String routingKey, String contentType, String contentEncoding,
+                       Map<String, Object> headers, byte[] body) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.headers = headers;
+        this.body = body;
+        this.createdAt = new Date();
+    }
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public long getSequence() { return sequence; }
+    public void setSequence(long sequence) { this.sequence = sequence; }
+
+    public String getExchange() { return exchange; }
+    public void setExchange(String exchange) { this.exchange = exchange; }
+
+    public String getRoutingKey() { return routingKey; }
+    public void setRoutingKey(String routingKey) { this.routingKey = routingKey; }
+
+    public String getContentType() { return contentType; }
+    public void setContentType(String contentType) { this.contentType = contentType; }
+
+    public String getContentEncoding() { return contentEncoding; }
+    public void setContentEncoding(String contentEncoding) { this.contentEncoding = contentEncoding; }
+
+    public Map<String, Object> getHeaders() { return headers; }
+    public void setHeaders(Map<String, Object> headers) { this.headers = headers; }
+
+    public byte[] getBody() { return body; }
+    public void setBody(byte[] body) { this.body = body; }
+
+    public Date getCreatedAt() { return createdAt; }
+    public void setCreatedAt(Date createdAt) { this.createdAt = createdAt; }
+}
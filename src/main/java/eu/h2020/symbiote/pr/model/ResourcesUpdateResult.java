@@ -0,0 +1,30 @@
+package eu.h2020.symbiote.pr.model;
+
+import eu.h2020.symbiote.cloud.model.internal.CloudResource;
+
+import java.util.List;
+
+/**
+ * The result of adding or updating the resources of the platform
+ */
+public class ResourcesUpdateResult {
+
+    private List<CloudResource> cloudResources;
+    private int skipped;
+
+    public ResourcesUpdateResult(List<CloudResource> cloudResources, int skipped) {
+        this.cloudResources = cloudResources;
+        this.skipped = skipped;
+    }
+
+    /**
+     * @return the new/updated CloudResources, including the unchanged ones
+     */
+    public List<CloudResource> getCloudResources() { return cloudResources; }
+
+    /**
+     * @return the number of the resources which had not changed, so they were neither stored nor sent to the
+     * Subscription Manager
+     */
+    public int getSkipped() { return skipped; }
+}
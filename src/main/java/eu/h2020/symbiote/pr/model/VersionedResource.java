@@ -0,0 +1,25 @@
+package eu.h2020.symbiote.pr.model;
+
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+
+/**
+ * A FederatedResource together with the version of the document it was read from
+ */
+public class VersionedResource {
+
+    private FederatedResource resource;
+    private String version;
+
+    /**
+     * @param resource the resource
+     * @param version the version of the stored document or null if the resource was not stored or was stored without
+     *                a version
+     */
+    public VersionedResource(FederatedResource resource, String version) {
+        this.resource = resource;
+        this.version = version;
+    }
+
+    public FederatedResource getResource() { return resource; }
+    public String getVersion() { return version; }
+}
@@ -0,0 +1,82 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import com.mongodb.DBObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores fields derived from the FederatedResource next to it in the same document. These fields are not part of the
+ * FederatedResource model, so they are ignored when reading the documents, but they can be indexed and queried.
+ */
+@Component
+public class FederatedResourceMongoEventListener extends AbstractMongoEventListener<FederatedResource> {
+    private static Log log = LogFactory.getLog(FederatedResourceMongoEventListener.class);
+
+    /**
+     * The ids of the federations where the resource is shared to, i.e. the keys of the federatedResourceInfoMap
+     */
+    public static final String FEDERATION_IDS = "federationIds";
+
+    /**
+     * A token which changes on every write of the document, used for detecting concurrent modifications. The
+     * documents written before its introduction do not have it
+     */
+    public static final String VERSION = "documentVersion";
+
+    @Override
+    public void onBeforeSave(BeforeSaveEvent<FederatedResource> event) {
+        event.getDBObject().put(FEDERATION_IDS, federationIds(event.getSource()));
+        event.getDBObject().put(VERSION, newVersion());
+        removeInvalidLocationCoords(event.getDBObject(), event.getSource());
+    }
+
+    /**
+     * The 2dsphere index rejects the documents whose coordinates are not a valid longitude and latitude, which would
+     * make the whole write of the resource fail. Such coordinates are not stored, so the resource is still registered
+     * with its location, but it is not found by the geospatial searches.
+     */
+    static void removeInvalidLocationCoords(DBObject document, FederatedResource federatedResource) {
+        Object coords = document.get(ResourceRepositoryImpl.LOCATION_COORDS);
+        if (coords == null || isValidLocation(coords))
+            return;
+
+        document.removeField(ResourceRepositoryImpl.LOCATION_COORDS);
+        log.warn("The location coordinates " + coords + " of the resource " + federatedResource.getAggregationId() +
+                " are not a valid longitude and latitude, so the resource cannot be found by its location");
+    }
+
+    private static boolean isValidLocation(Object coords) {
+        if (!(coords instanceof List))
+            return false;
+
+        List<?> values = (List<?>) coords;
+        // The index ignores the empty coordinates, like the missing ones
+        if (values.isEmpty())
+            return true;
+        if (values.size() != 2 || !(values.get(0) instanceof Number) || !(values.get(1) instanceof Number))
+            return false;
+
+        // The comparisons are false for NaN too
+        double longitude = ((Number) values.get(0)).doubleValue();
+        double latitude = ((Number) values.get(1)).doubleValue();
+        return longitude >= -180 && longitude <= 180 && latitude >= -90 && latitude <= 90;
+    }
+
+    static String newVersion() {
+        return new ObjectId().toHexString();
+    }
+
+    static List<String> federationIds(FederatedResource federatedResource) {
+        return federatedResource.getFederatedResourceInfoMap() == null ?
+                new ArrayList<>() :
+                new ArrayList<>(federatedResource.getFederatedResourceInfoMap().keySet());
+    }
+}
@@ -0,0 +1,92 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static eu.h2020.symbiote.pr.repositories.FederatedResourceMongoEventListener.FEDERATION_IDS;
+
+/**
+ * Adds the federationIds field to the documents which were stored before it was introduced. The migration runs in the
+ * background after the startup, so that it does not delay the application. Meanwhile, the queries match the documents
+ * without the federationIds by their federatedResourceInfoMap, see {@link ResourcePredicates#sharedInAnyOf}.
+ */
+@Component
+public class FederationIdsMigration implements ApplicationListener<ApplicationReadyEvent> {
+    private static Log log = LogFactory.getLog(FederationIdsMigration.class);
+
+    private static final String FEDERATED_RESOURCE_INFO_MAP = "federatedResourceInfoMap";
+    private static final int BATCH_SIZE = 1000;
+
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    public FederationIdsMigration(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        Thread thread = new Thread(this::migrate, "federationIds-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets the federationIds of every document missing them to the keys of its federatedResourceInfoMap
+     */
+    public void migrate() {
+        DBCollection collection = mongoTemplate.getCollection(
+                mongoTemplate.getCollectionName(FederatedResource.class));
+        DBObject notMigrated = new BasicDBObject(FEDERATION_IDS, new BasicDBObject("$exists", false));
+
+        int migrated = 0;
+        DBCursor cursor = collection.find(notMigrated, new BasicDBObject(FEDERATED_RESOURCE_INFO_MAP, 1));
+        try {
+            BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            int pending = 0;
+
+            while (cursor.hasNext()) {
+                DBObject document = cursor.next();
+                Object federatedResourceInfoMap = document.get(FEDERATED_RESOURCE_INFO_MAP);
+                List<String> federationIds = federatedResourceInfoMap instanceof DBObject ?
+                        new ArrayList<>(((DBObject) federatedResourceInfoMap).keySet()) :
+                        new ArrayList<>();
+
+                // Do not overwrite the field if the resource has been saved in the meantime
+                bulk.find(new BasicDBObject("_id", document.get("_id")).append(FEDERATION_IDS, notMigrated.get(FEDERATION_IDS)))
+                        .updateOne(new BasicDBObject("$set", new BasicDBObject(FEDERATION_IDS, federationIds)));
+
+                if (++pending == BATCH_SIZE) {
+                    migrated += bulk.execute().getMatchedCount();
+                    bulk = collection.initializeUnorderedBulkOperation();
+                    pending = 0;
+                }
+            }
+
+            if (pending > 0)
+                migrated += bulk.execute().getMatchedCount();
+        } catch (RuntimeException e) {
+            log.warn("The migration of the " + FEDERATION_IDS + " stopped after " + migrated + " resources", e);
+            return;
+        } finally {
+            cursor.close();
+        }
+
+        if (migrated > 0)
+            log.info("Added the " + FEDERATION_IDS + " to " + migrated + " stored resources");
+    }
+}
@@ -0,0 +1,54 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import eu.h2020.symbiote.pr.helpers.LatencyTracker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of the commands the MongoClient sends to the database. The failed commands count too, since
+ * e.g. a timeout is the slowest answer of an overloaded database.
+ */
+@Component
+public class MongoLatencyListener implements CommandListener {
+
+    private static final String ALL_COMMANDS = "all";
+
+    private LatencyTracker latencyTracker;
+
+    /**
+     * @param interval the interval of the ListenerConcurrencyController. The latency halves in every interval without
+     *                 database commands, so that the containers which backed off after a spike scale up again
+     */
+    @Autowired
+    public MongoLatencyListener(@Value("${symbiote.cloud.platformRegistry.consumers.interval:5000}") long interval) {
+        this.latencyTracker = new LatencyTracker(interval);
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        latencyTracker.record(ALL_COMMANDS, event.getElapsedTime(TimeUnit.NANOSECONDS) / 1e6);
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        latencyTracker.record(ALL_COMMANDS, event.getElapsedTime(TimeUnit.NANOSECONDS) / 1e6);
+    }
+
+    /**
+     * @return the average latency of the database commands in milliseconds
+     */
+    public double averageLatency() {
+        return latencyTracker.average(ALL_COMMANDS);
+    }
+}
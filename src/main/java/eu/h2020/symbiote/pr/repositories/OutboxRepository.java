@@ -0,0 +1,28 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import eu.h2020.symbiote.pr.model.OutboxEntry;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The messages waiting to be published. They are internal, so they are not exported over REST.
+ */
+@RepositoryRestResource(exported = false)
+public interface OutboxRepository extends MongoRepository<OutboxEntry, String>, OutboxRepositoryCustom {
+
+    /**
+     * @param pageable the maximum number of the entries
+     * @return the entries with the lowest sequence numbers
+     */
+    List<OutboxEntry> findAllByOrderBySequenceAsc(Pageable pageable);
+
+    /**
+     * @param ids the ids of the entries
+     * @return the number of the removed entries
+     */
+    Long deleteByIdIn(Collection<String> ids);
+}
@@ -0,0 +1,34 @@
+package eu.h2020.symbiote.pr.repositories;
+
+/**
+ * Operations of the {@link OutboxRepository} which cannot be derived by Spring Data.
+ */
+public interface OutboxRepositoryCustom {
+
+    /**
+     * Reserves a range of sequence numbers for new outbox entries. The numbers come from a single counter document,
+     * so they increase across the threads and the instances of the Platform Registry sharing the database.
+     *
+     * @param count the number of the entries
+     * @return the first reserved number. The range ends at first + count - 1
+     */
+    long reserveSequences(int count);
+
+    /**
+     * Acquires or renews the lease of the outbox relay. Only the owner of the lease publishes the outbox entries, so
+     * the instances sharing the database do not publish the same entries in parallel.
+     *
+     * @param owner the id of the relay
+     * @param leaseDuration the milliseconds the lease is valid for, unless it is renewed
+     * @return true if the relay holds the lease
+     */
+    boolean acquireLease(String owner, long leaseDuration);
+
+    /**
+     * Gives up the lease, so that the relay of another instance takes over without waiting for it to expire. Nothing
+     * happens if the lease is held by another relay.
+     *
+     * @param owner the id of the relay
+     */
+    void releaseLease(String owner);
+}
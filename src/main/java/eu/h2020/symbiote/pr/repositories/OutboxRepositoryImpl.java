@@ -0,0 +1,89 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.util.Assert;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Implementation of the custom operations of the {@link OutboxRepository}. The sequence counter and the lease of the
+ * relay are documents of a separate collection, which are updated atomically with findAndModify.
+ */
+public class OutboxRepositoryImpl implements OutboxRepositoryCustom {
+
+    static final String OUTBOX_STATE = "outboxState";
+
+    private static final String SEQUENCE_ID = "sequence";
+    private static final String LEASE_ID = "relayLease";
+    private static final String VALUE = "value";
+    private static final String OWNER = "owner";
+    private static final String EXPIRES_AT = "expiresAt";
+
+    /**
+     * The code of the duplicate key error, which is raised when two upserts of the same document race
+     */
+    private static final int DUPLICATE_KEY = 11000;
+
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    public OutboxRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public long reserveSequences(int count) {
+        Assert.isTrue(count > 0, "The count should be positive");
+
+        DBObject query = new BasicDBObject("_id", SEQUENCE_ID);
+        DBObject update = new BasicDBObject("$inc", new BasicDBObject(VALUE, (long) count));
+        DBObject counter;
+        try {
+            counter = collection().findAndModify(query, null, null, false, update, true, true);
+        } catch (MongoException e) {
+            if (e.getCode() != DUPLICATE_KEY)
+                throw e;
+
+            // Another instance created the counter at the same time, so it exists now
+            counter = collection().findAndModify(query, null, null, false, update, true, true);
+        }
+
+        return ((Number) counter.get(VALUE)).longValue() - count + 1;
+    }
+
+    @Override
+    public boolean acquireLease(String owner, long leaseDuration) {
+        Date now = new Date();
+        DBObject query = new BasicDBObject("_id", LEASE_ID)
+                .append("$or", Arrays.asList(
+                        new BasicDBObject(OWNER, owner),
+                        new BasicDBObject(EXPIRES_AT, new BasicDBObject("$lt", now))));
+        DBObject update = new BasicDBObject("$set", new BasicDBObject(OWNER, owner)
+                .append(EXPIRES_AT, new Date(now.getTime() + leaseDuration)));
+
+        try {
+            return collection().findAndModify(query, null, null, false, update, true, true) != null;
+        } catch (MongoException e) {
+            // The lease is held by another relay, so the upsert collides with the existing document
+            if (e.getCode() == DUPLICATE_KEY)
+                return false;
+            throw e;
+        }
+    }
+
+    @Override
+    public void releaseLease(String owner) {
+        collection().update(new BasicDBObject("_id", LEASE_ID).append(OWNER, owner),
+                new BasicDBObject("$set", new BasicDBObject(EXPIRES_AT, new Date(0))));
+    }
+
+    private DBCollection collection() {
+        return mongoTemplate.getCollection(OUTBOX_STATE);
+    }
+}
@@ -0,0 +1,43 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.querydsl.core.BooleanBuilder;
+import com.querydsl.core.types.Path;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.mongodb.MongodbSerializer;
+
+/**
+ * Serializes QueryDSL predicates to MongoDB query objects, so that they can be combined with clauses which querydsl
+ * cannot express (e.g. keyset conditions). The keys are left as property paths; they are mapped to the actual
+ * document fields by the QueryMapper of the MongoTemplate, exactly as the QueryDSL repository support does.
+ */
+class PredicateSerializer extends MongodbSerializer {
+
+    static final PredicateSerializer INSTANCE = new PredicateSerializer();
+
+    /**
+     * @param predicate the predicate to be serialized. It can be null or an empty BooleanBuilder
+     * @return the query object. An empty object matches all the documents
+     */
+    DBObject toQueryObject(Predicate predicate) {
+        Predicate value = predicate instanceof BooleanBuilder ? ((BooleanBuilder) predicate).getValue() : predicate;
+        return value == null ? new BasicDBObject() : (DBObject) handle(value);
+    }
+
+    @Override
+    protected boolean isReference(Path<?> arg) {
+        return false;
+    }
+
+    @Override
+    protected DBRef asReference(Object constant) {
+        throw new UnsupportedOperationException("FederatedResources do not contain references");
+    }
+
+    @Override
+    protected DBRef asReferenceKey(Class<?> entity, Object id) {
+        throw new UnsupportedOperationException("FederatedResources do not contain references");
+    }
+}
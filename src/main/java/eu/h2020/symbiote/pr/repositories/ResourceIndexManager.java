@@ -0,0 +1,176 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.pr.model.IndexUsage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.IndexOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.GeoSpatialIndexType;
+import org.springframework.data.mongodb.core.index.GeospatialIndex;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.domain.Sort.Direction.ASC;
+
+/**
+ * Makes sure that the indexes needed by the queries of the {@link ResourceRepository} exist. The indexes are declared
+ * here and created at startup if they are missing. The indexes which are missing, not declared or not used according
+ * to $indexStats are reported. The indexes do not have explicit names, so that MongoDB gives them the default ones
+ * (e.g. resourceType_1).
+ *
+ * The missing indexes are built in the background by a thread of their own, since building them on an existing large
+ * collection takes long. The queries work without them in the meantime, only slower.
+ */
+@Component
+public class ResourceIndexManager {
+    private static Log log = LogFactory.getLog(ResourceIndexManager.class);
+
+    private static final String ID_INDEX = "_id_";
+
+    static final List<IndexDefinition> INDEXES = Collections.unmodifiableList(Arrays.asList(
+            // findAllByCloudResource_InternalIdIn and deleteAllByCloudResource_InternalIdIn
+            new Index("cloudResource.internalId", ASC),
+
+            // Listing the resources of a federation, paginated by the aggregationId
+            new Index().on(FederatedResourceMongoEventListener.FEDERATION_IDS, ASC).on("_id", ASC),
+
+            // Search filters
+            new Index("cloudResource.resource.name", ASC),
+            new Index("resourceType", ASC),
+            new Index("locatedAt.name", ASC),
+            new Index("cloudResource.federationInfo.resourceTrust", ASC),
+            new Index("adaptiveTrust", ASC),
+
+            // The geospatial searches use $geoWithin with $centerSphere, which can be served by a 2dsphere index
+            new GeospatialIndex(ResourceRepositoryImpl.LOCATION_COORDS).typed(GeoSpatialIndexType.GEO_2DSPHERE)));
+
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    public ResourceIndexManager(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @PostConstruct
+    public void start() {
+        Thread thread = new Thread(this::ensureIndexes, "resource-index-manager");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Creates the missing indexes in the background, so that the database is not locked while they are built, and
+     * reports the state of the indexes. The call blocks until the missing indexes have been built.
+     */
+    public void ensureIndexes() {
+        for (IndexDefinition index : INDEXES) {
+            try {
+                indexOps().ensureIndex(inBackground(index));
+            } catch (RuntimeException e) {
+                // The queries still work without the index, so do not prevent the startup
+                log.warn("Could not create the index " + indexName(index.getIndexKeys()), e);
+            }
+        }
+
+        List<IndexUsage> indexUsage;
+        try {
+            indexUsage = getIndexUsage();
+        } catch (RuntimeException e) {
+            log.warn("Could not check the indexes of the FederatedResources", e);
+            return;
+        }
+
+        for (IndexUsage usage : indexUsage) {
+            if (!usage.isPresent())
+                log.warn("The index " + usage.getName() + " of the FederatedResources is missing");
+            else if (!usage.isDeclared())
+                log.warn("The index " + usage.getName() + " of the FederatedResources is not declared by the " +
+                        "Platform Registry and it has been used by " + usage.getOps() + " operations since " +
+                        usage.getSince());
+            else if (usage.getOps() != null && usage.getOps() == 0 && !usage.getName().equals(ID_INDEX))
+                log.info("The index " + usage.getName() + " of the FederatedResources has not been used since " +
+                        usage.getSince());
+        }
+    }
+
+    /**
+     * @return the usage statistics of the declared and the existing indexes. The declared indexes which are missing
+     * from the database are included with null statistics
+     */
+    public List<IndexUsage> getIndexUsage() {
+        Map<String, IndexUsage> usage = new LinkedHashMap<>();
+        for (IndexDefinition index : INDEXES) {
+            String name = indexName(index.getIndexKeys());
+            usage.put(name, new IndexUsage(name, index.getIndexKeys().toMap(), true, false, null, null));
+        }
+
+        Set<String> declared = declaredIndexNames();
+        Cursor cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(FederatedResource.class))
+                .aggregate(Collections.singletonList(new BasicDBObject("$indexStats", new BasicDBObject())),
+                        AggregationOptions.builder().build());
+        try {
+            while (cursor.hasNext()) {
+                DBObject stats = cursor.next();
+                String name = (String) stats.get("name");
+                DBObject accesses = (DBObject) stats.get("accesses");
+
+                usage.put(name, new IndexUsage(name, ((DBObject) stats.get("key")).toMap(),
+                        declared.contains(name), true,
+                        ((Number) accesses.get("ops")).longValue(), (Date) accesses.get("since")));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return new ArrayList<>(usage.values());
+    }
+
+    /**
+     * @return the same index with the background option, which the declared index types do not all support
+     */
+    private static IndexDefinition inBackground(IndexDefinition index) {
+        return new IndexDefinition() {
+            @Override
+            public DBObject getIndexKeys() {
+                return index.getIndexKeys();
+            }
+
+            @Override
+            public DBObject getIndexOptions() {
+                BasicDBObject options = new BasicDBObject();
+                if (index.getIndexOptions() != null)
+                    options.putAll(index.getIndexOptions());
+                options.put("background", true);
+                return options;
+            }
+        };
+    }
+
+    private IndexOperations indexOps() {
+        return mongoTemplate.indexOps(FederatedResource.class);
+    }
+
+    private static Set<String> declaredIndexNames() {
+        Set<String> names = INDEXES.stream().map(index -> indexName(index.getIndexKeys())).collect(Collectors.toSet());
+        names.add(ID_INDEX);
+        return names;
+    }
+
+    /**
+     * @return the name MongoDB gives to an index with the specified keys
+     */
+    private static String indexName(DBObject keys) {
+        return keys.keySet().stream().map(key -> key + "_" + keys.get(key)).collect(Collectors.joining("_"));
+    }
+}
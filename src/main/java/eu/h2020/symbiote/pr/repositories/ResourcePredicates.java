@@ -0,0 +1,43 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import com.querydsl.core.BooleanBuilder;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.core.types.dsl.Expressions;
+import com.querydsl.core.types.dsl.StringPath;
+import eu.h2020.symbiote.cloud.model.internal.QFederatedResource;
+
+import java.util.Collection;
+
+/**
+ * Predicates on the fields which are stored with the FederatedResources, but are not part of their model
+ * (see {@link FederatedResourceMongoEventListener}). They can only be used with the custom queries of the
+ * {@link ResourceRepository}.
+ */
+public class ResourcePredicates {
+
+    private static final StringPath FEDERATION_IDS = Expressions.stringPath(QFederatedResource.federatedResource,
+            FederatedResourceMongoEventListener.FEDERATION_IDS);
+
+    private ResourcePredicates() {
+    }
+
+    /**
+     * The documents stored before the federationIds were introduced are matched by the keys of their
+     * federatedResourceInfoMap, until the {@link FederationIdsMigration} has added the federationIds to them. Once
+     * all the documents are migrated, the second clause matches none of them through the index of the federationIds.
+     *
+     * @param federationIds the ids of the federations
+     * @return a predicate matching the resources shared to any of the federations
+     */
+    public static Predicate sharedInAnyOf(Collection<String> federationIds) {
+        BooleanBuilder sharedBeforeMigration = new BooleanBuilder();
+        for (String federationId : federationIds)
+            sharedBeforeMigration.or(QFederatedResource.federatedResource.federatedResourceInfoMap
+                    .containsKey(federationId));
+
+        // federationIds is an array in the document, so $in matches the resources containing any of the ids. The
+        // missing field is serialized as $exists: false
+        return FEDERATION_IDS.in(federationIds)
+                .or(FEDERATION_IDS.isNull().and(sharedBeforeMigration));
+    }
+}
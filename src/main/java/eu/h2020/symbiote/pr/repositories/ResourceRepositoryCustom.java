@@ -0,0 +1,152 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import com.querydsl.core.types.Predicate;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.pr.model.BulkWriteReport;
+import eu.h2020.symbiote.pr.model.ContinuationToken;
+import eu.h2020.symbiote.pr.model.FederatedResourcePage;
+import eu.h2020.symbiote.pr.model.VersionedResource;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Queries of the {@link ResourceRepository} which cannot be derived by Spring Data.
+ */
+public interface ResourceRepositoryCustom {
+
+    /**
+     * Fetches the federated resources matching the predicate and located within the circle with a single query.
+     * Contrary to the QueryDSL queries, the predicate can refer to the fields of {@link ResourcePredicates}.
+     *
+     * @param predicate the predicate of the search (can be null)
+     * @param near the circle where the resources should be located in (can be null). The radius is expressed in
+     *             degrees
+     * @param sort the sorting of the resources (can be null)
+     * @return the matching resources
+     */
+    List<FederatedResource> findAll(Predicate predicate, Circle near, Sort sort);
+
+    /**
+     * Same as {@link #findAll(Predicate, Circle, Sort)}, but the resources are read lazily from the database cursor
+     * instead of being collected in a list. The iterator should be closed after use.
+     *
+     * @param predicate the predicate of the search (can be null)
+     * @param near the circle where the resources should be located in (can be null)
+     * @param sort the sorting of the resources (can be null)
+     * @return an iterator over the matching resources
+     */
+    CloseableIterator<FederatedResource> stream(Predicate predicate, Circle near, Sort sort);
+
+    /**
+     * Fetches a page of the federated resources matching the predicate. The pages are keyset based on the sort field
+     * and the aggregationId, so every page costs the same regardless of how deep it is.
+     *
+     * @param predicate the predicate of the search (can be null)
+     * @param near the circle where the resources should be located in (can be null)
+     * @param sort the sorting of the resources. Only the first order is taken into account. If null, the resources
+     *             are sorted by their aggregationId
+     * @param limit the maximum number of resources in the page
+     * @param after the token returned with the previous page or null for the first page
+     * @return the page of the resources
+     * @throws IllegalArgumentException if the token was created for a different sort order
+     */
+    FederatedResourcePage findPage(Predicate predicate, Circle near, Sort sort, int limit, ContinuationToken after);
+
+    /**
+     * Saves the federated resources with a single unordered bulk write. Every resource replaces the stored document
+     * with the same aggregationId or is inserted if it does not exist, like {@link ResourceRepository#save(Iterable)}.
+     *
+     * @param resources the resources to be saved
+     * @return the outcome of the bulk write, including the resources which failed to be saved
+     */
+    BulkWriteReport bulkSave(Collection<FederatedResource> resources);
+
+    /**
+     * Saves the federated resources like {@link #bulkSave(Collection)}, but the new resources are inserted, so that
+     * they never replace a stored document. If the id of a new resource is already used, its write is reported as a
+     * conflict.
+     *
+     * @param resources the resources to be saved
+     * @param newAggregationIds the aggregationIds of the resources which have just been registered
+     * @return the outcome of the bulk write, including the resources which failed to be saved
+     */
+    BulkWriteReport bulkSave(Collection<FederatedResource> resources, Set<String> newAggregationIds);
+
+    /**
+     * Saves and removes federated resources with a single unordered bulk write
+     *
+     * @param resources the resources to be saved
+     * @param removedAggregationIds the aggregationIds of the resources to be removed
+     * @return the outcome of the bulk write, including the resources which failed to be saved or removed
+     */
+    BulkWriteReport bulkWrite(Collection<FederatedResource> resources, Collection<String> removedAggregationIds);
+
+    /**
+     * Fetches federated resources together with the versions of their documents
+     *
+     * @param aggregationIds the aggregationIds of the resources
+     * @return the stored resources
+     */
+    List<VersionedResource> findVersionedByAggregationIdIn(Collection<String> aggregationIds);
+
+    /**
+     * Fetches the federated resources with only their mapped properties, i.e. without the fields which are added to
+     * their documents for the database
+     *
+     * @param internalIds the internalIds of the resources
+     * @return the stored resources
+     */
+    List<FederatedResource> findForSharingByInternalIdIn(Collection<String> internalIds);
+
+    /**
+     * Shares federated resources to federations with a single unordered bulk write of targeted updates. Only the
+     * federatedResourceInfoMap and sharingInformation entries of the federations are set, so the concurrent changes
+     * of the rest of the document are not overwritten.
+     *
+     * @param resources the resources, which contain the entries of the federations they are shared to
+     * @param federationIds the ids of the federations the resources are shared to by their aggregationId. The
+     *                      resources without federations are not written
+     * @return the outcome of the bulk write
+     * @throws IllegalArgumentException if a federationId contains a '.' or starts with a '$'. Nothing is written then
+     */
+    BulkWriteReport shareToFederations(Collection<FederatedResource> resources, Map<String, Set<String>> federationIds);
+
+    /**
+     * Unshares federated resources from federations with a single unordered bulk write of targeted updates. Only the
+     * federatedResourceInfoMap and sharingInformation entries of the federations are removed.
+     *
+     * @param federationIds the ids of the federations the resources are unshared from by their aggregationId
+     * @return the outcome of the bulk write
+     * @throws IllegalArgumentException if a federationId contains a '.' or starts with a '$'. Nothing is written then
+     */
+    BulkWriteReport unshareFromFederations(Map<String, Set<String>> federationIds);
+
+    /**
+     * Saves and removes federated resources with a single unordered bulk write, like
+     * {@link #bulkWrite(Collection, Collection)}, but only if their documents still have the version they were read
+     * with. Every write changes the version of the document.
+     *
+     * @param resources the resources to be saved with the versions they were read with. A null version means that the
+     *                  resource is new
+     * @param removedResources the resources to be removed with the versions they were read with
+     * @return the outcome of the bulk write. The resources which had been modified in the meantime are reported as
+     * conflicts and are left untouched
+     */
+    BulkWriteReport compareAndWrite(Collection<VersionedResource> resources,
+                                    Collection<VersionedResource> removedResources);
+
+    /**
+     * Sets the adaptiveTrust of federated resources with a single unordered bulk write of targeted updates. The
+     * documents are neither read nor replaced.
+     *
+     * @param adaptiveTrust the new adaptiveTrust by the aggregationId of the resource
+     * @return the outcome of the bulk write. The resources which are not stored are not matched
+     */
+    BulkWriteReport updateAdaptiveTrust(Map<String, Double> adaptiveTrust);
+}
@@ -0,0 +1,532 @@
+package eu.h2020.symbiote.pr.repositories;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.querydsl.core.types.Predicate;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.pr.model.BulkWriteReport;
+import eu.h2020.symbiote.pr.model.ContinuationToken;
+import eu.h2020.symbiote.pr.model.FederatedResourcePage;
+import eu.h2020.symbiote.pr.model.VersionedResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mapping.PropertyHandler;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.util.CloseableIterator;
+
+import java.util.*;
+
+/**
+ * Implementation of the custom queries of the {@link ResourceRepository}. The queries are executed directly on the
+ * collection cursor, so that the raw documents are available (e.g. for building the continuation tokens) and mapped
+ * to FederatedResources only once.
+ */
+public class ResourceRepositoryImpl implements ResourceRepositoryCustom {
+
+    static final String AGGREGATION_ID = "aggregationId";
+    static final String LOCATION_COORDS = "locationCoords";
+    static final String ADAPTIVE_TRUST = "adaptiveTrust";
+    static final String INTERNAL_ID = "cloudResource.internalId";
+    static final String FEDERATED_RESOURCE_INFO_MAP = "federatedResourceInfoMap";
+    static final String SHARING_INFORMATION = "cloudResource.federationInfo.sharingInformation";
+
+    /**
+     * The code of the duplicate key error, which is raised when an upsert does not match the expected version of an
+     * existing document
+     */
+    private static final int DUPLICATE_KEY = 11000;
+
+    /**
+     * The key of the failure reported when the write concern could not be satisfied
+     */
+    static final String WRITE_CONCERN_ERROR = "writeConcernError";
+
+    private MongoTemplate mongoTemplate;
+    private ApplicationEventPublisher eventPublisher;
+    private WriteConcern bulkWriteConcern;
+    private QueryMapper queryMapper;
+    private MongoPersistentEntity<?> persistentEntity;
+
+    @Autowired
+    public ResourceRepositoryImpl(MongoTemplate mongoTemplate, ApplicationEventPublisher eventPublisher,
+                                  @Value("${symbiote.cloud.platformRegistry.bulkWrite.writeConcern:ACKNOWLEDGED}")
+                                          String bulkWriteConcern) {
+        this.mongoTemplate = mongoTemplate;
+        this.eventPublisher = eventPublisher;
+
+        this.bulkWriteConcern = WriteConcern.valueOf(bulkWriteConcern);
+        if (this.bulkWriteConcern == null)
+            throw new IllegalArgumentException("Unknown write concern " + bulkWriteConcern);
+
+        this.queryMapper = new QueryMapper(mongoTemplate.getConverter());
+        this.persistentEntity = mongoTemplate.getConverter().getMappingContext()
+                .getPersistentEntity(FederatedResource.class);
+    }
+
+    @Override
+    public List<FederatedResource> findAll(Predicate predicate, Circle near, Sort sort) {
+        List<FederatedResource> resources = new ArrayList<>();
+        try (CloseableIterator<FederatedResource> iterator = stream(predicate, near, sort)) {
+            while (iterator.hasNext())
+                resources.add(iterator.next());
+        }
+        return resources;
+    }
+
+    @Override
+    public CloseableIterator<FederatedResource> stream(Predicate predicate, Circle near, Sort sort) {
+        BasicDBObject sortObject = new BasicDBObject();
+        if (sort != null)
+            for (Sort.Order order : sort)
+                sortObject.append(order.getProperty(), order.isAscending() ? 1 : -1);
+
+        DBCursor cursor = find(queryObject(predicate, near), sortObject);
+
+        return new CloseableIterator<FederatedResource>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public FederatedResource next() {
+                return mongoTemplate.getConverter().read(FederatedResource.class, cursor.next());
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    @Override
+    public FederatedResourcePage findPage(Predicate predicate, Circle near, Sort sort, int limit,
+                                          ContinuationToken after) {
+        Sort.Order order = sort == null ? null : sort.iterator().next();
+        String sortField = order == null ? AGGREGATION_ID : order.getProperty();
+        Sort.Direction direction = order == null ? Sort.Direction.ASC : order.getDirection();
+
+        if (after != null && !after.matches(sortField, direction))
+            throw new IllegalArgumentException("The continuation token does not match the requested sort order");
+
+        DBObject query = queryObject(predicate, near);
+        if (after != null)
+            query = new BasicDBObject("$and", Arrays.asList(query, keysetCriteria(sortField, direction, after)
+                    .getCriteriaObject()));
+
+        // The aggregationId is always the last sort key, so that the order is total and stable between the pages
+        int sortValue = direction.isAscending() ? 1 : -1;
+        BasicDBObject sortObject = new BasicDBObject(sortField, sortValue);
+        if (!sortField.equals(AGGREGATION_ID))
+            sortObject.append(AGGREGATION_ID, sortValue);
+        String mappedSortField = queryMapper.getMappedObject(sortObject, persistentEntity).keySet().iterator().next();
+
+        List<FederatedResource> resources = new ArrayList<>();
+        DBObject last = null;
+
+        // Fetch one more document than requested to find out if there is a next page
+        DBCursor cursor = find(query, sortObject).limit(limit + 1);
+        try {
+            while (cursor.hasNext() && resources.size() < limit) {
+                last = cursor.next();
+                resources.add(mongoTemplate.getConverter().read(FederatedResource.class, last));
+            }
+
+            ContinuationToken next = cursor.hasNext() ?
+                    new ContinuationToken(sortField, direction, getValue(last, mappedSortField),
+                            resources.get(resources.size() - 1).getAggregationId()) :
+                    null;
+
+            return new FederatedResourcePage(resources, next);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public BulkWriteReport bulkSave(Collection<FederatedResource> resources) {
+        return bulkWrite(resources, Collections.emptyList());
+    }
+
+    @Override
+    public BulkWriteReport bulkSave(Collection<FederatedResource> resources, Set<String> newAggregationIds) {
+        return bulkWrite(resources, Collections.emptyList(), newAggregationIds);
+    }
+
+    @Override
+    public BulkWriteReport bulkWrite(Collection<FederatedResource> resources, Collection<String> removedAggregationIds) {
+        return bulkWrite(resources, removedAggregationIds, Collections.emptySet());
+    }
+
+    private BulkWriteReport bulkWrite(Collection<FederatedResource> resources, Collection<String> removedAggregationIds,
+                                      Set<String> newAggregationIds) {
+        if (resources.isEmpty() && removedAggregationIds.isEmpty())
+            return BulkWriteReport.EMPTY;
+
+        String collectionName = mongoTemplate.getCollectionName(FederatedResource.class);
+        BulkWriteOperation bulk = getCollection().initializeUnorderedBulkOperation();
+
+        // The aggregationId of every request, so that the failures can be reported by the index of the request
+        List<String> requestIds = new ArrayList<>(resources.size() + removedAggregationIds.size());
+
+        for (FederatedResource resource : resources) {
+            // Publish the same events as MongoTemplate.save, so that the listeners can add their fields
+            eventPublisher.publishEvent(new BeforeConvertEvent<>(resource, collectionName));
+            BasicDBObject document = new BasicDBObject();
+            mongoTemplate.getConverter().write(resource, document);
+            eventPublisher.publishEvent(new BeforeSaveEvent<>(resource, document, collectionName));
+
+            // The new resources must not replace a stored document which happens to have the same id
+            if (resource.getAggregationId() == null || newAggregationIds.contains(resource.getAggregationId()))
+                bulk.insert(document);
+            else
+                bulk.find(new BasicDBObject("_id", resource.getAggregationId())).upsert().replaceOne(document);
+            requestIds.add(resource.getAggregationId());
+        }
+
+        for (String aggregationId : removedAggregationIds) {
+            bulk.find(new BasicDBObject("_id", aggregationId)).removeOne();
+            requestIds.add(aggregationId);
+        }
+
+        return execute(bulk, requestIds, newAggregationIds);
+    }
+
+    @Override
+    public List<VersionedResource> findVersionedByAggregationIdIn(Collection<String> aggregationIds) {
+        return findVersioned(AGGREGATION_ID, aggregationIds);
+    }
+
+    @Override
+    public List<FederatedResource> findForSharingByInternalIdIn(Collection<String> internalIds) {
+        List<FederatedResource> resources = new ArrayList<>();
+        if (internalIds.isEmpty())
+            return resources;
+
+        // The sharing replies contain the whole CloudResources and the notifications the whole FederatedResources,
+        // so every mapped property of the resource is needed. Only these are read, which leaves out the fields added
+        // for the database, e.g. the federationIds and the documentVersion, and any field of older versions
+        BasicDBObject projection = new BasicDBObject();
+        persistentEntity.doWithProperties((PropertyHandler<MongoPersistentProperty>) property ->
+                projection.append(property.getFieldName(), 1));
+
+        DBCursor cursor = getCollection().find(queryMapper.getMappedObject(
+                new BasicDBObject(INTERNAL_ID, new BasicDBObject("$in", new ArrayList<>(internalIds))),
+                persistentEntity), projection);
+        try {
+            while (cursor.hasNext())
+                resources.add(mongoTemplate.getConverter().read(FederatedResource.class, cursor.next()));
+        } finally {
+            cursor.close();
+        }
+        return resources;
+    }
+
+    @Override
+    public BulkWriteReport shareToFederations(Collection<FederatedResource> resources,
+                                              Map<String, Set<String>> federationIds) {
+        checkFederationIds(federationIds);
+        BulkWriteOperation bulk = getCollection().initializeUnorderedBulkOperation();
+        List<String> requestIds = new ArrayList<>();
+
+        for (FederatedResource resource : resources) {
+            Set<String> sharedFederationIds = federationIds.get(resource.getAggregationId());
+            if (sharedFederationIds == null || sharedFederationIds.isEmpty())
+                continue;
+
+            // Only the sub-documents of the federations are set, the rest of the document is left untouched
+            BasicDBObject set = new BasicDBObject(FederatedResourceMongoEventListener.VERSION,
+                    FederatedResourceMongoEventListener.newVersion());
+            for (String federationId : sharedFederationIds) {
+                set.append(FEDERATED_RESOURCE_INFO_MAP + "." + federationId, mongoTemplate.getConverter()
+                        .convertToMongoType(resource.getFederatedResourceInfoMap().get(federationId)));
+                set.append(SHARING_INFORMATION + "." + federationId, mongoTemplate.getConverter()
+                        .convertToMongoType(resource.getCloudResource().getFederationInfo().getSharingInformation()
+                                .get(federationId)));
+            }
+
+            bulk.find(new BasicDBObject("_id", resource.getAggregationId())).updateOne(
+                    new BasicDBObject("$set", set)
+                            .append("$addToSet", new BasicDBObject(FederatedResourceMongoEventListener.FEDERATION_IDS,
+                                    new BasicDBObject("$each", new ArrayList<>(sharedFederationIds)))));
+            requestIds.add(resource.getAggregationId());
+        }
+
+        return requestIds.isEmpty() ? BulkWriteReport.EMPTY : execute(bulk, requestIds, false);
+    }
+
+    @Override
+    public BulkWriteReport unshareFromFederations(Map<String, Set<String>> federationIds) {
+        checkFederationIds(federationIds);
+        BulkWriteOperation bulk = getCollection().initializeUnorderedBulkOperation();
+        List<String> requestIds = new ArrayList<>();
+
+        for (Map.Entry<String, Set<String>> entry : federationIds.entrySet()) {
+            if (entry.getValue().isEmpty())
+                continue;
+
+            BasicDBObject unset = new BasicDBObject();
+            for (String federationId : entry.getValue()) {
+                unset.append(FEDERATED_RESOURCE_INFO_MAP + "." + federationId, "");
+                unset.append(SHARING_INFORMATION + "." + federationId, "");
+            }
+
+            bulk.find(new BasicDBObject("_id", entry.getKey())).updateOne(
+                    new BasicDBObject("$unset", unset)
+                            .append("$pullAll", new BasicDBObject(FederatedResourceMongoEventListener.FEDERATION_IDS,
+                                    new ArrayList<>(entry.getValue())))
+                            .append("$set", new BasicDBObject(FederatedResourceMongoEventListener.VERSION,
+                                    FederatedResourceMongoEventListener.newVersion())));
+            requestIds.add(entry.getKey());
+        }
+
+        return requestIds.isEmpty() ? BulkWriteReport.EMPTY : execute(bulk, requestIds, false);
+    }
+
+    @Override
+    public BulkWriteReport compareAndWrite(Collection<VersionedResource> resources,
+                                           Collection<VersionedResource> removedResources) {
+        if (resources.isEmpty() && removedResources.isEmpty())
+            return BulkWriteReport.EMPTY;
+
+        String collectionName = mongoTemplate.getCollectionName(FederatedResource.class);
+        BulkWriteOperation bulk = getCollection().initializeUnorderedBulkOperation();
+        List<String> requestIds = new ArrayList<>(resources.size() + removedResources.size());
+
+        for (VersionedResource versionedResource : resources) {
+            FederatedResource resource = versionedResource.getResource();
+            eventPublisher.publishEvent(new BeforeConvertEvent<>(resource, collectionName));
+            BasicDBObject document = new BasicDBObject();
+            mongoTemplate.getConverter().write(resource, document);
+            eventPublisher.publishEvent(new BeforeSaveEvent<>(resource, document, collectionName));
+
+            // If the version has changed, the upsert tries to insert a document with an existing _id and fails
+            bulk.find(versionFilter(versionedResource)).upsert().replaceOne(document);
+            requestIds.add(resource.getAggregationId());
+        }
+
+        List<String> removedIds = new ArrayList<>(removedResources.size());
+        for (VersionedResource versionedResource : removedResources) {
+            bulk.find(versionFilter(versionedResource)).removeOne();
+            requestIds.add(versionedResource.getResource().getAggregationId());
+            removedIds.add(versionedResource.getResource().getAggregationId());
+        }
+
+        BulkWriteReport report = execute(bulk, requestIds, true);
+        if (!report.isAcknowledged() || report.getRemoved() == removedIds.size())
+            return report;
+
+        // Some documents were not removed. The ones which still exist have been modified in the meantime
+        Set<String> conflicts = new HashSet<>(report.getConflicts());
+        DBCursor cursor = getCollection().find(new BasicDBObject("_id", new BasicDBObject("$in", removedIds)),
+                new BasicDBObject("_id", 1));
+        try {
+            while (cursor.hasNext())
+                conflicts.add((String) cursor.next().get("_id"));
+        } finally {
+            cursor.close();
+        }
+
+        return new BulkWriteReport(true, report.getMatched(), report.getModified(), report.getUpserted(),
+                report.getRemoved(), report.getFailures(), conflicts);
+    }
+
+    @Override
+    public BulkWriteReport updateAdaptiveTrust(Map<String, Double> adaptiveTrust) {
+        if (adaptiveTrust.isEmpty())
+            return BulkWriteReport.EMPTY;
+
+        BulkWriteOperation bulk = getCollection().initializeUnorderedBulkOperation();
+        List<String> requestIds = new ArrayList<>(adaptiveTrust.size());
+
+        // Only the adaptiveTrust is changed, so the documents do not need to be read and rewritten
+        for (Map.Entry<String, Double> entry : adaptiveTrust.entrySet()) {
+            bulk.find(new BasicDBObject("_id", entry.getKey()))
+                    .updateOne(new BasicDBObject("$set", new BasicDBObject(ADAPTIVE_TRUST, entry.getValue())
+                            .append(FederatedResourceMongoEventListener.VERSION,
+                                    FederatedResourceMongoEventListener.newVersion())));
+            requestIds.add(entry.getKey());
+        }
+
+        return execute(bulk, requestIds, false);
+    }
+
+    /**
+     * The federationIds become parts of the paths of the targeted updates. A '.' would address a nested field and a
+     * leading '$' an operator, so such ids would change other fields than the entry of the federation
+     *
+     * @throws IllegalArgumentException if any of the federationIds cannot be used in a field path, in which case
+     * nothing is written
+     */
+    private static void checkFederationIds(Map<String, Set<String>> federationIds) {
+        for (Set<String> ids : federationIds.values())
+            for (String federationId : ids)
+                if (federationId == null || federationId.isEmpty() || federationId.contains(".") ||
+                        federationId.startsWith("$"))
+                    throw new IllegalArgumentException("Invalid federationId " + federationId);
+    }
+
+    /**
+     * Reads the resources with the versions of their documents
+     */
+    private List<VersionedResource> findVersioned(String property, Collection<String> values) {
+        List<VersionedResource> resources = new ArrayList<>();
+        if (values.isEmpty())
+            return resources;
+
+        DBCursor cursor = find(new BasicDBObject(property, new BasicDBObject("$in", new ArrayList<>(values))),
+                new BasicDBObject());
+        try {
+            while (cursor.hasNext()) {
+                DBObject document = cursor.next();
+                resources.add(new VersionedResource(mongoTemplate.getConverter().read(FederatedResource.class, document),
+                        (String) document.get(FederatedResourceMongoEventListener.VERSION)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return resources;
+    }
+
+    /**
+     * @return the filter matching the document of the resource only if it still has the same version. A null version
+     * matches also a document which does not exist
+     */
+    private static DBObject versionFilter(VersionedResource versionedResource) {
+        return new BasicDBObject("_id", versionedResource.getResource().getAggregationId())
+                .append(FederatedResourceMongoEventListener.VERSION, versionedResource.getVersion());
+    }
+
+    /**
+     * Executes the bulk write and collects the failures by the id of the request they refer to
+     *
+     * @param compareAndSet if true, the duplicate key errors are reported as conflicts instead of failures
+     */
+    private BulkWriteReport execute(BulkWriteOperation bulk, List<String> requestIds, boolean compareAndSet) {
+        return execute(bulk, requestIds, compareAndSet ? new HashSet<>(requestIds) : Collections.emptySet());
+    }
+
+    /**
+     * Executes the bulk write and collects the failures by the id of the request they refer to
+     *
+     * @param conflictingIds the ids of the requests whose duplicate key errors are reported as conflicts instead of
+     *                       failures
+     */
+    private BulkWriteReport execute(BulkWriteOperation bulk, List<String> requestIds, Set<String> conflictingIds) {
+        Map<String, String> failures = new LinkedHashMap<>();
+        Set<String> conflicts = new HashSet<>();
+        BulkWriteResult result;
+        try {
+            result = bulk.execute(bulkWriteConcern);
+        } catch (BulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() == DUPLICATE_KEY && conflictingIds.contains(requestIds.get(error.getIndex())))
+                    conflicts.add(requestIds.get(error.getIndex()));
+                else
+                    failures.put(requestIds.get(error.getIndex()), error.getMessage());
+            }
+            if (e.getWriteConcernError() != null)
+                failures.put(WRITE_CONCERN_ERROR, e.getWriteConcernError().getMessage());
+            result = e.getWriteResult();
+        }
+
+        if (!result.isAcknowledged())
+            return new BulkWriteReport(false, 0, 0, 0, 0, failures, conflicts);
+
+        return new BulkWriteReport(true, result.getMatchedCount(), result.getModifiedCount(),
+                result.getUpserts().size() + result.getInsertedCount(), result.getRemovedCount(), failures,
+                conflicts);
+    }
+
+    /**
+     * Opens a cursor on the collection. The query and the sort object refer to the properties of the
+     * FederatedResource and they are mapped to the document fields here.
+     */
+    private DBCursor find(DBObject query, DBObject sortObject) {
+        return getCollection().find(queryMapper.getMappedObject(query, persistentEntity))
+                .sort(queryMapper.getMappedObject(sortObject, persistentEntity));
+    }
+
+    private DBCollection getCollection() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(FederatedResource.class));
+    }
+
+    /**
+     * Combines the predicate and the geospatial condition in a single query object, so that the database can use the
+     * 2dsphere index on the locationCoords and the predicate in the same query
+     */
+    private DBObject queryObject(Predicate predicate, Circle near) {
+        DBObject query = PredicateSerializer.INSTANCE.toQueryObject(predicate);
+        if (near == null)
+            return query;
+
+        // The radius is a great-circle distance in degrees, while $centerSphere expects it in radians. Unlike the
+        // planar $center used before, this measures the distances on the sphere, so it can use the 2dsphere index
+        // and it gives the correct results at high latitudes and across the antimeridian
+        DBObject within = new BasicDBObject(LOCATION_COORDS, new BasicDBObject("$geoWithin",
+                new BasicDBObject("$centerSphere", Arrays.asList(
+                        Arrays.asList(near.getCenter().getX(), near.getCenter().getY()),
+                        Math.toRadians(near.getRadius().getValue())))));
+
+        return query.keySet().isEmpty() ? within : new BasicDBObject("$and", Arrays.asList(query, within));
+    }
+
+    /**
+     * Creates the condition selecting the resources which come after the token in the requested sort order
+     */
+    private Criteria keysetCriteria(String sortField, Sort.Direction direction, ContinuationToken after) {
+        boolean ascending = direction.isAscending();
+        String lastAggregationId = after.getLastAggregationId();
+
+        if (sortField.equals(AGGREGATION_ID))
+            return ascending ?
+                    Criteria.where(AGGREGATION_ID).gt(lastAggregationId) :
+                    Criteria.where(AGGREGATION_ID).lt(lastAggregationId);
+
+        Object lastValue = after.getLastValue();
+        Criteria sameValue = ascending ?
+                Criteria.where(sortField).is(lastValue).and(AGGREGATION_ID).gt(lastAggregationId) :
+                Criteria.where(sortField).is(lastValue).and(AGGREGATION_ID).lt(lastAggregationId);
+
+        // Missing values come first in ascending order and last in descending order
+        if (lastValue == null)
+            return ascending ?
+                    new Criteria().orOperator(Criteria.where(sortField).ne(null), sameValue) :
+                    sameValue;
+
+        return ascending ?
+                new Criteria().orOperator(Criteria.where(sortField).gt(lastValue), sameValue) :
+                new Criteria().orOperator(Criteria.where(sortField).lt(lastValue), sameValue,
+                        Criteria.where(sortField).is(null));
+    }
+
+    /**
+     * @return the value of a (possibly nested) field of the document or null if it does not exist
+     */
+    private static Object getValue(DBObject document, String field) {
+        Object value = document;
+        for (String key : field.split("\\.")) {
+            if (!(value instanceof DBObject))
+                return null;
+            value = ((DBObject) value).get(key);
+        }
+        return value;
+    }
+}
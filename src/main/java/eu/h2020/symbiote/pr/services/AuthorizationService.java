@@ -1,6 +1,7 @@
 package eu.h2020.symbiote.pr.services;
 
 import eu.h2020.symbiote.pr.helpers.AuthorizationServiceHelper;
+import eu.h2020.symbiote.pr.helpers.SecurityRequestCache;
 import eu.h2020.symbiote.security.ComponentSecurityHandlerFactory;
 import eu.h2020.symbiote.security.accesspolicies.IAccessPolicy;
 import eu.h2020.symbiote.security.accesspolicies.common.AccessPolicyFactory;
@@ -10,18 +11,30 @@ import eu.h2020.symbiote.security.commons.exceptions.custom.InvalidArgumentsExce
 import eu.h2020.symbiote.security.commons.exceptions.custom.SecurityHandlerException;
 import eu.h2020.symbiote.security.communication.payloads.SecurityRequest;
 import eu.h2020.symbiote.security.handler.IComponentSecurityHandler;
+import eu.h2020.symbiote.security.helpers.MutualAuthenticationHelper;
 import io.jsonwebtoken.Claims;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
+import javax.annotation.PreDestroy;
+
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles the authentication and authorization procedures. This class is used as a wrapper around ComponentSecurityHandler.
@@ -34,6 +47,19 @@ import java.util.Map;
 public class AuthorizationService {
     private static Log log = LogFactory.getLog(AuthorizationService.class);
 
+    /**
+     * The endpoints whose access policies can be configured separately
+     */
+    public static final String LIST_RESOURCES = "list_resources";
+    public static final String LIST_FEDERATION_RESOURCES = "list_federation_resources";
+    public static final String SEARCH = "search";
+    public static final String INDEX_STATS = "index_stats";
+    public static final List<String> ENDPOINTS = Arrays.asList(LIST_RESOURCES, LIST_FEDERATION_RESOURCES, SEARCH,
+            INDEX_STATS);
+
+    private static final String SINGLE_LOCAL_HOME_TOKEN_ACCESS_POLICY = "SingleLocalHomeTokenAccessPolicy";
+    private static final String ACCESS_POLICIES_PROPERTY_PREFIX = "symbiote.cloud.platformRegistry.accessPolicies.";
+
     private String platformId;
     private String componentOwnerName;
     private String componentOwnerPassword;
@@ -44,6 +70,21 @@ public class AuthorizationService {
     private Boolean securityEnabled;
 
     private IComponentSecurityHandler componentSecurityHandler;
+    private SecurityRequestCache securityRequestCache;
+
+    // The access policies are built once and shared by all the requests to the same endpoint
+    private Map<String, IAccessPolicy> defaultAccessPolicies;
+    private Map<String, Map<String, IAccessPolicy>> endpointAccessPolicies = new ConcurrentHashMap<>();
+    // Increased whenever the access policies are replaced. It is part of the cache keys, so that a result checked
+    // against the previous policies is never reused, even if it is cached after the invalidation
+    private AtomicLong accessPoliciesGeneration = new AtomicLong();
+
+    // The signed service response which is reused until it gets older than serviceResponseValidity
+    private boolean serviceResponseCacheEnabled;
+    private long serviceResponseValidity;
+    private volatile String cachedServiceResponse;
+    private volatile long cachedServiceResponseCreationTime;
+    private ScheduledExecutorService serviceResponseRefresher;
 
     public AuthorizationService(@Value("${platform.id}") String platformId,
                                 @Value("${symbIoTe.component.username}") String componentOwnerName,
@@ -52,8 +93,13 @@ public class AuthorizationService {
                                 @Value("${symbIoTe.component.clientId}") String clientId,
                                 @Value("${symbIoTe.component.keystore.path}") String keystoreName,
                                 @Value("${symbIoTe.component.keystore.password}") String keystorePass,
-                                @Value("${symbIoTe.aam.integration}") Boolean securityEnabled)
-            throws SecurityHandlerException {
+                                @Value("${symbIoTe.aam.integration}") Boolean securityEnabled,
+                                @Value("${symbiote.cloud.platformRegistry.securityCache.maxSize:10000}") int securityCacheMaxSize,
+                                @Value("${symbiote.cloud.platformRegistry.securityCache.ttl:60000}") long securityCacheTtl,
+                                @Value("${symbiote.cloud.platformRegistry.serviceResponseCache.enabled:false}") boolean serviceResponseCacheEnabled,
+                                @Value("${symbiote.cloud.platformRegistry.serviceResponseCache.validity:20000}") long serviceResponseValidity,
+                                Environment environment)
+            throws SecurityHandlerException, InvalidArgumentsException {
 
         Assert.notNull(platformId,"platformId can not be null!");
         this.platformId = platformId;
@@ -79,10 +125,39 @@ public class AuthorizationService {
         Assert.notNull(securityEnabled,"securityEnabled can not be null!");
         this.securityEnabled = securityEnabled;
 
+        Assert.isTrue(securityCacheMaxSize >= 0, "securityCacheMaxSize can not be negative!");
+        this.securityRequestCache = new SecurityRequestCache(securityCacheMaxSize, securityCacheTtl);
+
+        this.defaultAccessPolicies = createSingleLocalHomeTokenAccessPolicy();
+        configureAccessPolicies(environment);
+
+        Assert.isTrue(!serviceResponseCacheEnabled || serviceResponseValidity > 0,
+                "serviceResponseValidity should be positive!");
+        this.serviceResponseCacheEnabled = serviceResponseCacheEnabled;
+        this.serviceResponseValidity = serviceResponseValidity;
+
         if (securityEnabled)
             enableSecurity();
     }
 
+    /**
+     * Replaces the access policies which should be satisfied by the requests to an endpoint. By default, the
+     * SingleLocalHomeTokenAccessPolicy is used for every endpoint.
+     *
+     * @param endpoint the endpoint, e.g. {@link #LIST_FEDERATION_RESOURCES}
+     * @param accessPolicies the access policies by their identifiers. The request is accepted if any of them is satisfied
+     */
+    public void setAccessPolicies(String endpoint, Map<String, IAccessPolicy> accessPolicies) {
+        Assert.notNull(endpoint, "endpoint can not be null!");
+        Assert.notEmpty(accessPolicies, "accessPolicies can not be empty!");
+
+        endpointAccessPolicies.put(endpoint, Collections.unmodifiableMap(new HashMap<>(accessPolicies)));
+
+        // The cached results were checked against the previous policies
+        accessPoliciesGeneration.incrementAndGet();
+        securityRequestCache.invalidate();
+    }
+
     /**
      * Checks if the client has appropriate access rights to get the list of the registered resources.
      *
@@ -90,6 +165,17 @@ public class AuthorizationService {
      * Otherwise, the body includes some indication of the failure
      */
     public ResponseEntity checkListResourcesRequest(HttpHeaders httpHeaders, String serviceResponse) {
+        return checkListResourcesRequest(httpHeaders, serviceResponse, LIST_RESOURCES);
+    }
+
+    /**
+     * Checks if the client has appropriate access rights to access an endpoint.
+     *
+     * @param endpoint the endpoint whose access policies should be satisfied, e.g. {@link #SEARCH}
+     * @return if the status of the returned ResponseEntity is OK, then the client has sufficient access rights.
+     * Otherwise, the body includes some indication of the failure
+     */
+    public ResponseEntity checkListResourcesRequest(HttpHeaders httpHeaders, String serviceResponse, String endpoint) {
         if (securityEnabled) {
             if (httpHeaders == null)
                 return AuthorizationServiceHelper.addSecurityService(
@@ -107,11 +193,25 @@ public class AuthorizationService {
                         HttpStatus.BAD_REQUEST, serviceResponse);
             }
 
+            // The same tokens are usually sent with many requests, so reuse the result of their validation. The
+            // challenges and the timestamp change in every request, so they are still verified every time
+            String cacheKey = securityRequestCache.key(securityRequest);
+            // The generation is read before the policies, so a concurrent replacement of the policies can only make
+            // this result unreachable
+            String cacheScope = endpoint + "@" + accessPoliciesGeneration.get();
+            if (cacheKey != null && securityRequestCache.isVerified(cacheKey, cacheScope)) {
+                if (isSecurityRequestFresh(securityRequest)) {
+                    log.debug("The tokens of listResources request have already been verified");
+                    return new ResponseEntity<>(HttpStatus.OK);
+                }
+                return AuthorizationServiceHelper.addSecurityService(
+                        "The authentication challenge or the timestamp of the SecurityRequest is not valid",
+                        new HttpHeaders(), HttpStatus.UNAUTHORIZED, serviceResponse);
+            }
+
             boolean checkResult;
             try {
-                // Here we check the SingleLocalHomeTokenAccessPolicy. This has to be modified if we need to satisfy
-                // another access policy
-                checkResult = checkSingleLocalHomeTokenAccessPolicy(securityRequest);
+                checkResult = checkAccessPolicies(getAccessPolicies(endpoint), securityRequest);
             } catch (Exception e) {
                 log.info("Could not verify the access policies", e);
                 return AuthorizationServiceHelper.addSecurityService(
@@ -120,6 +220,8 @@ public class AuthorizationService {
             }
 
             if (checkResult) {
+                if (cacheKey != null)
+                    securityRequestCache.putVerified(cacheKey, cacheScope, securityRequest);
                 return new ResponseEntity<>(HttpStatus.OK);
             } else {
                 return AuthorizationServiceHelper.addSecurityService(
@@ -142,8 +244,16 @@ public class AuthorizationService {
      */
     public ResponseEntity generateServiceResponse() {
         if (securityEnabled) {
+            if (serviceResponseCacheEnabled) {
+                // Read the creation time first, since it is written after the service response
+                long creationTime = cachedServiceResponseCreationTime;
+                String serviceResponse = cachedServiceResponse;
+                if (serviceResponse != null && System.currentTimeMillis() - creationTime < serviceResponseValidity)
+                    return new ResponseEntity<>(serviceResponse, HttpStatus.OK);
+            }
+
             try {
-                String serviceResponse = componentSecurityHandler.generateServiceResponse();
+                String serviceResponse = createServiceResponse();
                 return new ResponseEntity<>(serviceResponse, HttpStatus.OK);
             } catch (SecurityHandlerException e) {
                 log.info("Failed to generate a service response", e);
@@ -157,6 +267,73 @@ public class AuthorizationService {
 
     }
 
+    /**
+     * Discards all the cached results of the access policy checks, so that the next requests are verified again
+     */
+    public void invalidateSecurityRequestCache() {
+        securityRequestCache.invalidate();
+    }
+
+    /**
+     * Discards the cached results of the access policy checks of the tokens in the specified security headers
+     *
+     * @param httpHeaders the headers containing the SecurityRequest
+     */
+    public void invalidateSecurityRequestCache(HttpHeaders httpHeaders) {
+        try {
+            String cacheKey = securityRequestCache.key(new SecurityRequest(httpHeaders.toSingleValueMap()));
+            if (cacheKey != null)
+                securityRequestCache.invalidate(cacheKey);
+        } catch (InvalidArgumentsException e) {
+            log.info("Could not create the SecurityRequest of the invalidated headers", e);
+        }
+    }
+
+    @PreDestroy
+    public void stopServiceResponseRefresher() {
+        if (serviceResponseRefresher != null)
+            serviceResponseRefresher.shutdownNow();
+    }
+
+    /**
+     * Signs a new service response and caches it if the service response cache is enabled
+     */
+    private String createServiceResponse() throws SecurityHandlerException {
+        String serviceResponse = componentSecurityHandler.generateServiceResponse();
+
+        if (serviceResponseCacheEnabled) {
+            long creationTime = System.currentTimeMillis();
+            synchronized (this) {
+                if (creationTime > cachedServiceResponseCreationTime) {
+                    cachedServiceResponse = serviceResponse;
+                    cachedServiceResponseCreationTime = creationTime;
+                }
+            }
+        }
+        return serviceResponse;
+    }
+
+    /**
+     * Refreshes the cached service response in the background every half of its validity, so that the requests
+     * always find a valid one
+     */
+    private void startServiceResponseRefresher() {
+        serviceResponseRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "service-response-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        serviceResponseRefresher.scheduleWithFixedDelay(() -> {
+            try {
+                createServiceResponse();
+            } catch (Exception e) {
+                // The requests generate the service response themselves until the next refresh succeeds
+                log.warn("Failed to refresh the cached service response", e);
+            }
+        }, 0, Math.max(1, serviceResponseValidity / 2), TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Enables Security
      *
@@ -172,29 +349,108 @@ public class AuthorizationService {
                 componentOwnerName,
                 componentOwnerPassword);
 
+        if (serviceResponseCacheEnabled)
+            startServiceResponseRefresher();
+    }
+
+    /**
+     * @return the access policies of the endpoint or the default ones if they have not been configured
+     */
+    private Map<String, IAccessPolicy> getAccessPolicies(String endpoint) {
+        Map<String, IAccessPolicy> accessPolicies = endpointAccessPolicies.get(endpoint);
+        return accessPolicies != null ? accessPolicies : defaultAccessPolicies;
     }
 
     /**
-     * Checks if the security request passes the SingleLocalHomeTokenAccessPolicy
+     * Reads the access policies of the endpoints from the properties. An endpoint is given a single token access
+     * policy by its type and, optionally, its required claims as comma separated name=value pairs, e.g.
      *
-     * @param securityRequest the security request in the client's request
-     * @return a boolean indicating if the request passes the access policy or not
-     * @throws Exception
+     * symbiote.cloud.platformRegistry.accessPolicies.search.type=STAP
+     * symbiote.cloud.platformRegistry.accessPolicies.search.claims=iss=platform1,name=user1
+     *
+     * The SingleLocalHomeTokenAccessPolicy requires the platform as the issuer, unless another one is given. The
+     * endpoints without a type use the default policies, while the composite policies can only be set through
+     * {@link #setAccessPolicies(String, Map)}.
      */
-    private boolean checkSingleLocalHomeTokenAccessPolicy(SecurityRequest securityRequest)
-            throws Exception {
-        Map<String, IAccessPolicy> accessPoliciesMap = new HashMap<>();
-        Map<String, String> requiredClaims = new HashMap<>();
+    private void configureAccessPolicies(Environment environment) throws InvalidArgumentsException {
+        for (String endpoint : ENDPOINTS) {
+            String type = environment.getProperty(ACCESS_POLICIES_PROPERTY_PREFIX + endpoint + ".type");
+            if (type == null || type.trim().isEmpty())
+                continue;
+
+            AccessPolicyType accessPolicyType;
+            try {
+                accessPolicyType = AccessPolicyType.valueOf(type.trim());
+            } catch (IllegalArgumentException e) {
+                throw new InvalidArgumentsException("Unknown access policy type " + type + " for " + endpoint);
+            }
+
+            Map<String, String> requiredClaims = new HashMap<>();
+            String claims = environment.getProperty(ACCESS_POLICIES_PROPERTY_PREFIX + endpoint + ".claims", "");
+            for (String claim : claims.split(",")) {
+                if (claim.trim().isEmpty())
+                    continue;
+
+                String[] nameAndValue = claim.split("=", 2);
+                if (nameAndValue.length != 2)
+                    throw new InvalidArgumentsException("The claim " + claim + " of " + endpoint +
+                            " should be a name=value pair");
+                requiredClaims.put(nameAndValue[0].trim(), nameAndValue[1].trim());
+            }
 
+            if (accessPolicyType == AccessPolicyType.SLHTAP)
+                requiredClaims.putIfAbsent(Claims.ISSUER, platformId);
+
+            IAccessPolicy policy = AccessPolicyFactory.getAccessPolicy(
+                    new SingleTokenAccessPolicySpecifier(accessPolicyType, requiredClaims));
+            endpointAccessPolicies.put(endpoint, Collections.singletonMap(accessPolicyType.name(), policy));
+            log.info("The requests to " + endpoint + " should satisfy the " + accessPolicyType + " access policy");
+        }
+    }
+
+    /**
+     * Creates the SingleLocalHomeTokenAccessPolicy, which requires a home token issued by the platform
+     *
+     * @return the access policies map containing only the SingleLocalHomeTokenAccessPolicy
+     * @throws InvalidArgumentsException
+     */
+    private Map<String, IAccessPolicy> createSingleLocalHomeTokenAccessPolicy() throws InvalidArgumentsException {
+        Map<String, String> requiredClaims = new HashMap<>();
         requiredClaims.put(Claims.ISSUER, platformId);
 
         // Construct policy
         IAccessPolicy policy = AccessPolicyFactory.getAccessPolicy(
                 new SingleTokenAccessPolicySpecifier(AccessPolicyType.SLHTAP, requiredClaims));
-        accessPoliciesMap.put("SingleLocalHomeTokenAccessPolicy", policy);
+        return Collections.singletonMap(SINGLE_LOCAL_HOME_TOKEN_ACCESS_POLICY, policy);
+    }
 
+    /**
+     * Verifies the parts of the security request which are different in every request, i.e. the timestamp and the
+     * authentication challenges, without validating the tokens again
+     *
+     * @param securityRequest the security request in the client's request
+     * @return true if the request is fresh and the challenges are signed by the owners of the tokens
+     */
+    private boolean isSecurityRequestFresh(SecurityRequest securityRequest) {
+        try {
+            return MutualAuthenticationHelper.isSecurityRequestVerified(securityRequest);
+        } catch (Exception e) {
+            log.info("Could not verify the SecurityRequest", e);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the security request passes any of the access policies
+     *
+     * @param accessPolicies the access policies by their identifiers
+     * @param securityRequest the security request in the client's request
+     * @return a boolean indicating if the request passes the access policies or not
+     * @throws Exception
+     */
+    private boolean checkAccessPolicies(Map<String, IAccessPolicy> accessPolicies, SecurityRequest securityRequest)
+            throws Exception {
         // if the satisfiedPoliciesIdentifies size is greater than 0, then the policy is satisfied
-        return componentSecurityHandler.getSatisfiedPoliciesIdentifiers(accessPoliciesMap, securityRequest).size() > 0;
+        return componentSecurityHandler.getSatisfiedPoliciesIdentifiers(accessPolicies, securityRequest).size() > 0;
     }
 }
-
@@ -1,14 +1,20 @@
 package eu.h2020.symbiote.pr.services;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.h2020.symbiote.cloud.model.internal.*;
+import eu.h2020.symbiote.pr.communication.rabbit.SubscriptionManagerPublisher;
+import eu.h2020.symbiote.pr.helpers.ContentHash;
+import eu.h2020.symbiote.pr.helpers.Deadline;
+import eu.h2020.symbiote.pr.helpers.DeadlineExceededException;
+import eu.h2020.symbiote.pr.helpers.FederatedResourceCopier;
+import eu.h2020.symbiote.pr.helpers.ResourceIdGenerator;
+import eu.h2020.symbiote.pr.model.BulkWriteReport;
+import eu.h2020.symbiote.pr.model.ResourcesUpdateResult;
 import eu.h2020.symbiote.pr.repositories.ResourceRepository;
 import io.jsonwebtoken.lang.Assert;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -25,51 +31,58 @@ import java.util.stream.Collectors;
 public class RegistrationHandlerService {
     private static Log log = LogFactory.getLog(RegistrationHandlerService.class);
 
+    private static final int MAX_INSERT_ATTEMPTS = 3;
+
     private ResourceRepository resourceRepository;
-    private RabbitTemplate rabbitTemplate;
+    private ResourceIdGenerator resourceIdGenerator;
+    private SubscriptionManagerPublisher subscriptionManagerPublisher;
     private String platformId;
-    private String subscriptionManagerExchange;
-    private String smAddOrUpdateFederatedResourcesKey;
-    private String smRemoveFederatedResourcesKey;
-    private ObjectMapper mapper = new ObjectMapper();
+    private FederatedResourceCopier federatedResourceCopier = new FederatedResourceCopier(new ObjectMapper());
 
     @Autowired
     public RegistrationHandlerService(ResourceRepository resourceRepository,
-                                      RabbitTemplate rabbitTemplate,
-                                      @Value("${platform.id}") String platformId,
-                                      @Value("${rabbit.exchange.subscriptionManager.name}")
-                                                  String subscriptionManagerExchange,
-                                      @Value("${rabbit.routingKey.subscriptionManager.addOrUpdateFederatedResources}")
-                                                  String smAddOrUpdateFederatedResourcesKey,
-                                      @Value("${rabbit.routingKey.subscriptionManager.removeFederatedResources}")
-                                                  String smRemoveFederatedResourcesKey) {
+                                      ResourceIdGenerator resourceIdGenerator,
+                                      SubscriptionManagerPublisher subscriptionManagerPublisher,
+                                      @Value("${platform.id}") String platformId) {
 
         this.resourceRepository = resourceRepository;
-        this.rabbitTemplate = rabbitTemplate;
+        this.resourceIdGenerator = resourceIdGenerator;
+        this.subscriptionManagerPublisher = subscriptionManagerPublisher;
 
         Assert.notNull(platformId, "The platformId should not be null");
         this.platformId = platformId;
-
-        Assert.notNull(subscriptionManagerExchange, "The subscriptionManagerExchange should not be null");
-        this.subscriptionManagerExchange = subscriptionManagerExchange;
-
-        Assert.notNull(smAddOrUpdateFederatedResourcesKey, "The smAddOrUpdateFederatedResourcesKey should not be null");
-        this.smAddOrUpdateFederatedResourcesKey = smAddOrUpdateFederatedResourcesKey;
-
-        Assert.notNull(smRemoveFederatedResourcesKey, "The smRemoveFederatedResourcesKey should not be null");
-        this.smRemoveFederatedResourcesKey = smRemoveFederatedResourcesKey;
     }
 
     /**
-     * Stores the federated resources offered by the platform
+     * Stores the federated resources offered by the platform. The resources whose content has not changed are neither
+     * stored again nor sent to the Subscription Manager. The rest replace their stored documents as a whole.
      *
      * @param cloudResources registration message sent by Registration Handler
-     * @return a list of the new/updated CloudResources
+     * @param deadline the deadline of the request, checked before the processing starts and before the resources are
+     *                 written. Once they are written, the processing completes, so that the Subscription Manager is
+     *                 always notified about the stored changes
+     * @return the list of the new/updated CloudResources and the number of the unchanged ones
+     * @throws DeadlineExceededException if the deadline passed before the resources were written
      */
-    public List<CloudResource> addOrUpdatePlatformResources(List<CloudResource> cloudResources) {
+    public ResourcesUpdateResult addOrUpdatePlatformResources(List<CloudResource> cloudResources, Deadline deadline) {
         log.trace("addOrUpdatePlatformResources: " + ReflectionToStringBuilder.toString(cloudResources));
+        deadline.check("addOrUpdatePlatformResources");
 
         List<FederatedResource> resourcesToSave = new LinkedList<>();
+        // The registered resources by the aggregationIds generated for them
+        Map<String, CloudResource> newCloudResources = new HashMap<>();
+
+        // Fetch the resources which are already stored, i.e. the ones which are updated
+        Set<String> storedFederatedResourceIds = cloudResources.stream()
+                .filter(cloudResource -> cloudResource.getFederationInfo() != null &&
+                        cloudResource.getFederationInfo().getAggregationId() != null)
+                .map(cloudResource -> cloudResource.getFederationInfo().getAggregationId())
+                .collect(Collectors.toSet());
+        List<FederatedResource> storedFederatedResources = storedFederatedResourceIds.isEmpty() ?
+                new ArrayList<>() :
+                resourceRepository.findAllByAggregationIdIn(storedFederatedResourceIds);
+        Map<String, FederatedResource> storedFederatedResourcesMap = storedFederatedResources.stream()
+                .collect(Collectors.toMap(FederatedResource::getAggregationId, federatedResource -> federatedResource));
 
         for (CloudResource cloudResource : cloudResources) {
 
@@ -91,9 +104,11 @@ public class RegistrationHandlerService {
                     federationInfo.setResourceTrust(cloudResource.getFederationInfo().getResourceTrust());
 
                 cloudResource.setFederationInfo(federationInfo);
+                newCloudResources.put(federationInfo.getAggregationId(), cloudResource);
             }
 
             String aggregationId = cloudResource.getFederationInfo().getAggregationId();
+            FederatedResource storedFederatedResource = storedFederatedResourcesMap.get(aggregationId);
 
             // If barteringInfo == null, default it to false
             for (Map.Entry<String, ResourceSharingInformation> entry :
@@ -101,8 +116,9 @@ public class RegistrationHandlerService {
                 entry.getValue().setSymbioteId(aggregationId + '@' + entry.getKey());
                 if (entry.getValue().getBartering() == null)
                     entry.getValue().setBartering(false);
+                // Keep the date when the resource was first shared to the federation
                 if (entry.getValue().getSharingDate() == null)
-                    entry.getValue().setSharingDate(new Date());
+                    entry.getValue().setSharingDate(storedSharingDate(storedFederatedResource, entry.getKey()));
             }
 
             //resourceTrust is not required to be updated here
@@ -114,20 +130,58 @@ public class RegistrationHandlerService {
         }
 
         // Find the federations where the resources are no longer exposed to
-        ResourcesDeletedMessage resourcesToBeRemoved = findResourcesToBeRemoved(cloudResources);
-
-        if (resourcesToBeRemoved.getDeletedFederatedResources().size() > 0)
-            rabbitTemplate.convertAndSend(subscriptionManagerExchange, smRemoveFederatedResourcesKey,
-                    resourcesToBeRemoved);
-
-        // Inform Subscription Manager for the new resources
-        if (resourcesToSave.size() > 0)
-            rabbitTemplate.convertAndSend(subscriptionManagerExchange, smAddOrUpdateFederatedResourcesKey,
-                    new ResourcesAddedOrUpdatedMessage(resourcesToSave));
+        ResourcesDeletedMessage resourcesToBeRemoved = findResourcesToBeRemoved(cloudResources, storedFederatedResources);
+
+        // Skip the resources which are stored with the same content. The stored resources have already been read, so
+        // their hashes are computed here instead of being read from the database again
+        int skipped = resourcesToSave.size();
+        resourcesToSave.removeIf(federatedResource -> {
+            FederatedResource storedFederatedResource = storedFederatedResourcesMap
+                    .get(federatedResource.getAggregationId());
+            return storedFederatedResource != null &&
+                    ContentHash.of(storedFederatedResource).equals(ContentHash.of(federatedResource));
+        });
+        skipped -= resourcesToSave.size();
+        if (skipped > 0)
+            log.debug(skipped + " FederatedResources have not changed, so they are not stored again");
+
+        deadline.check("addOrUpdatePlatformResources");
+        BulkWriteReport report = resourceRepository.bulkSave(resourcesToSave, newCloudResources.keySet());
+        logFailures(report);
+        List<FederatedResource> savedResources = withoutFailures(resourcesToSave, report);
+
+        // Inform Subscription Manager only about the changes which have been stored
+        Set<String> removedSymbioteIds = withoutFailures(resourcesToBeRemoved.getDeletedFederatedResources(), report);
+        if (removedSymbioteIds.size() > 0)
+            subscriptionManagerPublisher.publishDeleted(removedSymbioteIds);
+
+        // The new resources are inserted, so a generated id which is already used is reported as a conflict instead of
+        // overwriting the stored resource. Give these resources other ids and insert them again
+        for (int attempt = 1; report.hasConflicts() && attempt < MAX_INSERT_ATTEMPTS; attempt++) {
+            log.warn(report.getConflicts().size() + " generated aggregationIds are already used, so new ones are " +
+                    "generated. Every instance sharing the database should have a different idGenerator.nodeId");
+
+            Map<String, CloudResource> conflictingCloudResources = new HashMap<>();
+            for (String aggregationId : report.getConflicts()) {
+                CloudResource cloudResource = newCloudResources.get(aggregationId);
+                setAggregationId(cloudResource, createNewResourceId());
+                conflictingCloudResources.put(cloudResource.getFederationInfo().getAggregationId(), cloudResource);
+            }
+            newCloudResources = conflictingCloudResources;
+
+            List<FederatedResource> retriedResources = newCloudResources.values().stream()
+                    .map(FederatedResource::new)
+                    .collect(Collectors.toList());
+            report = resourceRepository.bulkSave(retriedResources, newCloudResources.keySet());
+            logFailures(report);
+            savedResources.addAll(withoutFailures(retriedResources, report));
+        }
+        if (report.hasConflicts())
+            log.warn("Failed to find unused aggregationIds for the new federated resources " + report.getConflicts());
 
-        resourceRepository.save(resourcesToSave);
+        subscriptionManagerPublisher.publishAddedOrUpdated(savedResources);
 
-        return cloudResources;
+        return new ResourcesUpdateResult(cloudResources, skipped);
     }
 
 
@@ -135,10 +189,13 @@ public class RegistrationHandlerService {
      * Remove federated resources offered by the platform by using their internalIds
      *
      * @param internalIds the internal ids of the platform resources to be removed
+     * @param deadline the deadline of the request, checked before the resources are removed
      * @return the list of the removed resources
+     * @throws DeadlineExceededException if the deadline passed before the resources were removed
      */
-    public List<String> removePlatformResources(List<String> internalIds) {
+    public List<String> removePlatformResources(List<String> internalIds, Deadline deadline) {
         log.trace("removePlatformResources: " + ReflectionToStringBuilder.toString(internalIds));
+        deadline.check("removePlatformResources");
 
         if (internalIds == null)
             return new ArrayList<>();
@@ -147,7 +204,8 @@ public class RegistrationHandlerService {
 
         Set<String> federatedResourcesRemoved = new HashSet<>();
 
-        List<FederatedResource> federatedResources = resourceRepository.findAllByCloudResource_InternalIdIn(internalIdsSet);
+        // Only the resources which have actually been removed are reported
+        List<FederatedResource> federatedResources = resourceRepository.deleteAllByCloudResource_InternalIdIn(internalIdsSet);
 
         for (FederatedResource federatedResource : federatedResources) {
             if (federatedResource.getCloudResource() != null &&
@@ -160,39 +218,45 @@ public class RegistrationHandlerService {
             }
         }
 
-        List<String> internalIdsRemoved = resourceRepository.deleteAllByCloudResource_InternalIdIn(internalIdsSet).stream()
+        List<String> internalIdsRemoved = federatedResources.stream()
                 .map(federatedResource -> federatedResource.getCloudResource().getInternalId())
                 .collect(Collectors.toList());
 
         // Inform Subscription Manager for the removed resources
-        rabbitTemplate.convertAndSend(subscriptionManagerExchange, smRemoveFederatedResourcesKey,
-                new ResourcesDeletedMessage(federatedResourcesRemoved));
+        subscriptionManagerPublisher.publishDeleted(federatedResourcesRemoved);
 
         return internalIdsRemoved;
     }
 
 
     /**
-     * Shares resources in federations
+     * Shares resources in federations. Only the entries of the new federations are set in the stored documents, so the
+     * concurrent changes of the rest of the resources are not lost.
      *
      * @param resourcesToBeShared a map with key the federationId and value another map, which has as key
      *                            the internalId of the resource and value the bartering status
+     * @param deadline the deadline of the request, checked before the processing starts and before the resources are
+     *                 written
      * @return a list of the updated CloudResources
+     * @throws DeadlineExceededException if the deadline passed before the resources were written
      */
-    public List<CloudResource> shareResources(Map<String, Map<String, Boolean>> resourcesToBeShared) {
+    public List<CloudResource> shareResources(Map<String, Map<String, Boolean>> resourcesToBeShared,
+                                              Deadline deadline) {
+        deadline.check("shareResources");
 
         // A map of the federated resources to be saved. The key is the internal id
         Map<String, FederatedResource> resourcesToSave = new HashMap<>();
 
+        // The federations where the resources are shared to. The key is the aggregationId
+        Map<String, Set<String>> sharedFederationIds = new HashMap<>();
+
         // First find all the resources that are going to be shared
         Set<String> cloudResourcesIds = new HashSet<>();
         for (Map.Entry<String, Map<String, Boolean>> federationEntry : resourcesToBeShared.entrySet())
             cloudResourcesIds.addAll(federationEntry.getValue().keySet());
 
         // Fetch the federated resources from the database and convert them to a map. The key is the internalId
-        Map<String, FederatedResource> storedFederatedResources = resourceRepository
-                .findAllByCloudResource_InternalIdIn(cloudResourcesIds).stream()
-                .collect(Collectors.toMap(resource -> resource.getCloudResource().getInternalId(), resource -> resource));
+        Map<String, FederatedResource> storedFederatedResources = findForSharingByInternalId(cloudResourcesIds);
 
         // Iterate and update the federatedResources
         for (Map.Entry<String, Map<String, Boolean>> federationEntry : resourcesToBeShared.entrySet()) {
@@ -220,44 +284,55 @@ public class RegistrationHandlerService {
 
                 // Update also this info to the storedFederation
                 storedFederatedResource.shareToNewFederation(federationId, barteringStatus, sharingDate);
+                sharedFederationIds.computeIfAbsent(storedFederatedResource.getAggregationId(), id -> new HashSet<>())
+                        .add(federationId);
 
                 resourcesToSave.put(internalId, federatedResource);
 
             }
         }
 
-        // Inform Subscription Manager for the new resources
-        if (resourcesToSave.size() > 0)
-            rabbitTemplate.convertAndSend(subscriptionManagerExchange, smAddOrUpdateFederatedResourcesKey,
-                    new ResourcesAddedOrUpdatedMessage(new ArrayList<>(resourcesToSave.values())));
+        deadline.check("shareResources");
+        BulkWriteReport report = resourceRepository.shareToFederations(storedFederatedResources.values(),
+                sharedFederationIds);
+        logFailures(report);
 
-        resourceRepository.save(new ArrayList<>(storedFederatedResources.values()));
+        // Inform Subscription Manager for the new resources which have been stored
+        subscriptionManagerPublisher.publishAddedOrUpdated(withoutFailures(resourcesToSave.values(), report));
 
         // We return the list of CloudResources from the storedFederatedResources
-        return storedFederatedResources.values().stream().map(FederatedResource::getCloudResource).collect(Collectors.toList());
+        return storedFederatedResources.values().stream()
+                .map(FederatedResource::getCloudResource)
+                .collect(Collectors.toList());
     }
 
 
     /**
-     * Unshares resources from federations
+     * Unshares resources from federations. Only the entries of the federations are removed from the stored documents,
+     * so the concurrent changes of the rest of the resources are not lost.
      *
      * @param resourcesToBeUnshared a map with key the federationId and value the list of internalIds to be unshared
+     * @param deadline the deadline of the request, checked before the processing starts and before the resources are
+     *                 written
      * @return a list of the updated CloudResources
+     * @throws DeadlineExceededException if the deadline passed before the resources were written
      */
-    public List<CloudResource> unshareResources(Map<String, List<String>> resourcesToBeUnshared) {
+    public List<CloudResource> unshareResources(Map<String, List<String>> resourcesToBeUnshared, Deadline deadline) {
+        deadline.check("unshareResources");
 
         // A set of the federated resources to be saved. The key is the symbioteId
         Set<String> resourcesToBeRemoved = new HashSet<>();
 
+        // The federations where the resources are unshared from. The key is the aggregationId
+        Map<String, Set<String>> unsharedFederationIds = new HashMap<>();
+
         // First find all the resources that are going to be unshared
         Set<String> cloudResourcesIds = new HashSet<>();
         for (Map.Entry<String, List<String>> federationEntry : resourcesToBeUnshared.entrySet())
             cloudResourcesIds.addAll(federationEntry.getValue());
 
         // Fetch the federated resources from the database and convert them to a map. The key is the internalId
-        Map<String, FederatedResource> storedFederatedResources = resourceRepository
-                .findAllByCloudResource_InternalIdIn(cloudResourcesIds).stream()
-                .collect(Collectors.toMap(resource -> resource.getCloudResource().getInternalId(), resource -> resource));
+        Map<String, FederatedResource> storedFederatedResources = findForSharingByInternalId(cloudResourcesIds);
 
         // Iterate and update the federatedResources
         for (Map.Entry<String, List<String>> federationEntry : resourcesToBeUnshared.entrySet()) {
@@ -268,34 +343,87 @@ public class RegistrationHandlerService {
                 // This contains all the federations where the resource is shared to
                 FederatedResource storedFederatedResource = storedFederatedResources.get(internalId);
 
-                if (storedFederatedResource != null) {
-                    if(storedFederatedResource.getFederatedResourceInfoMap().containsKey(federationId))
-                   resourcesToBeRemoved.add(storedFederatedResource.getFederatedResourceInfoMap().get(federationId).getSymbioteId());
+                if (storedFederatedResource != null &&
+                        storedFederatedResource.getFederatedResourceInfoMap().containsKey(federationId)) {
+                    resourcesToBeRemoved.add(storedFederatedResource.getFederatedResourceInfoMap().get(federationId).getSymbioteId());
+                    unsharedFederationIds.computeIfAbsent(storedFederatedResource.getAggregationId(),
+                            id -> new HashSet<>()).add(federationId);
+
                     // Update also this info to the storedFederation
                     storedFederatedResource.unshareFromFederation(federationId);
                 }
             }
         }
 
-        // Inform Subscription Manager for the removed resources
-        rabbitTemplate.convertAndSend(subscriptionManagerExchange, smRemoveFederatedResourcesKey,
-                new ResourcesDeletedMessage(resourcesToBeRemoved));
+        deadline.check("unshareResources");
+        BulkWriteReport report = resourceRepository.unshareFromFederations(unsharedFederationIds);
+        logFailures(report);
 
-        resourceRepository.save(new ArrayList<>(storedFederatedResources.values()));
+        // Inform Subscription Manager for the removed resources which have been stored
+        subscriptionManagerPublisher.publishDeleted(withoutFailures(resourcesToBeRemoved, report));
 
         // We return the list of CloudResources from the storedFederatedResources
-        return storedFederatedResources.values().stream().map(FederatedResource::getCloudResource).collect(Collectors.toList());
+        return storedFederatedResources.values().stream()
+                .map(FederatedResource::getCloudResource)
+                .collect(Collectors.toList());
     }
 
+    private Map<String, FederatedResource> findForSharingByInternalId(Set<String> internalIds) {
+        return resourceRepository.findForSharingByInternalIdIn(internalIds).stream()
+                .collect(Collectors.toMap(federatedResource -> federatedResource.getCloudResource().getInternalId(),
+                        federatedResource -> federatedResource));
+    }
 
-    private ResourcesDeletedMessage findResourcesToBeRemoved(List<CloudResource> cloudResources) {
 
-        // Create a list of the federated resource ids which are stored in the database
-        Set<String> storedFederatedResourceIds = cloudResources.stream()
-                .map(cloudResource -> cloudResource.getFederationInfo().getAggregationId()).collect(Collectors.toSet());
+    private void logFailures(BulkWriteReport report) {
+        if (report.hasFailures())
+            log.warn("Failed to store some of the federated resources: " + report.getFailures());
+    }
 
-        // Fetch the stored federatedResources
-        List<FederatedResource> storedFederatedResources = resourceRepository.findAllByAggregationIdIn(storedFederatedResourceIds);
+    /**
+     * @return the resources whose write has neither failed nor conflicted
+     */
+    private List<FederatedResource> withoutFailures(Collection<FederatedResource> federatedResources,
+                                                    BulkWriteReport report) {
+        return federatedResources.stream()
+                .filter(federatedResource -> !report.getFailures().containsKey(federatedResource.getAggregationId()) &&
+                        !report.getConflicts().contains(federatedResource.getAggregationId()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the symbioteIds (i.e. aggregationId@federationId) of the resources whose write has neither failed nor
+     * conflicted
+     */
+    private Set<String> withoutFailures(Set<String> symbioteIds, BulkWriteReport report) {
+        if (!report.hasFailures() && !report.hasConflicts())
+            return symbioteIds;
+
+        Set<String> notWritten = new HashSet<>(report.getFailures().keySet());
+        notWritten.addAll(report.getConflicts());
+        return symbioteIds.stream()
+                .filter(symbioteId -> notWritten.stream()
+                        .noneMatch(aggregationId -> symbioteId.startsWith(aggregationId + '@')))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * @return the date when the stored resource was shared to the federation or the current date if it was not
+     */
+    private Date storedSharingDate(FederatedResource storedFederatedResource, String federationId) {
+        if (storedFederatedResource != null &&
+                storedFederatedResource.getCloudResource().getFederationInfo() != null &&
+                storedFederatedResource.getCloudResource().getFederationInfo().getSharingInformation() != null) {
+            ResourceSharingInformation storedSharingInformation = storedFederatedResource.getCloudResource()
+                    .getFederationInfo().getSharingInformation().get(federationId);
+            if (storedSharingInformation != null && storedSharingInformation.getSharingDate() != null)
+                return storedSharingInformation.getSharingDate();
+        }
+        return new Date();
+    }
+
+    private ResourcesDeletedMessage findResourcesToBeRemoved(List<CloudResource> cloudResources,
+                                                             List<FederatedResource> storedFederatedResources) {
 
         // Create a map in of the updated CloudResources
         Map<String, CloudResource> updatedCloudResourcesMap = cloudResources.stream()
@@ -334,22 +462,19 @@ public class RegistrationHandlerService {
     }
 
     private String createNewResourceId() {
+        // The generated ids are unique, as long as every instance has a different node id. The new resources are
+        // inserted, so a collision is detected by the database instead of being checked here
+        return resourceIdGenerator.nextResourceId(platformId);
+    }
 
-        //create a randomly generated long number
-        long id = UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
-
-        //cast it to check if it already exists in the database
-        Set<String> ids = new HashSet<>();
-        ids.add(String.format("%0" + Long.BYTES * 2 +"x@%s", id, platformId));
-
-        //in case of collision, create a new id until it is unique
-        while(resourceRepository.findAllByAggregationIdIn(ids).size()>0) {
-            id = UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
-            ids.clear();
-            ids.add(String.format( "%0" + Long.BYTES * 2 +"x@%s", id, platformId));
-        }
-
-        return String.format( "%0" + Long.BYTES * 2 +"x@%s", id, platformId);
+    /**
+     * Changes the aggregationId of the resource and the symbioteIds (i.e. aggregationId@federationId) derived from it
+     */
+    private static void setAggregationId(CloudResource cloudResource, String aggregationId) {
+        cloudResource.getFederationInfo().setAggregationId(aggregationId);
+        for (Map.Entry<String, ResourceSharingInformation> entry :
+                cloudResource.getFederationInfo().getSharingInformation().entrySet())
+            entry.getValue().setSymbioteId(aggregationId + '@' + entry.getKey());
     }
 
     private FederatedResource getFederatedResource(FederatedResource storedFederatedResource,
@@ -367,42 +492,19 @@ public class RegistrationHandlerService {
 
         // If not found, fetch it from the stored federated resources
         if (federatedResource == null) {
-            // Here, we do a trick. Instead of cloning the federatedResource, we just serialize it and deserialize it.
-            // So, every time we deserialize a new object is created. We did that to avoid the cumbersome
-            // implementation of the clone() in every Resource and Resource field (e.g. StationarySensor, MobileSensor,
-            // Location, ...)
-            federatedResource = deserializeFederatedResource(serializeFederatedResource(storedFederatedResource));
-            if (federatedResource == null)
+            // Instead of cloning the federatedResource, we copy it through its JSON representation, so that we avoid
+            // the cumbersome implementation of the clone() in every Resource and Resource field (e.g. StationarySensor,
+            // MobileSensor, Location, ...)
+            try {
+                federatedResource = federatedResourceCopier.copy(storedFederatedResource);
+            } catch (IOException e) {
+                log.info("Problem in copying the federatedResource", e);
                 return null;
+            }
         }
 
         // If found, clear any sensitive platform data
         federatedResource.clearPrivateInfo();
         return federatedResource;
     }
-
-    private String serializeFederatedResource(FederatedResource federatedResource) {
-        String string;
-
-        try {
-            string = mapper.writeValueAsString(federatedResource);
-        } catch (JsonProcessingException e) {
-            log.info("Problem in serializing the federatedResource", e);
-            return null;
-        }
-        return string;
-    }
-
-    private FederatedResource deserializeFederatedResource(String s) {
-
-        FederatedResource federatedResource;
-
-        try {
-            federatedResource = mapper.readValue(s, FederatedResource.class);
-        } catch (IOException e) {
-            log.info("Problem in deserializing the federatedResource", e);
-            return null;
-        }
-        return federatedResource;
-    }
 }
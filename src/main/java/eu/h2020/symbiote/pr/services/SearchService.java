@@ -1,24 +1,37 @@
 package eu.h2020.symbiote.pr.services;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.querydsl.core.BooleanBuilder;
 import com.querydsl.core.types.Predicate;
 import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
 import eu.h2020.symbiote.cloud.model.internal.FederationSearchResult;
-import eu.h2020.symbiote.cloud.model.internal.QFederatedResource;
 import eu.h2020.symbiote.pr.helpers.AuthorizationServiceHelper;
+import eu.h2020.symbiote.pr.model.ContinuationToken;
+import eu.h2020.symbiote.pr.model.FederatedResourcePage;
+import eu.h2020.symbiote.pr.model.IndexUsage;
+import eu.h2020.symbiote.pr.repositories.ResourceIndexManager;
 import eu.h2020.symbiote.pr.repositories.ResourceRepository;
+import eu.h2020.symbiote.security.commons.SecurityConstants;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.geo.Circle;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
 
 /**
  * This service handles the search HTTP requests.
@@ -30,44 +43,173 @@ import java.util.stream.Collectors;
 public class SearchService {
     private static Log log = LogFactory.getLog(SearchService.class);
 
+    /**
+     * The response header containing the token for fetching the next page of the results
+     */
+    public static final String CONTINUATION_TOKEN_HEADER = "x-continuation-token";
+
+    /**
+     * The media type of the streamed search results, i.e. one FederatedResource per line
+     */
+    public static final MediaType NDJSON = MediaType.valueOf("application/x-ndjson");
+
     private ResourceRepository resourceRepository;
+    private ResourceIndexManager resourceIndexManager;
     private AuthorizationService authorizationService;
+    private ObjectWriter resourceWriter;
+    private int maxPageSize;
 
     @Autowired
-    public SearchService(ResourceRepository resourceRepository, AuthorizationService authorizationService) {
+    public SearchService(ResourceRepository resourceRepository, ResourceIndexManager resourceIndexManager,
+                         AuthorizationService authorizationService, ObjectMapper objectMapper,
+                         @Value("${symbiote.cloud.platformRegistry.search.maxPageSize:1000}") int maxPageSize) {
         this.resourceRepository = resourceRepository;
+        this.resourceIndexManager = resourceIndexManager;
         this.authorizationService = authorizationService;
+        this.maxPageSize = maxPageSize;
+
+        // The generator is flushed explicitly, not after every resource
+        this.resourceWriter = objectMapper.writerFor(FederatedResource.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
     }
 
-    public ResponseEntity listByPredicate(HttpHeaders httpHeaders, Predicate p, Sort sort, Circle near) {
+    /**
+     * Lists the federated resources matching the predicate
+     *
+     * @param httpHeaders the httpHeaders of the client's request
+     * @param endpoint the endpoint whose access policies should be satisfied, e.g. {@link AuthorizationService#SEARCH}
+     * @param p the predicate of the search
+     * @param sort the sort order of the results (can be null)
+     * @param near the circle where the resources should be located in (can be null)
+     * @param limit the maximum number of resources to be returned. If both the limit and the continuationToken are
+     *              null, all the matching resources are returned
+     * @param continuationToken the token returned in the headers of the previous page (can be null)
+     * @return the search result. If there are more resources, the token for the next page is included in the
+     * {@link #CONTINUATION_TOKEN_HEADER} header
+     */
+    public ResponseEntity listByPredicate(HttpHeaders httpHeaders, String endpoint, Predicate p, Sort sort,
+                                          Circle near, Integer limit, String continuationToken) {
         log.trace("listByPredicate request");
 
         ResponseEntity securityChecks = AuthorizationServiceHelper.checkSecurityRequestAndCreateServiceResponse(
-                authorizationService, httpHeaders);
+                authorizationService, httpHeaders, endpoint);
         if (securityChecks.getStatusCode() != HttpStatus.OK)
             return securityChecks;
 
-        BooleanBuilder predicate=new BooleanBuilder();//build final predicate as geospatial queries are not supported by querydsl to be directly included in predicate.
+        if (limit != null && limit <= 0)
+            return AuthorizationServiceHelper.addSecurityService("The limit should be positive", new HttpHeaders(),
+                    HttpStatus.BAD_REQUEST, (String) securityChecks.getBody());
 
-        if(p!=null)//include predicate specified for the non geospatial query part
+        BooleanBuilder predicate=new BooleanBuilder();
+
+        if(p!=null)
             predicate.and(p);
 
-        if(near!=null) {//build and include predicate for the specified geospatial query part
+        if (limit != null || continuationToken != null)
+            return listPage(predicate, near, sort, limit, continuationToken, (String) securityChecks.getBody());
 
-            List<String> aggregationIds = new ArrayList<>(resourceRepository.findAllByLocationCoordsIsWithin(near).stream()
-                    .map(FederatedResource::getAggregationId).collect(Collectors.toSet()));//find aggregationIds (as they are unique id specifiers) of federatedResources within the circle specified
-            predicate.and(QFederatedResource.federatedResource.aggregationId.in(aggregationIds));//find federatedResources with the specified aggregationIds
-        }
-
-        List<FederatedResource> resources;
-        if(sort==null)
-            resources = resourceRepository.findAll(predicate);//all the federatedResources for the combined predicate.
-        else
-            resources = resourceRepository.findAll(predicate, sort);//Results sorted when specified
+        //the geospatial query and the predicate are executed in a single query. Results sorted when specified
+        List<FederatedResource> resources = resourceRepository.findAll(predicate, near, sort);
         FederationSearchResult response = new FederationSearchResult(resources);
 
         return AuthorizationServiceHelper.addSecurityService(response, new HttpHeaders(),
                 HttpStatus.OK, (String) securityChecks.getBody());
     }
 
+    /**
+     * Streams the federated resources matching the predicate to the client as newline delimited JSON. The resources
+     * are written as soon as they are read from the database cursor, so the memory needed does not depend on the
+     * number of the results.
+     *
+     * @param httpHeaders the httpHeaders of the client's request
+     * @param endpoint the endpoint whose access policies should be satisfied, e.g. {@link AuthorizationService#SEARCH}
+     * @param p the predicate of the search
+     * @param sort the sort order of the results (can be null)
+     * @param near the circle where the resources should be located in (can be null)
+     * @param response the response where the resources are written to
+     * @return null if the resources were written to the response. Otherwise, the ResponseEntity with the failure
+     */
+    public ResponseEntity streamByPredicate(HttpHeaders httpHeaders, String endpoint, Predicate p, Sort sort,
+                                            Circle near, HttpServletResponse response) {
+        log.trace("streamByPredicate request");
+
+        ResponseEntity securityChecks = AuthorizationServiceHelper.checkSecurityRequestAndCreateServiceResponse(
+                authorizationService, httpHeaders, endpoint);
+        if (securityChecks.getStatusCode() != HttpStatus.OK)
+            return securityChecks;
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(NDJSON.toString());
+        response.setHeader(SecurityConstants.SECURITY_RESPONSE_HEADER, (String) securityChecks.getBody());
+
+        int written = 0;
+        try (CloseableIterator<FederatedResource> resources = resourceRepository.stream(p, near, sort);
+             JsonGenerator generator = resourceWriter.getFactory().createGenerator(response.getOutputStream())) {
+            generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+
+            while (resources.hasNext()) {
+                resourceWriter.writeValue(generator, resources.next());
+
+                // Send the first resource immediately and then let the output buffer decide
+                if (written++ == 0)
+                    generator.flush();
+            }
+
+            if (written > 0)
+                generator.writeRaw('\n');
+        } catch (IOException e) {
+            // The response has already been committed, so the client just sees a truncated stream
+            log.info("Streaming the resources stopped after " + written + " resources", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Lists the usage statistics of the indexes of the stored resources
+     *
+     * @param httpHeaders the httpHeaders of the client's request
+     * @return the list of the index usages
+     */
+    public ResponseEntity listIndexUsage(HttpHeaders httpHeaders) {
+        log.trace("listIndexUsage request");
+
+        ResponseEntity securityChecks = AuthorizationServiceHelper.checkSecurityRequestAndCreateServiceResponse(
+                authorizationService, httpHeaders, AuthorizationService.INDEX_STATS);
+        if (securityChecks.getStatusCode() != HttpStatus.OK)
+            return securityChecks;
+
+        List<IndexUsage> indexUsage;
+        try {
+            indexUsage = resourceIndexManager.getIndexUsage();
+        } catch (RuntimeException e) {
+            log.info("Could not get the index statistics", e);
+            return AuthorizationServiceHelper.addSecurityService(e.getMessage(), new HttpHeaders(),
+                    HttpStatus.INTERNAL_SERVER_ERROR, (String) securityChecks.getBody());
+        }
+
+        return AuthorizationServiceHelper.addSecurityService(indexUsage, new HttpHeaders(),
+                HttpStatus.OK, (String) securityChecks.getBody());
+    }
+
+    private ResponseEntity listPage(Predicate predicate, Circle near, Sort sort, Integer limit,
+                                    String continuationToken, String serviceResponse) {
+        FederatedResourcePage page;
+        try {
+            page = resourceRepository.findPage(predicate, near, sort,
+                    limit == null ? maxPageSize : Math.min(limit, maxPageSize),
+                    continuationToken == null ? null : ContinuationToken.decode(continuationToken));
+        } catch (IllegalArgumentException e) {
+            log.info("Could not continue the search", e);
+            return AuthorizationServiceHelper.addSecurityService(e.getMessage(), new HttpHeaders(),
+                    HttpStatus.BAD_REQUEST, serviceResponse);
+        }
+
+        HttpHeaders responseHeaders = new HttpHeaders();
+        if (page.getNext() != null)
+            responseHeaders.set(CONTINUATION_TOKEN_HEADER, page.getNext().encode());
+
+        return AuthorizationServiceHelper.addSecurityService(new FederationSearchResult(page.getResources()),
+                responseHeaders, HttpStatus.OK, serviceResponse);
+    }
 }
@@ -4,6 +4,9 @@ import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
 import eu.h2020.symbiote.cloud.model.internal.ResourceSharingInformation;
 import eu.h2020.symbiote.cloud.model.internal.ResourcesAddedOrUpdatedMessage;
 import eu.h2020.symbiote.cloud.model.internal.ResourcesDeletedMessage;
+import eu.h2020.symbiote.pr.helpers.OptimisticRetry;
+import eu.h2020.symbiote.pr.model.BulkWriteReport;
+import eu.h2020.symbiote.pr.model.VersionedResource;
 import eu.h2020.symbiote.pr.repositories.ResourceRepository;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.logging.Log;
@@ -23,36 +26,116 @@ public class SubscriptionManagerService {
     private static Log log = LogFactory.getLog(SubscriptionManagerService.class);
 
     private ResourceRepository resourceRepository;
+    private OptimisticRetry optimisticRetry;
 
     @Autowired
-    public SubscriptionManagerService(ResourceRepository resourceRepository) {
+    public SubscriptionManagerService(ResourceRepository resourceRepository, OptimisticRetry optimisticRetry) {
         this.resourceRepository = resourceRepository;
+        this.optimisticRetry = optimisticRetry;
     }
 
 
     /**
-     * Store the federated resources offered by the other platforms
+     * Store the federated resources offered by the other platforms. The resources are written only if they have not
+     * been modified since they were read, otherwise they are processed again.
      *
      * @param resourcesAddedOrUpdated message received from Subscription Manager notifying about new resources
      */
     public void addOrUpdateFederationResources(ResourcesAddedOrUpdatedMessage resourcesAddedOrUpdated) {
         log.trace("addOrUpdateFederationResources: " + ReflectionToStringBuilder.toString(resourcesAddedOrUpdated));
 
-        // Todo: maybe remove the platform resources from the message.
+        applyFederationChanges(Collections.singletonList(resourcesAddedOrUpdated));
+    }
+
+
+    /**
+     * Remove federated resources offered by other platforms. The resources are written only if they have not been
+     * modified since they were read, otherwise they are processed again.
+     *
+     * @param resourcesDeleted message received from Subscription Manager notifying about removal of resources
+     */
+    public void removeFederationResources(ResourcesDeletedMessage resourcesDeleted) {
+        log.trace("removeFederationResources: " + ReflectionToStringBuilder.toString(resourcesDeleted));
+
+        applyFederationChanges(Collections.singletonList(resourcesDeleted));
+    }
+
+
+    /**
+     * Applies several messages of the Subscription Manager in the order they were received. The affected resources
+     * are read with a single query, the messages are applied to them in memory and the result is written with a
+     * single bulk write. The resources are written only if they have not been modified since they were read,
+     * otherwise they are processed again.
+     *
+     * @param messages {@link ResourcesAddedOrUpdatedMessage ResourcesAddedOrUpdatedMessages} and
+     *                 {@link ResourcesDeletedMessage ResourcesDeletedMessages}
+     */
+    public void applyFederationChanges(List<?> messages) {
+
+        // Todo: maybe remove the platform resources from the messages.
         // Platform resources should not be present here. Only, federated resources offered by other platforms should be
-        // in the NewResourceMessage
+        // in the messages
+
+        optimisticRetry.<List<?>>run("applyFederationChanges", messages, this::tryApplyFederationChanges,
+                (request, conflicts) -> request.stream()
+                        .map(message -> restrict(message, conflicts))
+                        .collect(Collectors.toList()));
+    }
 
-        Map<String, FederatedResource> resourcesToBeStored = new HashMap<>();
+    /**
+     * @return the aggregationIds of the resources which had been modified concurrently
+     */
+    private Set<String> tryApplyFederationChanges(List<?> messages) {
 
         // Get all the federated resources ids in order to fetch them from the database
-        Set<String> newFederatedResourcesIds = resourcesAddedOrUpdated.getNewFederatedResources().stream()
-                .map(FederatedResource::getAggregationId).collect(Collectors.toSet());
+        Set<String> resourceIds = new HashSet<>();
+        for (Object message : messages)
+            resourceIds.addAll(aggregationIdsOf(message));
+
+        // Find the stored federated resources and convert them to a map, in which the key is the aggregationId
+        Map<String, VersionedResource> storedFederatedResources = resourceRepository
+                .findVersionedByAggregationIdIn(resourceIds).stream()
+                .collect(Collectors.toMap(stored -> stored.getResource().getAggregationId(), stored -> stored));
+
+        // The resources as they are after the messages applied so far. The removed ones are not contained
+        Map<String, FederatedResource> currentResources = new HashMap<>();
+        storedFederatedResources.forEach((aggregationId, stored) -> currentResources.put(aggregationId,
+                stored.getResource()));
+        Set<String> changedResourceIds = new HashSet<>();
+
+        for (Object message : messages) {
+            if (message instanceof ResourcesAddedOrUpdatedMessage)
+                addOrUpdate(((ResourcesAddedOrUpdatedMessage) message).getNewFederatedResources(), currentResources,
+                        changedResourceIds);
+            else if (message instanceof ResourcesDeletedMessage)
+                remove(((ResourcesDeletedMessage) message).getDeletedFederatedResources(), currentResources,
+                        changedResourceIds);
+        }
 
-        // Find the stored federated resources and convert them to a map, in which the key is the internalId
-        Map<String, FederatedResource> storedFederatedResources = resourceRepository.findAllByAggregationIdIn(newFederatedResourcesIds)
-                .stream().collect(Collectors.toMap(FederatedResource::getAggregationId, federatedResource -> federatedResource));
+        // The new resources have no version, so they are written only if nobody else has stored them meanwhile
+        List<VersionedResource> resourcesToBeStored = new ArrayList<>();
+        List<VersionedResource> resourcesToBeRemoved = new ArrayList<>();
+        for (String aggregationId : changedResourceIds) {
+            VersionedResource storedFederatedResource = storedFederatedResources.get(aggregationId);
+            FederatedResource currentResource = currentResources.get(aggregationId);
+
+            if (currentResource != null)
+                resourcesToBeStored.add(new VersionedResource(currentResource, versionOf(storedFederatedResource)));
+            else if (storedFederatedResource != null)
+                resourcesToBeRemoved.add(storedFederatedResource);
+        }
 
-        for (FederatedResource newFederatedResource : resourcesAddedOrUpdated.getNewFederatedResources()) {
+        // The updated and the removed resources are written together
+        BulkWriteReport report = resourceRepository.compareAndWrite(resourcesToBeStored, resourcesToBeRemoved);
+        logFailures(report);
+        return report.getConflicts();
+    }
+
+    private void addOrUpdate(List<FederatedResource> newFederatedResources,
+                             Map<String, FederatedResource> currentResources,
+                             Set<String> changedResourceIds) {
+
+        for (FederatedResource newFederatedResource : newFederatedResources) {
             String symbioteId = newFederatedResource.getAggregationId();
             if (symbioteId == null)
                 continue;
@@ -62,83 +145,91 @@ public class SubscriptionManagerService {
                 String federationId = entry.getKey();
                 Boolean barteringStatus = entry.getValue().getBartering();
 
-                if (resourcesToBeStored.containsKey(symbioteId)) {
-
-                    // We have already added this symbioteId to the resourcesToBeStored, so we only update the extra federation
-                    FederatedResource federatedResource = resourcesToBeStored.get(symbioteId);
-                    federatedResource.shareToNewFederation(federationId, barteringStatus);
+                if (currentResources.containsKey(symbioteId)) {
 
-                } else if (storedFederatedResources.containsKey(symbioteId)) {
-
-                    // The resource exists in the repository so we read it from there and update it
-                    //we have kept the adaptiveTrust field so we do not change it leave it as it is in the repository (set by Trust Manager).
-                    FederatedResource federatedResource = storedFederatedResources.get(symbioteId);
-                    federatedResource.shareToNewFederation(federationId, barteringStatus);
-
-                    resourcesToBeStored.put(federatedResource.getAggregationId(), federatedResource);
+                    // The resource exists, either in the repository or in a previous message, so we only update the
+                    // extra federation. We have kept the adaptiveTrust field so we do not change it leave it as it is
+                    // in the repository (set by Trust Manager).
+                    currentResources.get(symbioteId).shareToNewFederation(federationId, barteringStatus);
 
                 } else {//add it as it doesn't exist
-                    resourcesToBeStored.put(symbioteId, newFederatedResource);
+                    currentResources.put(symbioteId, newFederatedResource);
                 }
+                changedResourceIds.add(symbioteId);
             }
         }
-
-        resourceRepository.save(new ArrayList<>(resourcesToBeStored.values()));
     }
 
+    private void remove(Set<String> deletedFederatedResources,
+                        Map<String, FederatedResource> currentResources,
+                        Set<String> changedResourceIds) {
 
-    /**
-     * Remove federated resources offered by other platforms
-     *
-     * @param resourcesDeleted message received from Subscription Manager notifying about removal of resources
-     */
-    public void removeFederationResources(ResourcesDeletedMessage resourcesDeleted) {
-        log.trace("removeFederationResources: " + ReflectionToStringBuilder.toString(resourcesDeleted));
-
-        // Todo: maybe remove the platform resources from the message.
-        // Platform resources should not be present here. Only, federated resources offered by other platforms should be
-        // in the ResourcesDeletedMessage
+        for (String entry : deletedFederatedResources) {
 
-        Set<String> resourceIds = new HashSet<>();
-        for (String symbioteId: resourcesDeleted.getDeletedFederatedResources()) {
-            String aggregationId = symbioteId.split("@", 3)[0] +
-                    "@"+symbioteId.split("@", 3)[1];
-            resourceIds.add(aggregationId);
-
-        }
-
-        // Ids of the resources which are not shared in any federation any more
-        Set<String> unsharedResourcesIds = new HashSet<>();
-
-        // Fetch the stored federated resources and
-        List<FederatedResource> storedFederatedResources = resourceRepository.findAllByAggregationIdIn(resourceIds);
-
-        // Convert them to a map in which the key is the internalId
-        Map<String, FederatedResource> storedFederatedResourcesMap = storedFederatedResources.stream()
-                .collect(Collectors.toMap(FederatedResource::getAggregationId, federatedResource -> federatedResource));
+            String aggregationId = aggregationIdOf(entry);
+            String federationId = entry.split("@", 3)[2];
 
-        for (String entry : resourcesDeleted.getDeletedFederatedResources()) {
+            FederatedResource federatedResource = currentResources.get(aggregationId);
 
-            String aggregationId = entry.split("@", 3)[0] +
-                    "@"+entry.split("@", 3)[1];
-            String federationId = entry.split("@", 3)[2];
+            if (federatedResource != null) {
+                federatedResource.unshareFromFederation(federationId);
+                changedResourceIds.add(aggregationId);
 
-                FederatedResource federatedResource = storedFederatedResourcesMap.get(aggregationId);
+                // If the resource is not shared in any federation any more, we remove it from the repository
+                if (federatedResource.getFederatedResourceInfoMap().size() == 0)
+                    currentResources.remove(aggregationId);
+            }
+        }
+    }
 
-                if (federatedResource != null) {
-                    federatedResource.unshareFromFederation(federationId);
+    /**
+     * @return the aggregationIds of the resources a message refers to
+     */
+    private static Set<String> aggregationIdsOf(Object message) {
+        if (message instanceof ResourcesAddedOrUpdatedMessage)
+            return ((ResourcesAddedOrUpdatedMessage) message).getNewFederatedResources().stream()
+                    .map(FederatedResource::getAggregationId)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toSet());
+
+        if (message instanceof ResourcesDeletedMessage)
+            return ((ResourcesDeletedMessage) message).getDeletedFederatedResources().stream()
+                    .map(SubscriptionManagerService::aggregationIdOf)
+                    .collect(Collectors.toSet());
+
+        throw new IllegalArgumentException("Unknown message type " + message.getClass().getName());
+    }
 
-                    // If the resource is not shared in any federation any more, we remove it from the repository
-                    if (federatedResource.getFederatedResourceInfoMap().size() == 0) {
-                        storedFederatedResourcesMap.remove(aggregationId);
-                        unsharedResourcesIds.add(aggregationId);
-                    }
-                }
+    /**
+     * @return the message restricted to the resources with the given aggregationIds
+     */
+    private static Object restrict(Object message, Set<String> aggregationIds) {
+        if (message instanceof ResourcesAddedOrUpdatedMessage)
+            return new ResourcesAddedOrUpdatedMessage(((ResourcesAddedOrUpdatedMessage) message)
+                    .getNewFederatedResources().stream()
+                    .filter(federatedResource -> aggregationIds.contains(federatedResource.getAggregationId()))
+                    .collect(Collectors.toList()));
+
+        return new ResourcesDeletedMessage(((ResourcesDeletedMessage) message).getDeletedFederatedResources().stream()
+                .filter(symbioteId -> aggregationIds.contains(aggregationIdOf(symbioteId)))
+                .collect(Collectors.toSet()));
+    }
 
-        }
+    /**
+     * @return the aggregationId of a symbioteId in the form aggregationId@federationId
+     */
+    private static String aggregationIdOf(String symbioteId) {
+        // The aggregationId contains an @ itself
+        int federationSeparator = symbioteId.indexOf('@', symbioteId.indexOf('@') + 1);
+        return federationSeparator < 0 ? symbioteId : symbioteId.substring(0, federationSeparator);
+    }
 
-        resourceRepository.save(new ArrayList<>(storedFederatedResourcesMap.values()));
-        resourceRepository.deleteAllByAggregationIdIn(unsharedResourcesIds);
+    private static String versionOf(VersionedResource storedFederatedResource) {
+        return storedFederatedResource == null ? null : storedFederatedResource.getVersion();
+    }
 
+    private void logFailures(BulkWriteReport report) {
+        if (report.hasFailures())
+            log.warn("Failed to store some of the federated resources: " + report.getFailures());
     }
 }
@@ -1,10 +1,7 @@
 package eu.h2020.symbiote.pr.services;
 
-import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
-import eu.h2020.symbiote.cloud.model.internal.ResourceSharingInformation;
-import eu.h2020.symbiote.cloud.model.internal.ResourcesAddedOrUpdatedMessage;
-import eu.h2020.symbiote.cloud.model.internal.ResourcesDeletedMessage;
 import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
+import eu.h2020.symbiote.pr.model.BulkWriteReport;
 import eu.h2020.symbiote.pr.repositories.ResourceRepository;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.logging.Log;
@@ -13,7 +10,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * @author Ilia Pietri (ICOM)
@@ -34,30 +30,67 @@ public class TrustManagerService {
      * Update adaptive trust of federated resources offered by the other platforms
      *
      * @param resourceTrustUpdated message received from Trust Manager notifying about new trust values of federated resources
+     * @return the outcome of the update. The matched count is 0 if the resource is not stored
      */
-    public void updateFedResAdaptiveResourceTrust(TrustEntry resourceTrustUpdated) {
-        log.trace("updateFedResAdaptiveResourceTrust: " + ReflectionToStringBuilder.toString(resourceTrustUpdated));
-
-        Map<String, FederatedResource> resourcesToBeStored = new HashMap<>();
-
-        // Get the federated resource id in order to fetch it from the database
-        Set<String> newFederatedResourcesIds = new HashSet<>();
-            String aggregationId = resourceTrustUpdated.getResourceId().split("@", 3)[0] +
-                    "@" + resourceTrustUpdated.getResourceId().split("@", 3)[1];
-        String fedId = resourceTrustUpdated.getResourceId().split("@", 3)[2];
-        newFederatedResourcesIds.add(aggregationId);
-
-        // Find the stored federated resources and convert them to a map, in which the key is the internalId
-        Map<String, FederatedResource> storedFederatedResources = resourceRepository.findAllByAggregationIdIn(newFederatedResourcesIds)
-                .stream().collect(Collectors.toMap(FederatedResource::getAggregationId, federatedResource -> federatedResource));
-
-            if (storedFederatedResources.containsKey(aggregationId)) {
-                FederatedResource federatedResource = storedFederatedResources.get(aggregationId);
-                federatedResource.setAdaptiveTrust(resourceTrustUpdated.getValue());
-                resourcesToBeStored.put(federatedResource.getAggregationId(), federatedResource);
+    public BulkWriteReport updateFedResAdaptiveResourceTrust(TrustEntry resourceTrustUpdated) {
+        return updateFedResAdaptiveResourceTrust(Collections.singletonList(resourceTrustUpdated));
+    }
+
+    /**
+     * Update adaptive trust of federated resources offered by the other platforms with a single bulk update. If there
+     * are many entries for the same resource, only the last one is applied.
+     *
+     * @param resourceTrustUpdates messages received from Trust Manager in the order they were received
+     * @return the outcome of the update. The resources which are not stored are not matched
+     */
+    public BulkWriteReport updateFedResAdaptiveResourceTrust(List<TrustEntry> resourceTrustUpdates) {
+        log.trace("updateFedResAdaptiveResourceTrust: " + ReflectionToStringBuilder.toString(resourceTrustUpdates));
+
+        // Keep only the latest value of each resource
+        Map<String, Double> adaptiveTrust = new LinkedHashMap<>();
+        for (TrustEntry resourceTrustUpdated : resourceTrustUpdates) {
+            String aggregationId = aggregationIdOf(resourceTrustUpdated);
+            if (aggregationId == null) {
+                // A malformed entry should not fail the updates of the rest of the resources
+                log.warn("Skipping the invalid trust entry: " +
+                        ReflectionToStringBuilder.toString(resourceTrustUpdated));
+                continue;
             }
+            adaptiveTrust.put(aggregationId, resourceTrustUpdated.getValue());
+        }
+
+        if (adaptiveTrust.isEmpty())
+            return BulkWriteReport.EMPTY;
+
+        // Only the adaptiveTrust is set, without reading the stored resources first
+        BulkWriteReport report = resourceRepository.updateAdaptiveTrust(adaptiveTrust);
 
-        resourceRepository.save(new ArrayList<>(resourcesToBeStored.values()));
+        if (report.hasFailures())
+            log.warn("Failed to update the adaptive trust of the federated resources: " + report.getFailures());
+        else if (report.isAcknowledged() && report.getMatched() < adaptiveTrust.size())
+            log.debug((adaptiveTrust.size() - report.getMatched()) +
+                    " federated resources are not stored, so their adaptive trust was not updated");
+
+        return report;
     }
 
+    /**
+     * @return the aggregationId@federationId of the resource of the entry or null, if the entry has no value or its
+     * resourceId is not the symbioteId of a federated resource
+     */
+    private static String aggregationIdOf(TrustEntry resourceTrustUpdated) {
+        if (resourceTrustUpdated == null || resourceTrustUpdated.getResourceId() == null)
+            return null;
+
+        Double value = resourceTrustUpdated.getValue();
+        if (value == null || value.isNaN())
+            return null;
+
+        // The resourceId is the symbioteId of the resource in the federation, i.e. aggregationId@federationId
+        String[] parts = resourceTrustUpdated.getResourceId().split("@", 3);
+        if (parts.length < 2 || parts[0].isEmpty() || parts[1].isEmpty())
+            return null;
+
+        return parts[0] + "@" + parts[1];
+    }
 }
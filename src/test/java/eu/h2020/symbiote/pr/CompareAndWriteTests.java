@@ -0,0 +1,80 @@
+package eu.h2020.symbiote.pr;
+
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.pr.model.BulkWriteReport;
+import eu.h2020.symbiote.pr.model.VersionedResource;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the compare-and-set writes of the ResourceRepository detect the concurrent modifications
+ */
+public class CompareAndWriteTests extends PlatformRegistryBaseTestClass {
+
+    @Test
+    public void concurrentModificationTest() {
+        List<FederatedResource> federatedResources = createTestFederatedResources(platformId);
+        FederatedResource federatedResource = federatedResources.get(0);
+        String aggregationId = federatedResource.getAggregationId();
+
+        // A new resource is written without a version
+        BulkWriteReport report = resourceRepository.compareAndWrite(
+                Collections.singletonList(new VersionedResource(federatedResource, null)), Collections.emptyList());
+        assertFalse(report.hasConflicts());
+        assertFalse(report.hasFailures());
+
+        VersionedResource read = resourceRepository
+                .findVersionedByAggregationIdIn(Collections.singleton(aggregationId)).get(0);
+        assertNotNull(read.getVersion());
+
+        // Writing it again as new conflicts
+        report = resourceRepository.compareAndWrite(
+                Collections.singletonList(new VersionedResource(federatedResource, null)), Collections.emptyList());
+        assertEquals(Collections.singleton(aggregationId), report.getConflicts());
+        assertFalse(report.hasFailures());
+
+        // Someone else modifies the resource
+        read.getResource().unshareFromFederation(federation2);
+        resourceRepository.bulkSave(Collections.singletonList(read.getResource()));
+
+        // Neither the update nor the removal with the old version are written
+        report = resourceRepository.compareAndWrite(Collections.singletonList(read), Collections.emptyList());
+        assertEquals(Collections.singleton(aggregationId), report.getConflicts());
+
+        report = resourceRepository.compareAndWrite(Collections.emptyList(), Collections.singletonList(read));
+        assertEquals(Collections.singleton(aggregationId), report.getConflicts());
+        assertNotNull(resourceRepository.findOne(aggregationId));
+
+        // With the current version both are written
+        VersionedResource current = resourceRepository
+                .findVersionedByAggregationIdIn(Collections.singleton(aggregationId)).get(0);
+        assertNotEquals(read.getVersion(), current.getVersion());
+
+        report = resourceRepository.compareAndWrite(Collections.emptyList(), Collections.singletonList(current));
+        assertFalse(report.hasConflicts());
+        assertEquals(1, report.getRemoved());
+        assertNull(resourceRepository.findOne(aggregationId));
+    }
+
+    @Test
+    public void newResourceIdCollisionTest() {
+        List<FederatedResource> federatedResources = createTestFederatedResources(platformId);
+        FederatedResource federatedResource = federatedResources.get(0);
+        String aggregationId = federatedResource.getAggregationId();
+        resourceRepository.bulkSave(Collections.singletonList(federatedResource));
+
+        // A new resource which got the same id does not overwrite the stored one
+        FederatedResource colliding = federatedResources.get(1);
+        colliding.getCloudResource().getFederationInfo().setAggregationId(aggregationId);
+        BulkWriteReport report = resourceRepository.bulkSave(Collections.singletonList(new FederatedResource(
+                colliding.getCloudResource())), Collections.singleton(aggregationId));
+        assertEquals(Collections.singleton(aggregationId), report.getConflicts());
+        assertFalse(report.hasFailures());
+        assertEquals(federatedResource.getCloudResource().getInternalId(),
+                resourceRepository.findOne(aggregationId).getCloudResource().getInternalId());
+    }
+}
@@ -0,0 +1,48 @@
+package eu.h2020.symbiote.pr;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.pr.helpers.FederatedResourceCopier;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link FederatedResourceCopier} creates the same copies as the JSON round-trip it replaced
+ */
+public class FederatedResourceCopierTests {
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void copyMatchesJsonRoundTripTest() throws IOException {
+        FederatedResourceCopier copier = new FederatedResourceCopier(mapper);
+
+        for (FederatedResource original : TestFederatedResources.create("platform")) {
+            FederatedResource copy = copier.copy(original);
+            FederatedResource roundTrip = mapper.readValue(mapper.writeValueAsString(original), FederatedResource.class);
+
+            assertEquals(toTree(roundTrip), toTree(copy));
+            assertEquals(roundTrip.getCloudResource().getResource().getClass(),
+                    copy.getCloudResource().getResource().getClass());
+
+            // The copy is deep
+            assertNotSame(original, copy);
+            assertNotSame(original.getCloudResource(), copy.getCloudResource());
+            assertNotSame(original.getCloudResource().getResource(), copy.getCloudResource().getResource());
+            assertNotSame(original.getFederatedResourceInfoMap(), copy.getFederatedResourceInfoMap());
+
+            // Changing the copy leaves the original intact
+            copy.clearPrivateInfo();
+            copy.unshareFromFederation(TestFederatedResources.FEDERATION_1);
+            assertEquals(toTree(roundTrip), toTree(original));
+        }
+    }
+
+    private JsonNode toTree(FederatedResource federatedResource) throws IOException {
+        return mapper.readTree(mapper.writeValueAsString(federatedResource));
+    }
+}
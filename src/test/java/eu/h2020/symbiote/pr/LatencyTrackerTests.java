@@ -0,0 +1,47 @@
+package eu.h2020.symbiote.pr;
+
+import eu.h2020.symbiote.pr.helpers.LatencyTracker;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the averages of the {@link LatencyTracker} follow the samples and decay while no samples arrive
+ */
+public class LatencyTrackerTests {
+
+    private static final double DELTA = 1e-9;
+
+    private AtomicLong now = new AtomicLong(1000);
+    private LatencyTracker tracker = new LatencyTracker(5000, now::get);
+
+    @Test
+    public void averageTest() {
+        assertEquals(0.0, tracker.average("queue"), DELTA);
+
+        tracker.record("queue", 100);
+        assertEquals(100.0, tracker.average("queue"), DELTA);
+
+        // The new sample weighs 0.2
+        tracker.record("queue", 200);
+        assertEquals(120.0, tracker.average("queue"), DELTA);
+        assertEquals(0.0, tracker.average("other"), DELTA);
+    }
+
+    @Test
+    public void decayTest() {
+        tracker.record("queue", 1000);
+
+        // A spike is forgotten when the traffic stops after it
+        now.addAndGet(5000);
+        assertEquals(500.0, tracker.average("queue"), DELTA);
+        now.addAndGet(10000);
+        assertEquals(125.0, tracker.average("queue"), DELTA);
+
+        // The next sample is weighed against the decayed average
+        tracker.record("queue", 25);
+        assertEquals(105.0, tracker.average("queue"), DELTA);
+    }
+}
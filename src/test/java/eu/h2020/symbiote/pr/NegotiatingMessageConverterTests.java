@@ -0,0 +1,59 @@
+package eu.h2020.symbiote.pr;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.cloud.model.internal.ResourcesAddedOrUpdatedMessage;
+import eu.h2020.symbiote.pr.communication.rabbit.NegotiatingMessageConverter;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the {@link NegotiatingMessageConverter} accepts the messages in every format it can send
+ */
+public class NegotiatingMessageConverterTests {
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void roundTripTest() throws IOException {
+        List<FederatedResource> testFederatedResources = TestFederatedResources.create("testPlatform");
+        NegotiatingMessageConverter inbound = new NegotiatingMessageConverter(
+                NegotiatingMessageConverter.JSON, NegotiatingMessageConverter.NONE);
+        String json = mapper.writeValueAsString(testFederatedResources);
+
+        for (String contentType : NegotiatingMessageConverter.CONTENT_TYPES) {
+            for (String compression : NegotiatingMessageConverter.COMPRESSIONS) {
+                Message message = new NegotiatingMessageConverter(contentType, compression)
+                        .toMessage(new ResourcesAddedOrUpdatedMessage(testFederatedResources), new MessageProperties());
+                assertEquals(contentType, message.getMessageProperties().getContentType());
+                assertEquals(message.getBody().length, message.getMessageProperties().getContentLength());
+
+                Object converted = inbound.fromMessage(message);
+                assertTrue(converted instanceof ResourcesAddedOrUpdatedMessage);
+                assertEquals(contentType + " " + compression, mapper.readTree(json),
+                        mapper.readTree(mapper.writeValueAsString(
+                                ((ResourcesAddedOrUpdatedMessage) converted).getNewFederatedResources())));
+            }
+        }
+    }
+
+    @Test
+    public void plainJsonIsUnchangedTest() {
+        Message message = new NegotiatingMessageConverter(
+                NegotiatingMessageConverter.JSON, NegotiatingMessageConverter.NONE)
+                .toMessage(new ResourcesAddedOrUpdatedMessage(TestFederatedResources.create("testPlatform")),
+                        new MessageProperties());
+
+        // The components using the Jackson2JsonMessageConverter should still understand the default format
+        assertEquals(MessageProperties.CONTENT_TYPE_JSON, message.getMessageProperties().getContentType());
+        assertEquals("UTF-8", message.getMessageProperties().getContentEncoding());
+        assertEquals(ResourcesAddedOrUpdatedMessage.class.getName(),
+                message.getMessageProperties().getHeaders().get("__TypeId__"));
+    }
+}
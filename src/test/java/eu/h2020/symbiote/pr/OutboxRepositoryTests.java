@@ -0,0 +1,46 @@
+package eu.h2020.symbiote.pr;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the sequence numbers of the outbox entries increase across the threads reserving them
+ */
+public class OutboxRepositoryTests extends PlatformRegistryBaseTestClass {
+
+    @Test
+    public void concurrentReservationTest() throws Exception {
+        int threads = 4;
+        int reservations = 50;
+        int count = 3;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        List<Future<List<Long>>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            futures.add(executor.submit(() -> {
+                List<Long> firsts = new ArrayList<>();
+                for (int j = 0; j < reservations; j++)
+                    firsts.add(outboxRepository.reserveSequences(count));
+                return firsts;
+            }));
+
+        Set<Long> reserved = new HashSet<>();
+        for (Future<List<Long>> future : futures) {
+            List<Long> firsts = future.get(10, TimeUnit.SECONDS);
+            for (int j = 0; j < firsts.size(); j++) {
+                // Every thread gets increasing ranges
+                if (j > 0)
+                    assertTrue(firsts.get(j) > firsts.get(j - 1));
+                for (long sequence = firsts.get(j); sequence < firsts.get(j) + count; sequence++)
+                    assertTrue("The sequence " + sequence + " was reserved twice", reserved.add(sequence));
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(threads * reservations * count, reserved.size());
+    }
+}
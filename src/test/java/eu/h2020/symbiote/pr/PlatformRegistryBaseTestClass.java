@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.type.CollectionType;
 import eu.h2020.symbiote.cloud.model.internal.*;
 import eu.h2020.symbiote.model.cim.*;
 import eu.h2020.symbiote.pr.dummyListeners.DummySubscriptionManagerListener;
+import eu.h2020.symbiote.pr.repositories.OutboxRepository;
 import eu.h2020.symbiote.pr.repositories.ResourceRepository;
 import eu.h2020.symbiote.pr.services.AuthorizationService;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
@@ -26,6 +27,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -49,6 +51,9 @@ public abstract class PlatformRegistryBaseTestClass {
     @Autowired
     protected ResourceRepository resourceRepository;
 
+    @Autowired
+    protected OutboxRepository outboxRepository;
+
     @Autowired
     protected RabbitTemplate rabbitTemplate;
 
@@ -101,14 +106,20 @@ public abstract class PlatformRegistryBaseTestClass {
     @Before
     public void setup() {
         resourceRepository.deleteAll();
+        outboxRepository.deleteAll();
         dummySubscriptionManagerListener.clearLists();
 
         this.mockMvc = MockMvcBuilders.webAppContextSetup(this.wac).build();
     }
 
     @After
-    public void cleanup() {
+    public void cleanup() throws InterruptedException {
         resourceRepository.deleteAll();
+
+        // Let the relay publish the notifications of the test, so that they do not reach the listeners of the next one
+        long deadline = System.currentTimeMillis() + 10000;
+        while (outboxRepository.count() > 0 && System.currentTimeMillis() < deadline)
+            TimeUnit.MILLISECONDS.sleep(100);
     }
 
     public String createNewResourceId(long id) {
@@ -6,9 +6,15 @@ import eu.h2020.symbiote.cloud.model.internal.ResourceSharingInformation;
 import eu.h2020.symbiote.model.cim.Actuator;
 import eu.h2020.symbiote.model.cim.Service;
 import eu.h2020.symbiote.model.cim.StationarySensor;
+import eu.h2020.symbiote.pr.communication.rabbit.RegistrationHandlerListener;
+import eu.h2020.symbiote.pr.helpers.Deadline;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.MetricsEndpoint;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -24,6 +30,9 @@ public class RegistrationHandlerListenerTests extends PlatformRegistryBaseTestCl
 
     private static Log log = LogFactory.getLog(RegistrationHandlerListenerTests.class);
 
+    @Autowired
+    private MetricsEndpoint metricsEndpoint;
+
     @Test
     public void registerResourcesTest() throws InterruptedException {
 
@@ -36,6 +45,11 @@ public class RegistrationHandlerListenerTests extends PlatformRegistryBaseTestCl
         String actuatorId = result.get(1).getFederationInfo().getAggregationId();
         String serviceId = result.get(2).getFederationInfo().getAggregationId();
 
+        // The generated ids keep the %016x@platformId format and are unique
+        for (String id : Arrays.asList(stationarySensorId, actuatorId, serviceId))
+            assertTrue(id, id.matches("[0-9a-f]{16}@" + platformId));
+        assertEquals(3, new HashSet<>(Arrays.asList(stationarySensorId, actuatorId, serviceId)).size());
+
         // Testing the response
         assertEquals(2, result.get(0).getFederationInfo().getSharingInformation().size());
         assertEquals(1, result.get(1).getFederationInfo().getSharingInformation().size());
@@ -95,6 +109,54 @@ public class RegistrationHandlerListenerTests extends PlatformRegistryBaseTestCl
         assertTrue(message.stream()
                 .map(FederatedResource::getAggregationId).collect(Collectors.toList())
                 .containsAll(Arrays.asList(stationarySensorId, actuatorId, serviceId)));
+
+        // The notification is removed from the outbox once the broker has confirmed it
+        while (outboxRepository.count() > 0)
+            TimeUnit.MILLISECONDS.sleep(100);
+    }
+
+    @Test
+    public void updateUnchangedResourcesTest() throws InterruptedException {
+
+        // Register resources
+        List<CloudResource> registrationResult = addOrUpdateResources(createTestCloudResources());
+        assertNotNull(registrationResult);
+
+        while (dummySubscriptionManagerListener.getResourcesAddedOrUpdatedMessages().size() < 1)
+            TimeUnit.MILLISECONDS.sleep(100);
+
+        // Send the registered resources again without any change
+        Message reply = rabbitTemplate.sendAndReceive(platformRegistryExchange, addOrUpdateRequestKey,
+                rabbitTemplate.getMessageConverter().toMessage(registrationResult, new MessageProperties()));
+        assertNotNull(reply);
+        assertEquals(3, reply.getMessageProperties().getHeaders()
+                .get(RegistrationHandlerListener.SKIPPED_RESOURCES_HEADER));
+
+        // The resources are still returned
+        List<CloudResource> updateResult = (List<CloudResource>) rabbitTemplate.getMessageConverter().fromMessage(reply);
+        assertEquals(3, updateResult.size());
+
+        // Nothing is sent to the Subscription Manager for the unchanged resources
+        TimeUnit.SECONDS.sleep(1);
+        assertEquals(1, dummySubscriptionManagerListener.getResourcesAddedOrUpdatedMessages().size());
+        assertEquals(0, dummySubscriptionManagerListener.getResourcesDeletedMessages().size());
+
+        // A changed resource is not skipped
+        registrationResult.get(0).getResource().setName("newStationarySensorName");
+        reply = rabbitTemplate.sendAndReceive(platformRegistryExchange, addOrUpdateRequestKey,
+                rabbitTemplate.getMessageConverter().toMessage(registrationResult, new MessageProperties()));
+        assertNotNull(reply);
+        assertEquals(2, reply.getMessageProperties().getHeaders()
+                .get(RegistrationHandlerListener.SKIPPED_RESOURCES_HEADER));
+
+        while (dummySubscriptionManagerListener.getResourcesAddedOrUpdatedMessages().size() < 2)
+            TimeUnit.MILLISECONDS.sleep(100);
+
+        List<FederatedResource> message = dummySubscriptionManagerListener
+                .getResourcesAddedOrUpdatedMessages().get(1).getNewFederatedResources();
+        assertEquals(1, message.size());
+        assertEquals(registrationResult.get(0).getFederationInfo().getAggregationId(),
+                message.get(0).getAggregationId());
     }
 
     @Test
@@ -285,6 +347,35 @@ public class RegistrationHandlerListenerTests extends PlatformRegistryBaseTestCl
         ));
     }
 
+    @Test
+    public void invalidFederationIdTest() {
+        List<FederatedResource> federatedResources = createTestFederatedResources(platformId);
+        resourceRepository.save(federatedResources);
+        String aggregationId = federatedResources.get(0).getAggregationId();
+
+        // The ids would address other fields of the documents, so nothing is written
+        for (String federationId : Arrays.asList("fed.cloudResource", "$fed")) {
+            Map<String, Set<String>> federationIds = new HashMap<>();
+            federationIds.put(aggregationId, new HashSet<>(Arrays.asList(federation2, federationId)));
+
+            try {
+                resourceRepository.unshareFromFederations(federationIds);
+                fail("The federationId " + federationId + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            try {
+                resourceRepository.shareToFederations(federatedResources, federationIds);
+                fail("The federationId " + federationId + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        assertEquals(2, resourceRepository.findOne(aggregationId).getFederatedResourceInfoMap().size());
+    }
+
     @Test
     public void unshareResourcesTest() throws InterruptedException {
 
@@ -365,4 +456,39 @@ public class RegistrationHandlerListenerTests extends PlatformRegistryBaseTestCl
         assertTrue(message.contains(stationarySensorIdFed+"@"+federation1));
         assertTrue(message.contains(actuatorIdFed+"@"+federation1));
     }
+
+    @Test
+    public void expiredRequestTest() throws InterruptedException {
+        String skippedMetric = "counter.platformRegistry.deadline.skipped";
+        Object skippedBefore = metricsEndpoint.invoke().get(skippedMetric);
+
+        // The caller gave up a second ago, so it does not wait for the reply either
+        rabbitTemplate.convertAndSend(platformRegistryExchange, addOrUpdateRequestKey, createTestCloudResources(),
+                message -> {
+                    message.getMessageProperties().setHeader(Deadline.HEADER, System.currentTimeMillis() - 1000);
+                    return message;
+                });
+
+        while (Objects.equals(skippedBefore, metricsEndpoint.invoke().get(skippedMetric)))
+            TimeUnit.MILLISECONDS.sleep(100);
+
+        // Nothing is stored and nothing is sent to the Subscription Manager
+        assertEquals(0, resourceRepository.count());
+        assertEquals(0, outboxRepository.count());
+        assertEquals(0, dummySubscriptionManagerListener.getResourcesAddedOrUpdatedMessages().size());
+    }
+
+    @Test
+    public void skewedTimestampTest() {
+        // The clock of the caller is 25 s behind, which is more than the reply timeout but within the tolerance
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setTimestamp(new Date(System.currentTimeMillis() - 25000));
+        Message reply = rabbitTemplate.sendAndReceive(platformRegistryExchange, addOrUpdateRequestKey,
+                rabbitTemplate.getMessageConverter().toMessage(createTestCloudResources(), messageProperties));
+        assertNotNull(reply);
+
+        List<CloudResource> result = (List<CloudResource>) rabbitTemplate.getMessageConverter().fromMessage(reply);
+        assertEquals(3, result.size());
+        assertEquals(3, resourceRepository.count());
+    }
 }
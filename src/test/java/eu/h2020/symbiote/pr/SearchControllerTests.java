@@ -1,17 +1,31 @@
 package eu.h2020.symbiote.pr;
 
+import com.mongodb.BasicDBObject;
+import eu.h2020.symbiote.cloud.model.internal.CloudResource;
 import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
 import eu.h2020.symbiote.model.cim.*;
+import eu.h2020.symbiote.pr.repositories.ResourceIndexManager;
+import eu.h2020.symbiote.pr.services.SearchService;
 import eu.h2020.symbiote.security.commons.SecurityConstants;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.test.web.servlet.MvcResult;
 import java.net.URLEncoder;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 import java.util.concurrent.TimeUnit;
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -21,8 +35,16 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  */
 public class SearchControllerTests extends PlatformRegistryBaseTestClass {
 
+    @Autowired
+    private ResourceIndexManager resourceIndexManager;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     @Test
     public void serviceResponseGenerationFailed() throws Exception {
+        doReturn(new ResponseEntity<>(HttpStatus.OK))
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
         doReturn(new ResponseEntity<>("Failed to generate a service response", HttpStatus.INTERNAL_SERVER_ERROR))
                 .when(authorizationService).generateServiceResponse();
 
@@ -33,14 +55,18 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
 
     @Test
     public void securityRequestVerificationFailed() throws Exception {
+        reset(authorizationService);
         doReturn(new ResponseEntity<>("testServiceResponse", HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>("The stored resource access policy was not satisfied", HttpStatus.UNAUTHORIZED))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         mockMvc.perform(get("/pr/list_resources"))
                 .andExpect(status().isUnauthorized())
                 .andExpect(content().string("The stored resource access policy was not satisfied"));
+
+        // No service response is signed for the rejected requests
+        verify(authorizationService, never()).generateServiceResponse();
     }
 
     @Test
@@ -68,7 +94,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         mockMvc.perform(get("/pr/list_resources"))
                 .andExpect(status().isOk())
@@ -111,7 +137,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         mockMvc.perform(get("/pr/list_federation_resources/" + federation2))
                 .andExpect(status().isOk())
@@ -125,6 +151,27 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
                 //        contains(stationarySensorRestUrl)));
     }
 
+    @Test
+    public void listResourcesInFederationBeforeMigrationTest() throws Exception {
+        List<FederatedResource> federatedResourceList = createTestFederatedResources(platformId);
+        resourceRepository.save(federatedResourceList);
+
+        // The documents stored before the federationIds were introduced do not have them until they are migrated
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(FederatedResource.class)).updateMulti(
+                new BasicDBObject(), new BasicDBObject("$unset", new BasicDBObject("federationIds", "")));
+
+        doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
+                .when(authorizationService).generateServiceResponse();
+        doReturn(new ResponseEntity<>(HttpStatus.OK))
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
+
+        mockMvc.perform(get("/pr/list_federation_resources/" + federation2))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.resources", hasSize(1)))
+                .andExpect(jsonPath("$.resources[*].aggregationId",
+                        contains(federatedResourceList.get(0).getAggregationId())));
+    }
+
     @Test
     public void listResourcesInPredicateByIdSuccessfulTest() throws Exception {
         List<FederatedResource> federatedResourceList = createTestFederatedResources(platformId);
@@ -136,7 +183,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String ids[]={federatedResourceList.get(0).getAggregationId(), federatedResourceList.get(1).getAggregationId(), federatedResourceList.get(2).getAggregationId()};
         String aggregationIds = String.join(",",ids);
@@ -162,7 +209,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String names[] = {federatedResourceList.get(0).getCloudResource().getResource().getName(),
                           federatedResourceList.get(1).getCloudResource().getResource().getName()};//{"stationarySensor", "actuator"};
@@ -189,7 +236,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         List<String> descriptions=federatedResourceList.get(0).getCloudResource().getResource().getDescription();//Collections.singletonList("sensor1Description");
         String description = String.join(",", descriptions);
@@ -215,7 +262,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         List<String> descriptions=federatedResourceList.get(2).getCloudResource().getResource().getDescription();//Collections.singletonList("sensor1Description");
         String description = URLEncoder.encode("@type=Beacon", "UTF-8");//String.join(",", descriptions);
@@ -241,7 +288,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String feds[] = {"fed2"};//List<String> names = Arrays.asList(federatedResourceList.get(0).getCloudResource().getResource().getName());
         String fedIds = String.join(",",feds);
@@ -266,7 +313,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String properties[] = {"property1", "property2"};//(String[]) ((StationarySensor)federatedResourceList.get(0).getCloudResource().getResource()).getObservesProperty().toArray();
         String observesProperty = String.join(",", properties);
@@ -292,7 +339,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String resourceType = federatedResourceList.get(0).getResourceType();//"StationarySensor";
         String predicate="?resource_type="+resourceType;
@@ -317,7 +364,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String locations[] = {federatedResourceList.get(0).getLocatedAt().getName(),
                 federatedResourceList.get(1).getLocatedAt().getName()};
@@ -349,7 +396,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String locationName=federatedResourceList.get(0).getLocatedAt().getName();
         WGS84Location l =(WGS84Location) federatedResourceList.get(0).getLocatedAt();
@@ -378,7 +425,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String locations[] = {federatedResourceList.get(0).getLocatedAt().getName(),
                 federatedResourceList.get(1).getLocatedAt().getName()};
@@ -405,6 +452,56 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
     }
 
 
+    @Test
+    public void geoLocationDistanceIsSphericalTest() throws Exception {
+        // Near the pole, these are 2 degrees apart on the sphere, but 180 degrees apart on the longitude/latitude plane
+        List<CloudResource> cloudResources = createTestCloudResources();
+        ((Device) cloudResources.get(0).getResource()).setLocatedAt(
+                new WGS84Location(0.0, 89.0, 1.0, "nearPole1", Arrays.asList("locationDescription1")));
+        ((Device) cloudResources.get(1).getResource()).setLocatedAt(
+                new WGS84Location(180.0, 89.0, 1.0, "nearPole2", Arrays.asList("locationDescription2")));
+        resourceRepository.save(Arrays.asList(
+                new FederatedResource(createNewResourceId(1), cloudResources.get(0), 10.0),
+                new FederatedResource(createNewResourceId(2), cloudResources.get(1), 10.0)));
+
+        doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
+                .when(authorizationService).generateServiceResponse();
+        doReturn(new ResponseEntity<>(HttpStatus.OK))
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
+
+        mockMvc.perform(get("/pr/search?location_long=0.0&location_lat=89.0&max_distance=3.0"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.resources[*].locatedAt.name", containsInAnyOrder("nearPole1", "nearPole2")));
+
+        mockMvc.perform(get("/pr/search?location_long=0.0&location_lat=89.0&max_distance=1.5"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.resources[*].locatedAt.name", containsInAnyOrder("nearPole1")));
+    }
+
+    @Test
+    public void invalidLocationCoordsTest() throws Exception {
+        List<CloudResource> cloudResources = createTestCloudResources();
+        ((Device) cloudResources.get(0).getResource()).setLocatedAt(
+                new WGS84Location(200.0, 100.0, 1.0, "invalidLocation", Arrays.asList("locationDescription1")));
+        FederatedResource invalid = new FederatedResource(createNewResourceId(1), cloudResources.get(0), 10.0);
+        FederatedResource valid = new FederatedResource(createNewResourceId(2), cloudResources.get(1), 10.0);
+
+        // The 2dsphere index would reject the invalid coordinates, so they are not stored
+        resourceRepository.save(Arrays.asList(invalid, valid));
+        assertEquals(2, resourceRepository.findAll().size());
+        assertEquals("invalidLocation",
+                resourceRepository.findOne(invalid.getAggregationId()).getLocatedAt().getName());
+
+        doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
+                .when(authorizationService).generateServiceResponse();
+        doReturn(new ResponseEntity<>(HttpStatus.OK))
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
+
+        mockMvc.perform(get("/pr/search?location_long=0.0&location_lat=0.0&max_distance=10.0"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.resources[*].locatedAt.name", containsInAnyOrder("location2")));
+    }
+
     @Test
     public void listResourcesInPredicateByTrust() throws Exception {
         List<FederatedResource> federatedResourceList = createTestFederatedResources(platformId);
@@ -416,7 +513,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String predicate="?resource_trust=1.0&adaptive_trust=6.0";
 
@@ -439,7 +536,7 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
         doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
                 .when(authorizationService).generateServiceResponse();
         doReturn(new ResponseEntity<>(HttpStatus.OK))
-                .when(authorizationService).checkListResourcesRequest(any(), any());
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
 
         String predicate="?sort=aggregationId desc";//"";//
 
@@ -454,5 +551,88 @@ public class SearchControllerTests extends PlatformRegistryBaseTestClass {
                         )));
 
     }
-}
 
+    @Test
+    public void listResourcesPaginatedSuccessfulTest() throws Exception {
+        List<FederatedResource> federatedResourceList = createTestFederatedResources(platformId);
+        resourceRepository.save(federatedResourceList);
+
+        List<String> sortedIds = federatedResourceList.stream().map(FederatedResource::getAggregationId)
+                .sorted().collect(Collectors.toList());
+
+        // Sleep to make sure that the repo has been updated before querying
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
+                .when(authorizationService).generateServiceResponse();
+        doReturn(new ResponseEntity<>(HttpStatus.OK))
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
+
+        MvcResult firstPage = mockMvc.perform(get("/pr/list_resources?limit=2"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(SecurityConstants.SECURITY_RESPONSE_HEADER, serviceResponse))
+                .andExpect(header().string(SearchService.CONTINUATION_TOKEN_HEADER, notNullValue()))
+                .andExpect(jsonPath("$.resources", hasSize(2)))
+                .andExpect(jsonPath("$.resources[*].aggregationId",
+                        contains(sortedIds.get(0), sortedIds.get(1))))
+                .andReturn();
+
+        String continuationToken = firstPage.getResponse().getHeader(SearchService.CONTINUATION_TOKEN_HEADER);
+
+        mockMvc.perform(get("/pr/list_resources?limit=2&continuation_token=" + continuationToken))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(SearchService.CONTINUATION_TOKEN_HEADER))
+                .andExpect(jsonPath("$.resources", hasSize(1)))
+                .andExpect(jsonPath("$.resources[*].aggregationId",
+                        contains(sortedIds.get(2))));
+
+        // The token cannot be used with a different sort order
+        mockMvc.perform(get("/pr/search?sort=aggregationId desc&limit=2&continuation_token=" + continuationToken))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void listIndexUsageSuccessfulTest() throws Exception {
+        // The indexes are built in the background after the startup, so wait for them
+        resourceIndexManager.ensureIndexes();
+
+        doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
+                .when(authorizationService).generateServiceResponse();
+        doReturn(new ResponseEntity<>(HttpStatus.OK))
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
+
+        mockMvc.perform(get("/pr/index_stats"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(SecurityConstants.SECURITY_RESPONSE_HEADER, serviceResponse))
+                .andExpect(jsonPath("$[?(@.declared == true)].name",
+                        hasItems("_id_", "cloudResource.internalId_1", "federationIds_1__id_1",
+                                "locationCoords_2dsphere")))
+                .andExpect(jsonPath("$[?(@.declared == true)].present", everyItem(equalTo(true))));
+    }
+
+    @Test
+    public void listResourcesStreamedSuccessfulTest() throws Exception {
+        List<FederatedResource> federatedResourceList = createTestFederatedResources(platformId);
+        resourceRepository.save(federatedResourceList);
+
+        // Sleep to make sure that the repo has been updated before querying
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        doReturn(new ResponseEntity<>(serviceResponse, HttpStatus.OK))
+                .when(authorizationService).generateServiceResponse();
+        doReturn(new ResponseEntity<>(HttpStatus.OK))
+                .when(authorizationService).checkListResourcesRequest(any(), any(), any());
+
+        MvcResult result = mockMvc.perform(get("/pr/list_federation_resources/" + federation1)
+                .accept(SearchService.NDJSON))
+                .andExpect(status().isOk())
+                .andExpect(header().string(SecurityConstants.SECURITY_RESPONSE_HEADER, serviceResponse))
+                .andExpect(content().contentTypeCompatibleWith(SearchService.NDJSON))
+                .andReturn();
+
+        String[] lines = result.getResponse().getContentAsString().trim().split("\n");
+        assertEquals(3, lines.length);
+        for (String line : lines)
+            assertNotNull(mapper.readValue(line, FederatedResource.class).getAggregationId());
+    }
+}
@@ -6,9 +6,12 @@ import eu.h2020.symbiote.cloud.model.internal.ResourcesDeletedMessage;
 import eu.h2020.symbiote.model.cim.Actuator;
 import eu.h2020.symbiote.model.cim.Service;
 import eu.h2020.symbiote.model.cim.StationarySensor;
+import eu.h2020.symbiote.pr.communication.rabbit.NegotiatingMessageConverter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -96,4 +99,49 @@ public class SubscriptionManagerListenerTests extends PlatformRegistryBaseTestCl
         List<FederatedResource> stored = resourceRepository.findAll();
         assertEquals(testFederatedResources.get(0).getAggregationId(), stored.get(0).getAggregationId());
     }
+
+    @Test
+    public void batchedMessagesTest() throws InterruptedException {
+
+        List<FederatedResource> testFederatedResources = createTestFederatedResources(testPlatformId);
+        FederatedResource resource2 = testFederatedResources.get(1);
+
+        // Every resource comes in its own message
+        for (FederatedResource federatedResource : testFederatedResources)
+            rabbitTemplate.convertAndSend(platformRegistryExchange, addOrUpdateFederatedResourcesKey,
+                    new ResourcesAddedOrUpdatedMessage(Collections.singletonList(federatedResource)));
+
+        // A later message shares resource2 to federation2 too
+        resource2.shareToNewFederation(federation2, false);
+        rabbitTemplate.convertAndSend(platformRegistryExchange, addOrUpdateFederatedResourcesKey,
+                new ResourcesAddedOrUpdatedMessage(Collections.singletonList(resource2)));
+
+        // Wait until all the messages are applied
+        while (resourceRepository.findAll().size() != testFederatedResources.size() ||
+                resourceRepository.findOne(resource2.getAggregationId()).getFederatedResourceInfoMap().size() != 2) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        FederatedResource stored = resourceRepository.findOne(resource2.getAggregationId());
+        assertTrue(stored.getFederatedResourceInfoMap().keySet().containsAll(Arrays.asList(federation1, federation2)));
+        assertEquals(2, stored.getCloudResource().getFederationInfo().getSharingInformation().size());
+    }
+
+    @Test
+    public void compressedBinaryMessageTest() throws InterruptedException {
+        List<FederatedResource> testFederatedResources = createTestFederatedResources(testPlatformId);
+        Message message = new NegotiatingMessageConverter(
+                NegotiatingMessageConverter.SMILE, NegotiatingMessageConverter.LZ4)
+                .toMessage(new ResourcesAddedOrUpdatedMessage(testFederatedResources), new MessageProperties());
+        rabbitTemplate.send(platformRegistryExchange, addOrUpdateFederatedResourcesKey, message);
+
+        // Wait until the resources are stored in the database
+        while (resourceRepository.findAll().size() != testFederatedResources.size()) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        FederatedResource stored = resourceRepository.findOne(testFederatedResources.get(0).getAggregationId());
+        assertEquals(testFederatedResources.get(0).getCloudResource().getInternalId(),
+                stored.getCloudResource().getInternalId());
+    }
 }
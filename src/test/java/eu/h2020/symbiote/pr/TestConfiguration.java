@@ -1,7 +1,11 @@
 package eu.h2020.symbiote.pr;
 
+import eu.h2020.symbiote.pr.communication.rabbit.NegotiatingMessageConverter;
 import eu.h2020.symbiote.pr.services.AuthorizationService;
 import org.mockito.Mockito;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
@@ -20,4 +24,18 @@ public class TestConfiguration {
     public AuthorizationService authorizationService() {
         return Mockito.mock(AuthorizationService.class);
     }
+
+    /**
+     * The containers of the dummy listeners, which acknowledge automatically unlike the ones of the Platform Registry
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory dummyListenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            @Qualifier("messageConverter") NegotiatingMessageConverter messageConverter) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(messageConverter);
+        factory.setDefaultRequeueRejected(false);
+        return factory;
+    }
 }
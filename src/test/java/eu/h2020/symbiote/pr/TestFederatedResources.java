@@ -0,0 +1,73 @@
+package eu.h2020.symbiote.pr;
+
+import eu.h2020.symbiote.cloud.model.internal.CloudResource;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.cloud.model.internal.FederationInfoBean;
+import eu.h2020.symbiote.cloud.model.internal.ResourceSharingInformation;
+import eu.h2020.symbiote.model.cim.*;
+
+import java.util.*;
+
+/**
+ * Creates FederatedResources of every kind for the tests which do not need the application context, so they neither
+ * generate nor check the ids against the database like {@link PlatformRegistryBaseTestClass}
+ */
+final class TestFederatedResources {
+
+    static final String FEDERATION_1 = "fed1";
+    static final String FEDERATION_2 = "fed2";
+
+    private TestFederatedResources() {
+    }
+
+    /**
+     * @param platformId the id of the platform offering the resources
+     * @return a stationary sensor shared to 2 federations, an actuator and a service shared to 1
+     */
+    static List<FederatedResource> create(String platformId) {
+        StationarySensor stationarySensor = new StationarySensor();
+        stationarySensor.setLocatedAt(new WGS84Location(1.0, 1.0, 1.0, "location1",
+                Collections.singletonList("locationDescription1")));
+        stationarySensor.setName("stationarySensor");
+        stationarySensor.setDescription(Collections.singletonList("sensor1Description"));
+        stationarySensor.setInterworkingServiceURL("https://stationarySensor.com");
+        stationarySensor.setObservesProperty(Arrays.asList("property1", "property2"));
+
+        Actuator actuator = new Actuator();
+        actuator.setName("actuator");
+        actuator.setInterworkingServiceURL("https://actuator.com");
+        actuator.setLocatedAt(new WGS84Location(2.0, 2.0, 2.0, "location2",
+                Collections.singletonList("locationDescription2")));
+
+        Service service = new Service();
+        service.setName("service");
+        service.setInterworkingServiceURL("https://service.com");
+        service.setDescription(Arrays.asList("@type=Beacon", "@beacon.id=f7826da6-4fa2-4e98-8024-bc5b71e0893e"));
+
+        return new ArrayList<>(Arrays.asList(
+                create(platformId, 1, stationarySensor, "stationarySensorInternalId", 10.0, FEDERATION_1, FEDERATION_2),
+                create(platformId, 2, actuator, "actuatorInternalId", 7.0, FEDERATION_1),
+                create(platformId, 3, service, "serviceInternalId", 5.0, FEDERATION_1)));
+    }
+
+    private static FederatedResource create(String platformId, long id, Resource resource, String internalId,
+                                            double adaptiveTrust, String... federationIds) {
+        Map<String, ResourceSharingInformation> sharingInformationMap = new HashMap<>();
+        for (int i = 0; i < federationIds.length; i++) {
+            ResourceSharingInformation sharingInformation = new ResourceSharingInformation();
+            sharingInformation.setBartering(i % 2 == 0);
+            sharingInformationMap.put(federationIds[i], sharingInformation);
+        }
+
+        FederationInfoBean federationInfo = new FederationInfoBean();
+        federationInfo.setSharingInformation(sharingInformationMap);
+        federationInfo.setResourceTrust(1.0);
+
+        CloudResource cloudResource = new CloudResource();
+        cloudResource.setResource(resource);
+        cloudResource.setInternalId(internalId);
+        cloudResource.setFederationInfo(federationInfo);
+
+        return new FederatedResource(String.format("%016x@%s", id, platformId), cloudResource, adaptiveTrust);
+    }
+}
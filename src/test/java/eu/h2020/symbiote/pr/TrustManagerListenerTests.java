@@ -80,5 +80,73 @@ public class TrustManagerListenerTests extends PlatformRegistryBaseTestClass {
 
     }
 
+    @Test
+    public void updateAdaptiveResourceTrustBurstTest() throws InterruptedException {
+
+        List<FederatedResource> testFederatedResources = createTestFederatedResources(testPlatformId);
+        rabbitTemplate.convertAndSend(platformRegistryExchange, addOrUpdateFederatedResourcesKey,
+                new ResourcesAddedOrUpdatedMessage(testFederatedResources));
+
+        // Wait until the resources are stored in the database
+        while (resourceRepository.findAll().size() != testFederatedResources.size()) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        // Send a burst of entries for the same resource without waiting, so that they end up in the same batch
+        FederatedResource federatedResource = testFederatedResources.get(0);
+        String symbioteId = federatedResource.getFederatedResourceInfoMap().values().iterator().next().getSymbioteId();
+        for (double value = 1.0; value <= 20.0; value++) {
+            TrustEntry trustEntry = new TrustEntry(TrustEntry.Type.ADAPTIVE_RESOURCE_TRUST,
+                    federatedResource.getPlatformId(), symbioteId);
+            trustEntry.updateEntry(value);
+            rabbitTemplate.convertAndSend(trustExchange, updateAdaptiveResourceTrustKey, trustEntry);
+        }
+
+        // The last entry wins
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Double.valueOf(20.0).equals(resourceRepository.findOne(federatedResource.getAggregationId())
+                .getAdaptiveTrust()) && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        assertEquals(Double.valueOf(20.0),
+                resourceRepository.findOne(federatedResource.getAggregationId()).getAdaptiveTrust());
+    }
+
+    @Test
+    public void malformedEntryInBatchTest() throws InterruptedException {
+
+        List<FederatedResource> testFederatedResources = createTestFederatedResources(testPlatformId);
+        rabbitTemplate.convertAndSend(platformRegistryExchange, addOrUpdateFederatedResourcesKey,
+                new ResourcesAddedOrUpdatedMessage(testFederatedResources));
+
+        // Wait until the resources are stored in the database
+        while (resourceRepository.findAll().size() != testFederatedResources.size()) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        // Send a malformed entry and a valid one without waiting, so that they end up in the same batch
+        FederatedResource federatedResource = testFederatedResources.get(0);
+        String symbioteId = federatedResource.getFederatedResourceInfoMap().values().iterator().next().getSymbioteId();
+        TrustEntry malformedEntry = new TrustEntry(TrustEntry.Type.ADAPTIVE_RESOURCE_TRUST,
+                federatedResource.getPlatformId(), "malformed");
+        malformedEntry.updateEntry(5.0);
+        rabbitTemplate.convertAndSend(trustExchange, updateAdaptiveResourceTrustKey, malformedEntry);
+
+        TrustEntry trustEntry = new TrustEntry(TrustEntry.Type.ADAPTIVE_RESOURCE_TRUST,
+                federatedResource.getPlatformId(), symbioteId);
+        trustEntry.updateEntry(13.0);
+        rabbitTemplate.convertAndSend(trustExchange, updateAdaptiveResourceTrustKey, trustEntry);
+
+        // The malformed entry is skipped and the valid one is applied
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!Double.valueOf(13.0).equals(resourceRepository.findOne(federatedResource.getAggregationId())
+                .getAdaptiveTrust()) && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        assertEquals(Double.valueOf(13.0),
+                resourceRepository.findOne(federatedResource.getAggregationId()).getAdaptiveTrust());
+    }
 
 }
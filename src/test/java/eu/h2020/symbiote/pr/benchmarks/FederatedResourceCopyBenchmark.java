@@ -0,0 +1,85 @@
+package eu.h2020.symbiote.pr.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.h2020.symbiote.cloud.model.internal.CloudResource;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.cloud.model.internal.FederationInfoBean;
+import eu.h2020.symbiote.cloud.model.internal.ResourceSharingInformation;
+import eu.h2020.symbiote.model.cim.StationarySensor;
+import eu.h2020.symbiote.model.cim.WGS84Location;
+import eu.h2020.symbiote.pr.helpers.FederatedResourceCopier;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link FederatedResourceCopier} with the JSON round-trip previously used for copying the federated
+ * resources when they are shared. It is not run with the tests, but through its main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FederatedResourceCopyBenchmark {
+
+    private ObjectMapper mapper;
+    private FederatedResourceCopier copier;
+    private FederatedResource federatedResource;
+
+    @Setup
+    public void setup() {
+        mapper = new ObjectMapper();
+        copier = new FederatedResourceCopier(mapper);
+
+        StationarySensor stationarySensor = new StationarySensor();
+        stationarySensor.setLocatedAt(new WGS84Location(1.0, 1.0, 1.0, "location1", Arrays.asList("locationDescription1")));
+        stationarySensor.setName("stationarySensor");
+        stationarySensor.setDescription(Arrays.asList("sensor1Description"));
+        stationarySensor.setInterworkingServiceURL("https://stationarySensor.com");
+        stationarySensor.setObservesProperty(Arrays.asList("property1", "property2", "property3"));
+
+        Map<String, ResourceSharingInformation> sharingInformationMap = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            ResourceSharingInformation sharingInformation = new ResourceSharingInformation();
+            sharingInformation.setBartering(i % 2 == 0);
+            sharingInformationMap.put("fed" + i, sharingInformation);
+        }
+
+        FederationInfoBean federationInfo = new FederationInfoBean();
+        federationInfo.setSharingInformation(sharingInformationMap);
+        federationInfo.setResourceTrust(1.0);
+
+        CloudResource cloudResource = new CloudResource();
+        cloudResource.setResource(stationarySensor);
+        cloudResource.setInternalId("stationarySensorInternalId");
+        cloudResource.setFederationInfo(federationInfo);
+
+        federatedResource = new FederatedResource("0000000000000001@platform", cloudResource, 10.0);
+    }
+
+    @Benchmark
+    public FederatedResource jsonRoundTrip() throws IOException {
+        return mapper.readValue(mapper.writeValueAsString(federatedResource), FederatedResource.class);
+    }
+
+    @Benchmark
+    public FederatedResource copier() throws IOException {
+        return copier.copy(federatedResource);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FederatedResourceCopyBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build()).run();
+    }
+}
@@ -0,0 +1,115 @@
+package eu.h2020.symbiote.pr.benchmarks;
+
+import eu.h2020.symbiote.cloud.model.internal.CloudResource;
+import eu.h2020.symbiote.cloud.model.internal.FederatedResource;
+import eu.h2020.symbiote.cloud.model.internal.FederationInfoBean;
+import eu.h2020.symbiote.cloud.model.internal.ResourceSharingInformation;
+import eu.h2020.symbiote.cloud.model.internal.ResourcesAddedOrUpdatedMessage;
+import eu.h2020.symbiote.model.cim.StationarySensor;
+import eu.h2020.symbiote.model.cim.WGS84Location;
+import eu.h2020.symbiote.pr.communication.rabbit.NegotiatingMessageConverter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time the {@link NegotiatingMessageConverter} needs to encode and decode a Subscription Manager
+ * notification in every format, and prints the size of the encoded messages. It is not run with the tests, but
+ * through its main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncodingBenchmark {
+
+    @Param({NegotiatingMessageConverter.JSON, NegotiatingMessageConverter.SMILE, NegotiatingMessageConverter.CBOR})
+    public String contentType;
+
+    @Param({NegotiatingMessageConverter.NONE, NegotiatingMessageConverter.GZIP, NegotiatingMessageConverter.LZ4})
+    public String compression;
+
+    @Param({"1000"})
+    public int resources;
+
+    private NegotiatingMessageConverter converter;
+    private ResourcesAddedOrUpdatedMessage notification;
+    private Message message;
+
+    @Setup
+    public void setup() {
+        converter = new NegotiatingMessageConverter(contentType, compression);
+        notification = createNotification(resources);
+        message = converter.toMessage(notification, new MessageProperties());
+    }
+
+    @Benchmark
+    public Message encode() {
+        return converter.toMessage(notification, new MessageProperties());
+    }
+
+    @Benchmark
+    public Object decode() {
+        return converter.fromMessage(message);
+    }
+
+    private static ResourcesAddedOrUpdatedMessage createNotification(int resources) {
+        List<FederatedResource> federatedResources = new ArrayList<>(resources);
+
+        for (int i = 0; i < resources; i++) {
+            StationarySensor stationarySensor = new StationarySensor();
+            stationarySensor.setLocatedAt(new WGS84Location(1.0 + i, 1.0, 1.0, "location" + i,
+                    Arrays.asList("locationDescription" + i)));
+            stationarySensor.setName("stationarySensor" + i);
+            stationarySensor.setDescription(Arrays.asList("sensor" + i + "Description"));
+            stationarySensor.setInterworkingServiceURL("https://stationarySensor.com");
+            stationarySensor.setObservesProperty(Arrays.asList("property1", "property2", "property3"));
+
+            Map<String, ResourceSharingInformation> sharingInformationMap = new HashMap<>();
+            for (int j = 0; j < 2; j++) {
+                ResourceSharingInformation sharingInformation = new ResourceSharingInformation();
+                sharingInformation.setBartering(j % 2 == 0);
+                sharingInformationMap.put("fed" + j, sharingInformation);
+            }
+
+            FederationInfoBean federationInfo = new FederationInfoBean();
+            federationInfo.setSharingInformation(sharingInformationMap);
+            federationInfo.setResourceTrust(1.0);
+
+            CloudResource cloudResource = new CloudResource();
+            cloudResource.setResource(stationarySensor);
+            cloudResource.setInternalId("stationarySensorInternalId" + i);
+            cloudResource.setFederationInfo(federationInfo);
+
+            federatedResources.add(new FederatedResource(String.format("%016x@platform", i), cloudResource, 10.0));
+        }
+
+        return new ResourcesAddedOrUpdatedMessage(federatedResources);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        // The size of the messages does not depend on the measurements, so it is printed once for every format
+        ResourcesAddedOrUpdatedMessage notification = createNotification(1000);
+        for (String contentType : NegotiatingMessageConverter.CONTENT_TYPES) {
+            for (String compression : NegotiatingMessageConverter.COMPRESSIONS) {
+                Message message = new NegotiatingMessageConverter(contentType, compression)
+                        .toMessage(notification, new MessageProperties());
+                System.out.println(String.format("%-30s %-5s %10d bytes", contentType, compression,
+                        message.getBody().length));
+            }
+        }
+
+        new Runner(new OptionsBuilder()
+                .include(MessageEncodingBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build()).run();
+    }
+}
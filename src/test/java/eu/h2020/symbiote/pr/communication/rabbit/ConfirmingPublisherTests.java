@@ -0,0 +1,176 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the confirms, the retries and the in-flight window of the {@link ConfirmingPublisher}. The broker is replaced
+ * by a mocked RabbitTemplate, whose confirm callback is called by the tests.
+ */
+public class ConfirmingPublisherTests {
+
+    private static final String METRIC_PREFIX = "platformRegistry.outbound.";
+
+    private RabbitTemplate rabbitTemplate = mock(RabbitTemplate.class);
+    private CounterService counterService = mock(CounterService.class);
+    private GaugeService gaugeService = mock(GaugeService.class);
+    private BlockingQueue<CorrelationData> sent = new LinkedBlockingQueue<>();
+    private RabbitTemplate.ConfirmCallback confirmCallback;
+    private ConfirmingPublisher publisher;
+
+    @Before
+    public void setUp() {
+        // The sends succeed and wait for the confirm of the test
+        doAnswer(invocation -> sent.add((CorrelationData) invocation.getArguments()[3]))
+                .when(rabbitTemplate).send(anyString(), anyString(), any(Message.class), any(CorrelationData.class));
+    }
+
+    @After
+    public void tearDown() {
+        if (publisher != null)
+            publisher.stop();
+    }
+
+    @Test
+    public void ackCompletesTest() throws Exception {
+        createPublisher(10, 0);
+
+        CompletableFuture<Void> future = publish();
+        confirmCallback.confirm(nextSent(), true, null);
+
+        future.get(1, TimeUnit.SECONDS);
+        verify(counterService).increment(METRIC_PREFIX + "published");
+        verify(counterService).increment(METRIC_PREFIX + "confirmed");
+    }
+
+    @Test
+    public void nackIsRetriedTest() throws Exception {
+        createPublisher(10, 1);
+
+        CompletableFuture<Void> future = publish();
+        confirmCallback.confirm(nextSent(), false, "nack");
+        assertFalse(future.isDone());
+
+        // The message is published again with a new correlation id
+        confirmCallback.confirm(nextSent(), true, null);
+        future.get(1, TimeUnit.SECONDS);
+        verify(counterService).increment(METRIC_PREFIX + "nacked");
+        verify(counterService).increment(METRIC_PREFIX + "retried");
+    }
+
+    @Test
+    public void retriesExhaustedTest() throws Exception {
+        createPublisher(10, 1);
+
+        CompletableFuture<Void> future = publish();
+        confirmCallback.confirm(nextSent(), false, "nack");
+        confirmCallback.confirm(nextSent(), false, "nack");
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("The message should not be confirmed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmqpException);
+        }
+        verify(counterService).increment(METRIC_PREFIX + "failed");
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void publishOnceIsNotRetriedTest() throws Exception {
+        createPublisher(10, 1);
+
+        CompletableFuture<Void> future = publisher.publishOnce("exchange", "routingKey",
+                new Message(new byte[0], new MessageProperties()));
+        confirmCallback.confirm(nextSent(), false, "nack");
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("The message should not be confirmed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmqpException);
+        }
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void sendFailureIsRetriedTest() throws Exception {
+        doThrow(new AmqpException("connection lost"))
+                .doAnswer(invocation -> sent.add((CorrelationData) invocation.getArguments()[3]))
+                .when(rabbitTemplate).send(anyString(), anyString(), any(Message.class), any(CorrelationData.class));
+        createPublisher(10, 1);
+
+        CompletableFuture<Void> future = publish();
+        confirmCallback.confirm(nextSent(), true, null);
+
+        future.get(1, TimeUnit.SECONDS);
+        verify(counterService).increment(METRIC_PREFIX + "retried");
+    }
+
+    @Test
+    public void inFlightWindowTest() throws Exception {
+        createPublisher(2, 0);
+
+        CompletableFuture<Void> first = publish();
+        publish();
+        publish();
+
+        // Only 2 messages are sent before the first confirm
+        CorrelationData firstSent = nextSent();
+        nextSent();
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        verify(gaugeService, timeout(1000).atLeastOnce()).submit(METRIC_PREFIX + "inFlight", 2);
+
+        confirmCallback.confirm(firstSent, true, null);
+        first.get(1, TimeUnit.SECONDS);
+        assertNotNull(nextSent());
+    }
+
+    @Test
+    public void gaugesWithoutConfirmsTest() throws Exception {
+        createPublisher(10, 0);
+
+        publish();
+        nextSent();
+
+        // Nothing is confirmed, but the publisher thread still reports the message in flight
+        verify(gaugeService, timeout(1000).atLeastOnce()).submit(METRIC_PREFIX + "inFlight", 1);
+        verify(gaugeService, timeout(1000).atLeastOnce()).submit(eq(METRIC_PREFIX + "queued"), anyDouble());
+        verify(gaugeService, never()).submit(eq(METRIC_PREFIX + "lag"), anyDouble());
+    }
+
+    private void createPublisher(int maxInFlight, int maxRetries) {
+        publisher = new ConfirmingPublisher(rabbitTemplate, counterService, gaugeService, 100, maxInFlight,
+                maxRetries, 0);
+
+        ArgumentCaptor<RabbitTemplate.ConfirmCallback> captor =
+                ArgumentCaptor.forClass(RabbitTemplate.ConfirmCallback.class);
+        verify(rabbitTemplate).setConfirmCallback(captor.capture());
+        confirmCallback = captor.getValue();
+    }
+
+    private CompletableFuture<Void> publish() {
+        return publisher.publish("exchange", "routingKey", new Message(new byte[0], new MessageProperties()));
+    }
+
+    private CorrelationData nextSent() throws InterruptedException {
+        CorrelationData correlationData = sent.poll(1, TimeUnit.SECONDS);
+        assertNotNull("The message was not sent", correlationData);
+        return correlationData;
+    }
+}
@@ -0,0 +1,118 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the order, the independence of the lanes and the error handling of the {@link KeyedDispatcher}
+ */
+public class KeyedDispatcherTests {
+
+    private static final int LANES = 4;
+
+    private KeyedDispatcher dispatcher = new KeyedDispatcher("test", LANES);
+
+    @After
+    public void tearDown() {
+        dispatcher.stop();
+    }
+
+    @Test
+    public void singleLaneOrderTest() throws Exception {
+        int lane = dispatcher.laneIndex("resource");
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+
+        // The first work blocks the lane, so the rest of the work queues up behind it
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        futures.add(dispatcher.submit(lane, () -> {
+            blocked.await();
+            return order.add(0);
+        }));
+        for (int i = 1; i <= 5; i++) {
+            int index = i;
+            futures.add(dispatcher.submit(lane, () -> order.add(index)));
+        }
+
+        blocked.countDown();
+        for (CompletableFuture<?> future : futures)
+            future.get(1, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), order);
+    }
+
+    @Test
+    public void otherLanesAreNotBlockedTest() throws Exception {
+        List<String> keys = keysOfDifferentLanes();
+        CountDownLatch blocked = new CountDownLatch(1);
+
+        CompletableFuture<String> blocking = dispatcher.submit(dispatcher.laneIndex(keys.get(0)), () -> {
+            blocked.await();
+            return "blocking";
+        });
+
+        // The work on the rest of the lanes completes while the first lane is blocked
+        for (String key : keys.subList(1, keys.size()))
+            assertEquals(key, dispatcher.submit(dispatcher.laneIndex(key), () -> key).get(1, TimeUnit.SECONDS));
+        assertFalse(blocking.isDone());
+
+        blocked.countDown();
+        assertEquals("blocking", blocking.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void splitTest() {
+        List<String> keys = keysOfDifferentLanes();
+        List<String> items = new ArrayList<>();
+        for (String key : keys)
+            items.addAll(Arrays.asList(key + "@1", key + "@2"));
+
+        // Every lane gets the items of its key in their original order
+        SortedMap<Integer, List<String>> parts = dispatcher.split(items, item -> item.split("@")[0]);
+        assertEquals(LANES, parts.size());
+        for (String key : keys)
+            assertEquals(Arrays.asList(key + "@1", key + "@2"), parts.get(dispatcher.laneIndex(key)));
+
+        assertTrue(dispatcher.split(Collections.<String>emptyList(), item -> item).isEmpty());
+    }
+
+    @Test
+    public void exceptionPropagationTest() throws Exception {
+        int lane = dispatcher.laneIndex("resource");
+        IllegalStateException exception = new IllegalStateException("failed");
+
+        try {
+            dispatcher.submit(lane, () -> {
+                throw exception;
+            }).get(1, TimeUnit.SECONDS);
+            fail("The exception of the work should be thrown");
+        } catch (ExecutionException e) {
+            assertSame(exception, e.getCause());
+        }
+
+        // The lane keeps working
+        assertEquals("done", dispatcher.submit(lane, () -> "done").get(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return a key for every lane
+     */
+    private List<String> keysOfDifferentLanes() {
+        String[] keys = new String[LANES];
+        int found = 0;
+        for (int i = 0; found < LANES; i++) {
+            String key = "resource" + i;
+            int lane = dispatcher.laneIndex(key);
+            if (keys[lane] == null) {
+                keys[lane] = key;
+                found++;
+            }
+        }
+        return Arrays.asList(keys);
+    }
+}
@@ -0,0 +1,162 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.Channel;
+import eu.h2020.symbiote.cloud.model.internal.CloudResource;
+import eu.h2020.symbiote.pr.model.ResourcesUpdateResult;
+import eu.h2020.symbiote.pr.services.RegistrationHandlerService;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.actuate.metrics.CounterService;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the {@link RegistrationHandlerListener} applies the requests about the same resource in the order of
+ * their deliveries and the rest of them in parallel. The test calls the listener like the single consumer of its
+ * queue does and the broker is replaced by a mocked RabbitTemplate and Channel.
+ */
+public class RegistrationHandlerListenerDispatchTests {
+
+    private static final int LANES = 4;
+
+    private RegistrationHandlerService registrationHandlerService = mock(RegistrationHandlerService.class);
+    private KeyedDispatcher keyedDispatcher = new KeyedDispatcher("test", LANES);
+    private RabbitTemplate rabbitTemplate = mock(RabbitTemplate.class);
+    private Channel channel = mock(Channel.class);
+    private RegistrationHandlerListener listener = new RegistrationHandlerListener(registrationHandlerService,
+            keyedDispatcher, rabbitTemplate,
+            new NegotiatingMessageConverter(NegotiatingMessageConverter.JSON, NegotiatingMessageConverter.NONE),
+            new ListenerLatencyRecorder(5000), mock(CounterService.class), 15000, 0);
+
+    @After
+    public void tearDown() {
+        keyedDispatcher.stop();
+    }
+
+    @Test
+    public void deliveryOrderTest() throws Exception {
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstBlocked = new CountDownLatch(1);
+
+        // The first update of the resource takes longer, so it would complete after the second one if they ran in
+        // parallel
+        doAnswer(invocation -> {
+            List<CloudResource> cloudResources = (List<CloudResource>) invocation.getArguments()[0];
+            String update = cloudResources.get(0).getPluginId();
+            if (update.equals("first"))
+                firstBlocked.await();
+            applied.add(update);
+            return new ResourcesUpdateResult(cloudResources, 0);
+        }).when(registrationHandlerService).addOrUpdatePlatformResources(anyListOf(CloudResource.class), any());
+
+        listener.addOrUpdate(cloudResources("first", "sensor"), request(1), channel);
+        listener.addOrUpdate(cloudResources("second", "sensor"), request(2), channel);
+
+        // The consumer does not wait for the work, but the second update waits for the first one
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertTrue(applied.isEmpty());
+        firstBlocked.countDown();
+
+        verify(channel, timeout(1000)).basicAck(1, false);
+        verify(channel, timeout(1000)).basicAck(2, false);
+        verify(rabbitTemplate, timeout(1000).times(2)).send(anyString(), eq("replies"), any(Message.class));
+        assertEquals(Arrays.asList("first", "second"), applied);
+    }
+
+    @Test
+    public void requestIsSplitByLanesTest() throws Exception {
+        List<String> internalIds = keysOfDifferentLanes();
+        CountDownLatch firstLaneBlocked = new CountDownLatch(1);
+
+        // Every lane gets its own part of the request. The part of the first lane blocks it
+        doAnswer(invocation -> {
+            List<CloudResource> cloudResources = (List<CloudResource>) invocation.getArguments()[0];
+            assertEquals(1, cloudResources.size());
+            if (cloudResources.get(0).getInternalId().equals(internalIds.get(0)))
+                firstLaneBlocked.await();
+            return new ResourcesUpdateResult(cloudResources, 1);
+        }).when(registrationHandlerService).addOrUpdatePlatformResources(anyListOf(CloudResource.class), any());
+
+        listener.addOrUpdate(cloudResources("update", internalIds.toArray(new String[0])), request(1), channel);
+
+        // The other requests go on on the other lanes, while the first lane is blocked
+        listener.addOrUpdate(cloudResources("update", internalIds.get(1)), request(2), channel);
+        verify(channel, timeout(1000)).basicAck(2, false);
+        verify(channel, never()).basicAck(1, false);
+
+        // The reply of the split request is sent when all its parts have completed, in the order of the request
+        firstLaneBlocked.countDown();
+        verify(channel, timeout(1000)).basicAck(1, false);
+        verify(registrationHandlerService, times(LANES + 1))
+                .addOrUpdatePlatformResources(anyListOf(CloudResource.class), any());
+
+        Message reply = lastReply(2);
+        assertEquals(LANES, reply.getMessageProperties().getHeaders()
+                .get(RegistrationHandlerListener.SKIPPED_RESOURCES_HEADER));
+        assertEquals(internalIds, internalIdsOf(reply));
+    }
+
+    private static List<CloudResource> cloudResources(String update, String... internalIds) {
+        List<CloudResource> cloudResources = new ArrayList<>();
+        for (String internalId : internalIds) {
+            CloudResource cloudResource = new CloudResource();
+            cloudResource.setInternalId(internalId);
+            // Marks the update the resource belongs to
+            cloudResource.setPluginId(update);
+            cloudResources.add(cloudResource);
+        }
+        return cloudResources;
+    }
+
+    private static Message request(long deliveryTag) {
+        MessageProperties properties = new MessageProperties();
+        properties.setDeliveryTag(deliveryTag);
+        properties.setReplyTo("replies");
+        properties.setConsumerQueue("update");
+        return new Message(new byte[0], properties);
+    }
+
+    /**
+     * @return the last reply of the expected replies, in the order they were sent
+     */
+    private Message lastReply(int replies) {
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(rabbitTemplate, timeout(1000).times(replies)).send(anyString(), eq("replies"), captor.capture());
+        return captor.getAllValues().get(replies - 1);
+    }
+
+    private static List<String> internalIdsOf(Message reply) throws Exception {
+        List<String> internalIds = new ArrayList<>();
+        for (Object cloudResource : new ObjectMapper().readValue(reply.getBody(), List.class))
+            internalIds.add((String) ((Map<String, Object>) cloudResource).get("internalId"));
+        return internalIds;
+    }
+
+    /**
+     * @return an internalId for every lane
+     */
+    private List<String> keysOfDifferentLanes() {
+        String[] keys = new String[LANES];
+        int found = 0;
+        for (int i = 0; found < LANES; i++) {
+            String key = "resource" + i;
+            int lane = keyedDispatcher.laneIndex(key);
+            if (keys[lane] == null) {
+                keys[lane] = key;
+                found++;
+            }
+        }
+        return Arrays.asList(keys);
+    }
+}
@@ -0,0 +1,139 @@
+package eu.h2020.symbiote.pr.communication.rabbit;
+
+import eu.h2020.symbiote.cloud.model.internal.ResourcesDeletedMessage;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.util.*;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how the {@link SubscriptionManagerPublisher} splits the notifications in chunks. The chunks are only created
+ * here, so neither the outbox nor the broker are needed.
+ */
+public class SubscriptionManagerPublisherTests {
+
+    private NegotiatingMessageConverter converter = new NegotiatingMessageConverter(
+            NegotiatingMessageConverter.JSON, NegotiatingMessageConverter.NONE);
+
+    private Function<List<String>, Object> payloadFactory = ids -> new ResourcesDeletedMessage(new HashSet<>(ids));
+
+    @Test
+    public void splitByResourcesTest() {
+        List<Message> chunks = createPublisher(2, Integer.MAX_VALUE).chunk(symbioteIds(5), payloadFactory);
+
+        assertEquals(3, chunks.size());
+        assertEquals(symbioteIds(0, 2), symbioteIds(chunks.get(0)));
+        assertEquals(symbioteIds(2, 4), symbioteIds(chunks.get(1)));
+        assertEquals(symbioteIds(4, 5), symbioteIds(chunks.get(2)));
+        assertHeaders(chunks);
+    }
+
+    @Test
+    public void splitByBytesTest() {
+        // Every id has the same length, so the limit fits exactly 2 of them in a chunk
+        int maxChunkBytes = toMessage(symbioteIds(2)).getBody().length;
+        List<Message> chunks = createPublisher(100, maxChunkBytes).chunk(symbioteIds(8), payloadFactory);
+
+        // The 8 ids are halved twice
+        assertEquals(4, chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            assertTrue(chunks.get(i).getBody().length <= maxChunkBytes);
+            assertEquals(symbioteIds(2 * i, 2 * i + 2), symbioteIds(chunks.get(i)));
+        }
+        assertHeaders(chunks);
+    }
+
+    @Test
+    public void splitByResourcesAndBytesTest() {
+        // The chunks of 4 resources are too big, so each one is halved
+        int maxChunkBytes = toMessage(symbioteIds(2)).getBody().length;
+        List<Message> chunks = createPublisher(4, maxChunkBytes).chunk(symbioteIds(6), payloadFactory);
+
+        assertEquals(3, chunks.size());
+        assertEquals(symbioteIds(0, 2), symbioteIds(chunks.get(0)));
+        assertEquals(symbioteIds(2, 4), symbioteIds(chunks.get(1)));
+        assertEquals(symbioteIds(4, 6), symbioteIds(chunks.get(2)));
+        assertHeaders(chunks);
+    }
+
+    @Test
+    public void oversizedItemTest() {
+        // No item fits, so every one is sent on its own instead of being dropped
+        List<Message> chunks = createPublisher(100, 1).chunk(symbioteIds(3), payloadFactory);
+
+        assertEquals(3, chunks.size());
+        for (int i = 0; i < chunks.size(); i++)
+            assertEquals(symbioteIds(i, i + 1), symbioteIds(chunks.get(i)));
+        assertHeaders(chunks);
+    }
+
+    @Test
+    public void emptyNotificationTest() {
+        List<Message> chunks = createPublisher(2, Integer.MAX_VALUE).chunk(new ArrayList<>(), payloadFactory);
+
+        assertEquals(1, chunks.size());
+        assertEquals(Collections.emptySet(), symbioteIds(chunks.get(0)));
+        assertHeaders(chunks);
+    }
+
+    @Test
+    public void batchIdsAreDifferentTest() {
+        SubscriptionManagerPublisher publisher = createPublisher(2, Integer.MAX_VALUE);
+
+        assertNotEquals(
+                publisher.chunk(symbioteIds(1), payloadFactory).get(0).getMessageProperties()
+                        .getHeaders().get(SubscriptionManagerPublisher.BATCH_ID_HEADER),
+                publisher.chunk(symbioteIds(1), payloadFactory).get(0).getMessageProperties()
+                        .getHeaders().get(SubscriptionManagerPublisher.BATCH_ID_HEADER));
+    }
+
+    private SubscriptionManagerPublisher createPublisher(int maxChunkResources, int maxChunkBytes) {
+        RabbitTemplate rabbitTemplate = new RabbitTemplate();
+        rabbitTemplate.setMessageConverter(converter);
+        return new SubscriptionManagerPublisher(rabbitTemplate, null, null, "exchange", "addOrUpdate", "remove",
+                maxChunkResources, maxChunkBytes);
+    }
+
+    /**
+     * Checks that all the chunks carry the same batch id, their index and the number of the chunks
+     */
+    private static void assertHeaders(List<Message> chunks) {
+        Object batchId = chunks.get(0).getMessageProperties().getHeaders()
+                .get(SubscriptionManagerPublisher.BATCH_ID_HEADER);
+        assertNotNull(batchId);
+
+        for (int i = 0; i < chunks.size(); i++) {
+            Map<String, Object> headers = chunks.get(i).getMessageProperties().getHeaders();
+            assertEquals(batchId, headers.get(SubscriptionManagerPublisher.BATCH_ID_HEADER));
+            assertEquals(i, headers.get(SubscriptionManagerPublisher.CHUNK_INDEX_HEADER));
+            assertEquals(chunks.size(), headers.get(SubscriptionManagerPublisher.CHUNK_COUNT_HEADER));
+        }
+    }
+
+    private Message toMessage(List<String> symbioteIds) {
+        return converter.toMessage(payloadFactory.apply(symbioteIds), new MessageProperties());
+    }
+
+    private Set<String> symbioteIds(Message chunk) {
+        return ((ResourcesDeletedMessage) converter.fromMessage(chunk)).getDeletedFederatedResources();
+    }
+
+    private static List<String> symbioteIds(int count) {
+        return new ArrayList<>(symbioteIds(0, count));
+    }
+
+    /**
+     * @return the symbioteIds with the indexes from (inclusive) to (exclusive), in their order
+     */
+    private static Set<String> symbioteIds(int from, int to) {
+        Set<String> symbioteIds = new LinkedHashSet<>();
+        for (int i = from; i < to; i++)
+            symbioteIds.add(String.format("%016x@platform@fed1", i));
+        return symbioteIds;
+    }
+}
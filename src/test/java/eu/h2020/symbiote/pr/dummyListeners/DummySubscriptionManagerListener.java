@@ -25,6 +25,7 @@ public class DummySubscriptionManagerListener {
     private List<ResourcesDeletedMessage> resourcesDeletedMessages = new ArrayList<>();
 
     @RabbitListener(
+            containerFactory = "dummyListenerContainerFactory",
             bindings = @QueueBinding(
                     value = @Queue(
                             value = "${rabbit.queueName.subscriptionManager.addOrUpdateFederatedResources}",
@@ -46,6 +47,7 @@ public class DummySubscriptionManagerListener {
     }
 
     @RabbitListener(
+            containerFactory = "dummyListenerContainerFactory",
             bindings = @QueueBinding(
                     value = @Queue(
                             value = "${rabbit.queueName.subscriptionManager.removeFederatedResources}",